@@ -0,0 +1,77 @@
+/*
+   FrontEndBenchmark.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Stages before synthesis: parsing an instruction definition file,
+ * building the rules of its instructions from the \when clauses, and
+ * compiling their operand specifications.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+	@Param({"datatype/full.dtdef"})
+	public String dtdef;
+
+	@Param({"add", "bitand", "bitor", "call", "div", "eq", "equal", "getprop",
+		"leftshift", "lessthan", "lessthanequal", "mod", "mul", "new",
+		"rightshift", "setprop", "sub", "tailcall", "unsignedrightshift"})
+	public String idef;
+
+	SynthesisInput input;
+	List<DslParser.InstDef> parsed;
+
+	@Setup
+	public void setup() throws Exception {
+		input = new SynthesisInput(dtdef, "idefs/" + idef + ".idef");
+		parsed = parse();
+	}
+
+	@Benchmark
+	public List<DslParser.InstDef> parse() throws Exception {
+		return new DslParser(input.typeDef).parse(new StringReader(input.source), input.idefFile);
+	}
+
+	@Benchmark
+	public void build(Blackhole bh) {
+		ProcDefinition procDef = new ProcDefinition(input.typeDef);
+		for (DslParser.InstDef d: parsed)
+			bh.consume(procDef.build(d.vars, d.whenClauses));
+	}
+
+	/* compile, as getOperands memoises the result */
+	@Benchmark
+	public void operandSpecifications(Blackhole bh) {
+		for (ProcDefinition.InstDefinition insnDef: input.insnDefs)
+			bh.consume(input.operandSpec.compile(insnDef.name, insnDef.dispatchVars.length));
+	}
+}
@@ -0,0 +1,61 @@
+/*
+   SynthesisInput.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import vmgen.type.TypeDefinition;
+
+/**
+ * Input of the benchmarks: a type universe and the instructions of an
+ * instruction definition file, with operand specifications that accept
+ * every tuple of operand types so that the whole dispatch of each
+ * instruction is synthesised.  The stages that come before the one a
+ * benchmark measures are run here once.
+ */
+public class SynthesisInput {
+	public final TypeDefinition typeDef;
+	public final InsnGen.Option option = new InsnGen.Option();
+	final String idefFile;
+	final String source;
+	final List<ProcDefinition.InstDefinition> insnDefs;
+	final OperandSpecifications operandSpec;
+	final List<RuleSet> ruleSets;
+
+	public SynthesisInput(String dtdefFile, String idefFile) throws IOException {
+		AcceptAllInput input = new AcceptAllInput(dtdefFile, idefFile);
+		typeDef = input.typeDef;
+		this.idefFile = idefFile;
+		source = new String(Files.readAllBytes(Paths.get(idefFile)), StandardCharsets.UTF_8);
+		insnDefs = input.insnDefs;
+		operandSpec = input.operandSpec;
+		ruleSets = input.ruleSets;
+	}
+
+	/**
+	 * Returns the rule sets given to the synthesisers, one for each
+	 * instruction.
+	 */
+	public List<RuleSet> getRuleSets() {
+		return ruleSets;
+	}
+
+	/**
+	 * Returns a fresh context for the i-th instruction.
+	 */
+	public SynthesisContext makeContext(int i) {
+		return new SynthesisContext(typeDef, insnDefs.get(i).name, option);
+	}
+}
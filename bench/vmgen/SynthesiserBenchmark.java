@@ -0,0 +1,103 @@
+/*
+   SynthesiserBenchmark.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Synthesis of the dispatch of the instructions of an instruction
+ * definition file from their rule sets, by each of the synthesisers
+ * InsnGen can use (none of the options given).  The old synthesisers
+ * print their passes when PRINT_PASS is set; this is measured as it is
+ * part of running them, but the output is discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SynthesiserBenchmark {
+	@Param({"datatype/full.dtdef"})
+	public String dtdef;
+
+	@Param({"add", "bitand", "bitor", "call", "div", "eq", "equal", "getprop",
+		"leftshift", "lessthan", "lessthanequal", "mod", "mul", "new",
+		"rightshift", "setprop", "sub", "tailcall", "unsignedrightshift"})
+	public String idef;
+
+	@Param({"default", "simple", "old"})
+	public String compiler;
+
+	SynthesisInput input;
+	Synthesiser[] synthesisers;
+	PrintStream stdout;
+
+	@Setup
+	public void setup() throws Exception {
+		input = new SynthesisInput(dtdef, "idefs/" + idef + ".idef");
+		/* each trial runs in a JVM of its own */
+		if (compiler.equals("default"))
+			InsnGen.compiler = InsnGen.COMPILER_DEFAULT;
+		else if (compiler.equals("simple"))
+			InsnGen.compiler = InsnGen.COMPILER_SIMPLE;
+		else if (compiler.equals("old"))
+			InsnGen.compiler = InsnGen.COMPILER_OLD;
+		else
+			throw new Error("unknown compiler: " + compiler);
+		synthesisers = new Synthesiser[input.insnDefs.size()];
+		for (int i = 0; i < synthesisers.length; i++)
+			synthesisers[i] = InsnGen.createSynthesiser(input.insnDefs.get(i));
+	}
+
+	@Setup
+	public void discardOutput() {
+		stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	@TearDown
+	public void restoreOutput() {
+		System.setOut(stdout);
+	}
+
+	@Benchmark
+	public void synthesise(Blackhole bh) throws Exception {
+		for (int i = 0; i < synthesisers.length; i++) {
+			StringBuilder out = new StringBuilder();
+			synthesisers[i].synthesise(input.ruleSets.get(i), input.makeContext(i), out);
+			bh.consume(out);
+		}
+	}
+}
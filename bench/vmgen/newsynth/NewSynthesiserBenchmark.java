@@ -0,0 +1,125 @@
+/*
+   NewSynthesiserBenchmark.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+ */
+package vmgen.newsynth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import vmgen.RuleSet;
+import vmgen.SynthesisInput;
+
+/**
+ * Stages of NewSynthesiser, each measured on all instructions of an
+ * instruction definition file: conversion of the rules to low level
+ * rules, construction of the decision diagram followed by a list of
+ * optimisation passes, and code generation from the optimised diagram.
+ * The passes change the diagram, so each invocation builds it afresh;
+ * the time of the passes is the score of their list less that of the
+ * empty list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NewSynthesiserBenchmark {
+    @Param({"datatype/full.dtdef"})
+    public String dtdef;
+
+    @Param({"add", "bitand", "bitor", "call", "div", "eq", "equal", "getprop",
+        "leftshift", "lessthan", "lessthanequal", "mod", "mul", "new",
+        "rightshift", "setprop", "sub", "tailcall", "unsignedrightshift"})
+    public String idef;
+
+    SynthesisInput input;
+    List<LLRuleSet> llRuleSets = new ArrayList<LLRuleSet>();
+    List<DecisionDiagram> optimised = new ArrayList<DecisionDiagram>();
+
+    @Setup
+    public void setup() throws Exception {
+        input = new SynthesisInput(dtdef, "idefs/" + idef + ".idef");
+        for (RuleSet hlrs: input.getRuleSets())
+            llRuleSets.add(new LLRuleSet(hlrs, input.typeDef));
+        for (int i = 0; i < llRuleSets.size(); i++) {
+            DecisionDiagram dd = makeDiagram(i);
+            new PassManager("MR:S".split(":"), input.option).run(dd);
+            optimised.add(dd);
+        }
+    }
+
+    /* the dispatch plan of NewSynthesiser.synthesise with the tag pair */
+    static List<DecisionDiagram.DispatchCriterion> dispatchPlan(int arity) {
+        List<DecisionDiagram.DispatchCriterion> plan = new ArrayList<DecisionDiagram.DispatchCriterion>();
+        int firstPT = 0;
+        if (arity >= 2) {
+            plan.add(new DecisionDiagram.TagPairDispatch());
+            firstPT = 2;
+        }
+        for (int i = firstPT; i < arity; i++)
+            plan.add(new DecisionDiagram.PTDispatch(i));
+        for (int i = 0; i < arity; i++)
+            plan.add(new DecisionDiagram.HTDispatch(i));
+        return plan;
+    }
+
+    DecisionDiagram makeDiagram(int i) {
+        RuleSet hlrs = input.getRuleSets().get(i);
+        return new DecisionDiagram(dispatchPlan(hlrs.getArity()), llRuleSets.get(i), input.makeContext(i));
+    }
+
+    @Benchmark
+    public void llRuleSet(Blackhole bh) {
+        for (RuleSet hlrs: input.getRuleSets())
+            bh.consume(new LLRuleSet(hlrs, input.typeDef));
+    }
+
+    @State(Scope.Thread)
+    public static class Passes {
+        /* S is run after MR as in the default list of passes */
+        @Param({"", "MR", "MC", "MR:S"})
+        public String passes;
+    }
+
+    @Benchmark
+    public void optimise(Passes p, Blackhole bh) {
+        for (int i = 0; i < llRuleSets.size(); i++) {
+            DecisionDiagram dd = makeDiagram(i);
+            new PassManager(p.passes.split(":"), input.option).run(dd);
+            bh.consume(dd);
+        }
+    }
+
+    @Benchmark
+    public void generateCode(Blackhole bh) throws IOException {
+        for (int i = 0; i < optimised.size(); i++) {
+            StringBuilder out = new StringBuilder();
+            optimised.get(i).generateCode(input.getRuleSets().get(i).getDispatchVars(),
+                                          new NewSynthesiser().new TagMacro(input.makeContext(i)), out);
+            bh.consume(out);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+   AcceptAllInput.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Scanner;
+
+import vmgen.type.TypeDefinition;
+
+/**
+ * The instructions of an instruction definition file and their rule
+ * sets under operand specifications that accept every tuple of operand
+ * types, so that the whole dispatch of each instruction is synthesised.
+ * Tests and benchmarks take their input from here.
+ */
+class AcceptAllInput {
+	final TypeDefinition typeDef = new TypeDefinition();
+	final List<ProcDefinition.InstDefinition> insnDefs;
+	/* the operand specifications in the syntax of their file */
+	final String operandSpecSource;
+	final OperandSpecifications operandSpec;
+	final List<RuleSet> ruleSets = new ArrayList<RuleSet>();
+
+	AcceptAllInput(String dtdefFile, String idefFile) throws FileNotFoundException {
+		typeDef.load(dtdefFile);
+		insnDefs = new ProcDefinition(typeDef).load(idefFile);
+
+		StringBuilder sb = new StringBuilder();
+		for (ProcDefinition.InstDefinition insnDef: insnDefs) {
+			sb.append(insnDef.name).append(" (");
+			for (int i = 0; i < insnDef.dispatchVars.length; i++)
+				sb.append(i == 0 ? "_" : ", _");
+			sb.append(") accept\n");
+		}
+		operandSpecSource = sb.toString();
+		operandSpec = new OperandSpecifications(typeDef);
+		operandSpec.load(new Scanner(operandSpecSource));
+
+		for (ProcDefinition.InstDefinition insnDef: insnDefs)
+			ruleSets.add(InsnGen.makeRuleSet(insnDef, operandSpec, new LinkedHashSet<String>()));
+	}
+}
@@ -11,21 +11,34 @@
 */
 package vmgen;
 import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import vmgen.type.TypeDefinition;
 import vmgen.type.VMDataType;
 
 
 
 public class DslParser {
+	TypeDefinition typeDef;
+	/* data types in define order; bit indices of Condition */
+	List<VMDataType> dataTypes;
+
+	public DslParser(TypeDefinition typeDef) {
+		this.typeDef = typeDef;
+		this.dataTypes = typeDef.allDataTypes();
+	}
+
 	static class ParseErrorException extends Exception {
-		public ParseErrorException(String msg) {
-			super("Instruction DSL parser: "+msg);
+		public ParseErrorException(String fileName, int line, int column, String msg) {
+			super(fileName+":"+line+":"+column+": "+msg);
 		}
 	}
 
@@ -60,11 +73,7 @@ public class DslParser {
             sb.append("InstDef:(");
             sb.append("id:" + id + ",");
             sb.append("vars:(");
-            if (vars.length == 1) {
-                sb.append(vars[0]);
-            } else if (vars.length == 2) {
-                sb.append(vars[0] + "," + vars[1]);
-            }
+            sb.append(String.join(",", vars));
             sb.append(")");
             if (prologue != null) {
                 sb.append("prologue:(" + prologue + ")");
@@ -82,351 +91,119 @@ public class DslParser {
         }
     }
 
-    class Condition {}
-    enum ConditionalOp { AND, OR, NOT }
-    class CompoundCondition extends Condition {
-        ConditionalOp op;
-        Condition cond1, cond2;
-        CompoundCondition(ConditionalOp op, Condition cond1, Condition cond2) {
-            this.op = op;
-            this.cond1 = cond1;
-            this.cond2 = cond2;
-        }
-        public String toString() {
-            return "CompoundCondition(" + op + "," + cond1 + "," + cond2 + ")";
-        }
-    }
-    class AtomCondition extends Condition {
-        String varName;
-        int varIdx;
-        VMDataType t;
-        AtomCondition(String varName, String tname) {
-            this(varName, VMDataType.get(tname));
-        }
-        AtomCondition(String varName, VMDataType t) {
-            this.varName = varName;
-            this.t = t;
-        }
-        public String toString() {
-            return "AtomCondition(" + varName + "(" + varIdx + "):" + t.getName() + ")";
+    /**
+     * A \when condition as a union of cubes.  A cube gives, for each
+     * operand, the set of data types the operand may have as a bitset over
+     * dataTypes, or null if the condition does not look at the operand.
+     * Conjunction intersects cubes and disjunction adds them, merging
+     * cubes that differ in one operand only.  Thus
+     *   (v1:a || v1:b) && (v2:c || v2:d)
+     * is the single cube {a,b} x {c,d}; nothing is expanded until the
+     * rules are built.
+     */
+    class Condition {
+        final int arity;
+        final List<BitSet[]> cubes = new ArrayList<BitSet[]>();
+
+        Condition(int arity) {
+            this.arity = arity;
         }
-    }
-
-    class Idx { int n; Idx(int n) { this.n = n; } }
 
-    void checkToken(Token tk, TokenId tkId) throws ParseErrorException {
-        checkToken(tk, tkId, null);
-    }
-    void checkToken(Token tk, TokenId tkId, String raw) throws ParseErrorException {
-        if (tk != null && tk.id == tkId) {
-            if (raw == null) return;
-            else if (raw.equals(tk.raw)) return;
+        Condition(int arity, int varIdx, VMDataType t) {
+            this(arity);
+            BitSet[] cube = new BitSet[arity];
+            cube[varIdx] = new BitSet();
+            cube[varIdx].set(dataTypes.indexOf(t));
+            cubes.add(cube);
         }
-        throw new ParseErrorException("unexpected token: "+tk.raw);
-    }
 
-    private void convertConditionToDNFStep2(Condition condition) {
-        if (condition instanceof AtomCondition) return;
-        CompoundCondition cond = (CompoundCondition) condition;
-        if (cond.op == ConditionalOp.NOT) return;
-        else if (cond.op == ConditionalOp.AND) {
-            boolean b = true;
-            if (cond.cond1 instanceof CompoundCondition) {
-                CompoundCondition cond1 = (CompoundCondition) cond.cond1;
-                if (cond1.op == ConditionalOp.OR) {
-                    Condition c = cond.cond2;
-                    cond.cond1 = new CompoundCondition(ConditionalOp.AND, cond1.cond1, c);
-                    cond.cond2 = new CompoundCondition(ConditionalOp.AND, cond1.cond2, c);
-                    cond.op = ConditionalOp.OR;
+        Condition and(Condition that) {
+            Condition c = new Condition(arity);
+            for (BitSet[] c1: cubes)
+                NEXT_CUBE: for (BitSet[] c2: that.cubes) {
+                    BitSet[] cube = new BitSet[arity];
+                    for (int i = 0; i < arity; i++) {
+                        if (c1[i] == null)
+                            cube[i] = c2[i];
+                        else if (c2[i] == null)
+                            cube[i] = c1[i];
+                        else {
+                            cube[i] = (BitSet) c1[i].clone();
+                            cube[i].and(c2[i]);
+                            if (cube[i].isEmpty())
+                                continue NEXT_CUBE;
+                        }
+                    }
+                    c.addCube(cube);
                 }
-            }
-            if (cond.cond2 instanceof CompoundCondition) {
-                CompoundCondition cond2 = (CompoundCondition) cond.cond2;
-                if (b && cond2.op == ConditionalOp.OR) {
-                    Condition c = cond.cond1;
-                    cond.cond1 = new CompoundCondition(ConditionalOp.AND, c, cond2.cond1);
-                    cond.cond2 = new CompoundCondition(ConditionalOp.AND, c, cond2.cond2);
-                    cond.op = ConditionalOp.OR;
-                }
-            }
-        }
-        convertConditionToDNFStep2(cond.cond1);
-        convertConditionToDNFStep2(cond.cond2);
-    }
-
-    void convertConditionToDNF(Condition cond) {
-        convertConditionToDNFStep2(cond);
-    }
-/*
-    Condition parseCompoundCondition_(Token[] tks, Idx idx, ConditionalOp op) throws Exception {
-        Idx idx1 = new Idx(idx.n);
-        Condition c1, c2;
-        c1 = parseParenthesisCondition(tks, idx1);
-        if (c1 == null) {
-            c1 = parseAtomCondition(tks, idx1);
-            if (c1 == null) return null;
-        }
-        if (idx1.n >= tks.length) return null;
-        if (tks[idx1.n].id == TokenId.COND_OP) {
-            if (!(op == ConditionalOp.AND && tks[idx1.n].raw.equals("&&") ||
-                  op == ConditionalOp.OR  && tks[idx1.n].raw.equals("||"))) {
-                return null;
-            }
-        } else return null;
-        idx1.n++;
-        c2 = parseCondition(tks, idx1);
-        if (c2 == null) return null;
-        idx.n = idx1.n;
-        return new CompoundCondition(op, c1, c2);
-    }
-
-    Condition parseCompoundCondition(Token[] tks, Idx idx) throws Exception {
-        Idx idx1 = new Idx(idx.n);
-        Condition c = null;
-        c = parseCompoundCondition_(tks, idx1, ConditionalOp.AND);
-        if (c != null) {
-            idx.n = idx1.n;
-            return c;
-        }
-        c = parseCompoundCondition_(tks, idx1, ConditionalOp.OR);
-        if (c != null) {
-            idx.n = idx1.n;
             return c;
         }
-        return null;
-    }
-
-    Condition parseParenthesisCondition(Token[] tks, Idx idx) throws Exception {
-        if (idx.n >= tks.length) return null;
-        Idx idx1 = new Idx(idx.n);
-        if (tks[idx1.n].id != TokenId.PARENTHESES) return null;
-        if (!tks[idx1.n].raw.equals("(")) return null;
-        idx1.n++;
-        Condition c = parseCondition(tks, idx1);
-        if (c == null) return null;
-        if (idx1.n >= tks.length) return null;
-        if (tks[idx1.n].id != TokenId.PARENTHESES) return null;
-        if (!tks[idx1.n].raw.equals(")")) return null;
-        idx1.n++;
-        idx.n = idx1.n;
-        return c;
-    }
-
-    Condition parseAtomCondition(Token[] tks, Idx idx) throws Exception {
-        int i = idx.n;
-        if (tks[i].id != TokenId.STRING) return null;
-        if (tks[i+1].id != TokenId.COLON) return null;
-        if (tks[i+2].id != TokenId.STRING) return null;
-
-        DataType dt = DataType.get(tks[i+2].raw);
-        if (dt == null) { System.out.println("dt is null"); throw new Exception(); }
-        idx.n = i + 3;
-        return new AtomCondition(tks[i].raw, tks[i+2].raw);
-    }
-
-    Condition parseCondition(Token[] tks, Idx idx) throws Exception {
-        Idx idx1 = new Idx(idx.n);
-        Condition c;
-        c = parseCompoundCondition(tks, idx1);
-        if (c != null) { idx.n = idx1.n; return c; }
-        c = parseParenthesisCondition(tks, idx1);
-        if (c != null) { idx.n = idx1.n; return c; }
-        c = parseAtomCondition(tks, idx1);
-        if (c != null) { idx.n = idx1.n; return c; }
-        return null;
-    }
-    */
-
-    Condition parseConditionAtom(Token[] tks, Idx idx) throws Exception {
-        if (idx.n >= tks.length) return null;
-        if (tks[idx.n].id == TokenId.PARENTHESES) {
-            Idx idx1 = new Idx(idx.n);
-            if (!tks[idx1.n].raw.equals("(")) return null;
-            idx1.n++;
-            Condition c = parseCondition(tks, idx1);
-            if (c == null) return null;
-            if (idx1.n >= tks.length) return null;
-            if (tks[idx1.n].id != TokenId.PARENTHESES) return null;
-            if (!tks[idx1.n].raw.equals(")")) return null;
-            idx1.n++;
-            idx.n = idx1.n;
-            return c;
-        } else {
-            int i = idx.n;
-            if (tks[i].id != TokenId.STRING) return null;
-            if (tks[i+1].id != TokenId.COLON) return null;
-            if (tks[i+2].id != TokenId.STRING) return null;
-            VMDataType dt = VMDataType.get(tks[i+2].raw);
-            if (dt == null) { System.out.println("dt is null"); throw new Exception(); }
-            idx.n = i + 3;
-            return new AtomCondition(tks[i].raw, tks[i+2].raw);
-        }
-    }
-
-    CompoundCondition parseConditionTerm_(Token[] tks, Idx idx) throws Exception {
-        if (idx.n >= tks.length) return null;
-        if (tks[idx.n].id == TokenId.COND_OP && tks[idx.n].raw.equals("&&")) {
-            Idx idx1 = new Idx(idx.n);
-            idx1.n++;
-            Condition r = parseConditionTerm(tks, idx1);
-            if (r == null) {
-                System.out.println("condition parse error");
-                throw new Exception();
-            }
-            idx.n = idx1.n;
-            return new CompoundCondition(ConditionalOp.AND, null, r);
-        } else {
-            return null;
-        }
-    }
 
-    Condition parseConditionTerm(Token[] tks, Idx idx) throws Exception {
-        if (idx.n >= tks.length) return null;
-        Idx idx1 = new Idx(idx.n);
-        Condition a = parseConditionAtom(tks, idx1);
-        CompoundCondition c = parseConditionTerm_(tks, idx1);
-        if (c == null) {
-            idx.n = idx1.n;
-            return a;
-        }
-        else {
-            c.cond1 = a;
-            idx.n = idx1.n;
+        Condition or(Condition that) {
+            Condition c = new Condition(arity);
+            for (BitSet[] cube: cubes)
+                c.addCube(cube);
+            for (BitSet[] cube: that.cubes)
+                c.addCube(cube);
             return c;
         }
-    }
-
-    Condition parseCondition_(Token[] tks, Idx idx) throws Exception {
-        if (idx.n >= tks.length) return null;
-        if (tks[idx.n].id == TokenId.COND_OP && tks[idx.n].raw.equals("||")) {
-            Idx idx1 = new Idx(idx.n);
-            idx1.n++;
-            Condition r = parseCondition(tks, idx1);
-            if (r == null) {
-                System.out.println("condition parse error");
-                throw new Exception();
-            }
-            idx.n = idx1.n;
-            return new CompoundCondition(ConditionalOp.OR, null, r);
-        } else {
-            return null;
-        }
-    }
 
-    Condition parseCondition(Token[] tks, Idx idx) throws Exception {
-        if (idx.n >= tks.length) return null;
-        Idx idx1 = new Idx(idx.n);
-        Condition t, c;
-        t = parseConditionTerm(tks, idx1);
-        c = parseCondition_(tks, idx1);
-        if (c == null) {
-            idx.n = idx1.n;
-            return t;
-        } else {
-            if (c instanceof CompoundCondition) {
-                CompoundCondition cc = (CompoundCondition) c;
-                cc.cond1 = t;
-                idx.n = idx1.n;
-                return cc;
-            } else {
-                System.out.println("condition parse error");
-                throw new Exception();
+        /* A cube equal to one already there is dropped on purpose, and
+         * one that differs from another only in the types of one operand
+         * is merged into it.  A condition repeated within a clause is
+         * thus not reported; unlike the same condition given in two
+         * clauses (see ProcDefinition.build), it cannot make a tuple
+         * choose between two bodies. */
+        private void addCube(BitSet[] cube) {
+            for (int k = 0; k < cubes.size(); k++) {
+                BitSet[] e = cubes.get(k);
+                int diff = -1;
+                boolean mergeable = true;
+                for (int i = 0; i < arity && mergeable; i++) {
+                    if (e[i] == null || cube[i] == null)
+                        mergeable = e[i] == cube[i];
+                    else if (!e[i].equals(cube[i])) {
+                        mergeable = diff == -1;
+                        diff = i;
+                    }
+                }
+                if (!mergeable)
+                    continue;
+                if (diff != -1) {
+                    BitSet[] merged = e.clone();
+                    merged[diff] = (BitSet) e[diff].clone();
+                    merged[diff].or(cube[diff]);
+                    cubes.set(k, merged);
+                }
+                return;
             }
+            cubes.add(cube);
         }
-    }
 
-    void assignVarIdx(String[] vars, Condition cond) throws ParseErrorException {
-        if (cond instanceof AtomCondition) {
-            AtomCondition c = (AtomCondition) cond;
-            c.varIdx = -1;
-            for (int i = 0; i < vars.length; i++) {
-                if (c.varName.equals(vars[i]))
-                    c.varIdx = i;
-            }
-            if (c.varIdx == -1) throw new ParseErrorException("assignVarIdx error: "+c.varName);
-        } else if (cond instanceof CompoundCondition) {
-            CompoundCondition c = (CompoundCondition) cond;
-            if (c.op == ConditionalOp.AND || c.op == ConditionalOp.OR) {
-                assignVarIdx(vars, c.cond1);
-                assignVarIdx(vars, c.cond2);
-            } else {
-                assignVarIdx(vars, c.cond1);
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (BitSet[] cube: cubes) {
+                if (sb.length() > 0)
+                    sb.append(" || ");
+                sb.append("(");
+                for (int i = 0; i < arity; i++) {
+                    if (i > 0)
+                        sb.append(" x ");
+                    if (cube[i] == null)
+                        sb.append("*");
+                    else {
+                        sb.append("{");
+                        for (int b = cube[i].nextSetBit(0); b >= 0; b = cube[i].nextSetBit(b + 1))
+                            sb.append(dataTypes.get(b).getName()).append(cube[i].nextSetBit(b + 1) >= 0 ? "," : "");
+                        sb.append("}");
+                    }
+                }
+                sb.append(")");
             }
+            return sb.toString();
         }
     }
 
-    Condition parseConditionTokens(String[] vars, LinkedList<Token> tks) throws ParseErrorException {
-        LinkedList<Token> conditionTks = new LinkedList<Token>();
-        while (tks.getFirst().id != TokenId.CPROGRAM) {
-            conditionTks.add(tks.pollFirst());
-        }
-        Condition c = null;
-        Idx idx = new Idx(0);
-        try {
-            c = parseCondition(conditionTks.toArray(new Token[conditionTks.size()]), idx);
-        } catch (Exception e) {
-            System.out.println("condition parse error!!!");
-        }
-        convertConditionToDNF(c);
-        assignVarIdx(vars, c);
-        return c;
-    }
-
-    InstDef parse(List<Token> _tks) throws ParseErrorException {
-        InstDef instDef = null;
-        LinkedList<Token> tks = new LinkedList<Token>(_tks);
-            checkToken(tks.pollFirst(), TokenId.KEY_INST);
-            Token id = tks.pollFirst();
-            checkToken(id, TokenId.STRING);
-            checkToken(tks.pollFirst(), TokenId.PARENTHESES, "(");
-            Token op1 = tks.pollFirst();
-            Token t = tks.pollFirst();
-            String[] vars = null;
-            if (t.id == TokenId.COMMA) {
-                Token op2 = tks.pollFirst();
-                checkToken(op1, TokenId.STRING);
-                checkToken(op2, TokenId.STRING);
-                checkToken(tks.pollFirst(), TokenId.PARENTHESES, ")");
-                vars = new String[] { op1.raw, op2.raw };
-            } else if (t.id == TokenId.PARENTHESES) {
-                checkToken(op1, TokenId.STRING);
-                checkToken(t, TokenId.PARENTHESES, ")");
-                vars = new String[] { op1.raw };
-            }
-            instDef = new InstDef(id.raw, vars);
-            while (!tks.isEmpty()) {
-                Token tk = tks.pollFirst();
-                switch (tk.id) {
-                case KEY_WHEN: {
-                    Condition c = parseConditionTokens(vars, tks);
-                    Token cprog = tks.pollFirst();
-                    checkToken(cprog, TokenId.CPROGRAM);
-                    instDef.whenClauses.add(new WhenClause(c, cprog.raw));
-                } break;
-                case KEY_OTHERWISE: {
-                    Token cprog = tks.pollFirst();
-                    checkToken(cprog, TokenId.CPROGRAM);
-                    instDef.whenClauses.add(new WhenClause(null, cprog.raw));
-                } break;
-                case KEY_PROLOGUE: {
-                    Token cprog = tks.pollFirst();
-                    checkToken(cprog, TokenId.CPROGRAM);
-                    instDef.prologue = cprog.raw;
-                } break;
-                case KEY_EPILOGUE: {
-                    Token cprog = tks.pollFirst();
-                    checkToken(cprog, TokenId.CPROGRAM);
-                    instDef.epilogue = cprog.raw;
-                } break;
-                case KEY_INST: break;
-                default: {
-                	throw new ParseErrorException("unexpected token: "+ tk.raw);
-                }
-                }
-            }
-        return instDef;
-    }
-    
     void appendParamDefIfNecessary(StringBuilder prologue, StringBuilder epilogue, String name, String def) {
     	if (name.equals(def))
     		return;
@@ -439,235 +216,392 @@ public class DslParser {
     	        .append(name)
     	        .append("\n");
     }
-    InstDef newParse(List<Token> _tks) throws ParseErrorException {
-        InstDef instDef = null;
-        LinkedList<Token> tks = new LinkedList<Token>(_tks);
-        checkToken(tks.pollFirst(), TokenId.KEY_INST);
-        Token id = tks.pollFirst();
-        checkToken(id, TokenId.STRING);
-
-        checkToken(tks.pollFirst(), TokenId.PARENTHESES, "(");
-        List<String> valVars = new LinkedList<String>();
-        StringBuilder prologue = new StringBuilder();
-        StringBuilder epilogue = new StringBuilder();
-        String[] vars = null;
-        for (int order = 0; ; order++) {
-        	Token t = tks.pollFirst();            	
-        	if (t.id == TokenId.STRING) {
-        		Token n = tks.pollFirst();
-        		checkToken(n, TokenId.STRING);
-        		if (t.raw.equals("Register"))
-        			appendParamDefIfNecessary(prologue, epilogue, n.raw, "regbase[r"+order+"]");
-        		else if (t.raw.equals("Value")) {
-        			appendParamDefIfNecessary(prologue, epilogue, n.raw, "v"+order);
-        			valVars.add(n.raw);
-        		} else if (t.raw.equals("Subscript"))
-        			appendParamDefIfNecessary(prologue, epilogue, n.raw, "s"+order);
-        		else if (t.raw.equals("Immediate"))
-        			appendParamDefIfNecessary(prologue, epilogue, n.raw, "i"+order);
-        		else if (t.raw.equals("Displacement"))
-        			appendParamDefIfNecessary(prologue, epilogue, n.raw, "d"+order);
-        		else
-        			throw new ParseErrorException("invalid parameter type: "+n.raw);
-        		t = tks.pollFirst();
-        	}            			
-        	if (t.raw.equals(")")) {
-        		vars = valVars.toArray(new String[]{});
-        		break;
-        	}
-        	checkToken(t, TokenId.COMMA);
-        }
-        instDef = new InstDef(id.raw, vars);
-
-        while (!tks.isEmpty()) {
-            Token tk = tks.pollFirst();
-            switch (tk.id) {
-            case KEY_WHEN: {
-                Condition c = parseConditionTokens(vars, tks);
-                Token cprog = tks.pollFirst();
-                checkToken(cprog, TokenId.CPROGRAM);
-                instDef.whenClauses.add(new WhenClause(c, cprog.raw));
-            } break;
-            case KEY_OTHERWISE: {
-                Token cprog = tks.pollFirst();
-                checkToken(cprog, TokenId.CPROGRAM);
-                instDef.whenClauses.add(new WhenClause(null, cprog.raw));
-            } break;
-            case KEY_PROLOGUE: {
-                Token cprog = tks.pollFirst();
-                checkToken(cprog, TokenId.CPROGRAM);
-                prologue.append(cprog.raw);
-            } break;
-            case KEY_EPILOGUE: {
-                Token cprog = tks.pollFirst();
-                checkToken(cprog, TokenId.CPROGRAM);
-                epilogue.append(cprog.raw);
-            } break;
-            case KEY_INST: break;
-            default: {
-            	throw new ParseErrorException("unexpected token: "+ tk.raw);
-            }
-            }
-        }
-        instDef.prologue = prologue.toString();
-        instDef.epilogue = epilogue.toString();
-        return instDef;
-    }
 
     enum TokenId {
-    	COMMENT,
         COLON,
         COMMA,
-        PARENTHESES,
+        LPAREN,
+        RPAREN,
+        AND,
+        OR,
         KEY_INST,
         KEY_PROLOGUE,
         KEY_EPILOGUE,
         KEY_WHEN,
         KEY_OTHERWISE,
         STRING,
-        COND_OP,
         CPROGRAM,
+        EOF,
     }
     static class Token {
         TokenId id;
         String raw;
-        Token(TokenId id, String raw) {
+        int line, column;
+        Token(TokenId id, String raw, int line, int column) {
             this.id = id;
             this.raw = raw;
+            this.line = line;
+            this.column = column;
+        }
+        String describe() {
+            switch (id) {
+            case CPROGRAM: return "C program";
+            case EOF:      return "end of file";
+            default:       return "`" + raw + "'";
+            }
         }
         public String toString() {
             return "id: " + id + ", " + "raw: " + raw;
         }
     }
-    
-    static class Tokenizer {
-    	static class TokenizeRule {
-    		Pattern compiled;
-    		String pattern;
-    		TokenId id;
-    		public TokenizeRule(TokenId id, String pattern) {
-    			this.compiled = Pattern.compile(pattern, Pattern.MULTILINE);
-    			this.pattern = pattern;
-    			this.id = id;
-    		}
-    		boolean match(String str) {
-    			return compiled.matcher(str).matches();
-    		}
-    		public Token makeTokenIfMatch(String str) {
-    			if (match(str))
-    				return new Token(id, str);
-    			return null;
-    		}
-    		public String getPattern() {
-    			return pattern;
-    		}
-    		public TokenId getId() {
-    			return id;
-    		}
-    	}
-    	
-    	static class CProgramTokenizeRule extends TokenizeRule{
-			public CProgramTokenizeRule(TokenId id, String pattern) {
-				super(id, pattern);
-			}
-    		@Override
-    		public Token makeTokenIfMatch(String str) {
-    			if (match(str))
-    				return new Token(id, str.substring(2, str.length() - 2));
-    			return null;
-    		}
-
-    	}
-    	
-    	static TokenizeRule[] rules = new TokenizeRule[] {
-    			new TokenizeRule(TokenId.COMMENT, "\\\\\\\\.*$"),
-    			new TokenizeRule(TokenId.COMMA, ","),
-    			new TokenizeRule(TokenId.COLON, ":"),
-    			new TokenizeRule(TokenId.COND_OP, "&&"),
-    			new TokenizeRule(TokenId.COND_OP, "\\|\\|"),
-    			new TokenizeRule(TokenId.PARENTHESES, "\\("),
-    			new TokenizeRule(TokenId.PARENTHESES, "\\)"),
-    			new CProgramTokenizeRule(TokenId.CPROGRAM, "\\\\\\{(.|\\n)*?\\\\\\}"),
-    			new TokenizeRule(TokenId.KEY_INST, "\\\\inst"),
-    			new TokenizeRule(TokenId.KEY_PROLOGUE, "\\\\prologue"),
-    			new TokenizeRule(TokenId.KEY_EPILOGUE, "\\\\epilogue"),
-    			new TokenizeRule(TokenId.KEY_WHEN, "\\\\when"),
-    			new TokenizeRule(TokenId.KEY_OTHERWISE, "\\\\otherwise"),
-    			new TokenizeRule(TokenId.STRING, "\\w+")
-    	};
-
-    	static final Pattern ptn;
-
-    	static {
-        	StringBuilder tksBuilder = new StringBuilder();
-        	for (TokenizeRule r: rules)
-        		tksBuilder.append(r.getPattern()).append("|");
-        	String tks = tksBuilder.substring(0, tksBuilder.length() - 1);
-            ptn = Pattern.compile(tks, Pattern.MULTILINE);
-    	}
-    	
-        List<Token> tokenize(String all) {
-            List<Token> tks = new LinkedList<Token>();
-            Matcher m = ptn.matcher(all);
-            while (m.find()) {
-                String s = m.group();
-                Token tk = null;
-                for (TokenizeRule r: rules) {
-                	tk = r.makeTokenIfMatch(s);
-                	if (tk != null)
-                		break;
+
+    /**
+     * Lexer of the instruction DSL.  Reads the input once, one character
+     * at a time, keeping the position of each token.  \\ starts a comment
+     * that lasts until the end of the line.  A C program is the text
+     * between \{ and the first \} after it.
+     */
+    static class Lexer {
+        final Reader in;
+        final String fileName;
+        int line = 1, column = 1;
+        int pushback = -2;    /* -2: none */
+
+        Lexer(Reader in, String fileName) {
+            this.in = in;
+            this.fileName = fileName;
+        }
+
+        ParseErrorException error(int line, int column, String msg) {
+            return new ParseErrorException(fileName, line, column, msg);
+        }
+
+        boolean afterCR;
+
+        int peek() throws IOException {
+            if (pushback == -2) {
+                pushback = in.read();
+                /* CR LF and CR are read as LF */
+                if (afterCR && pushback == '\n')
+                    pushback = in.read();
+                afterCR = pushback == '\r';
+                if (afterCR)
+                    pushback = '\n';
+            }
+            return pushback;
+        }
+
+        int read() throws IOException {
+            int c = peek();
+            pushback = -2;
+            if (c == '\n') {
+                line++;
+                column = 1;
+            } else if (c != -1)
+                column++;
+            return c;
+        }
+
+        static boolean isWordChar(int c) {
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+        }
+
+        String readWord() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (isWordChar(peek()))
+                sb.append((char) read());
+            return sb.toString();
+        }
+
+        Token next() throws IOException, ParseErrorException {
+            while (true) {
+                int c = peek();
+                int l = line, col = column;
+                if (c == -1)
+                    return new Token(TokenId.EOF, "", l, col);
+                if (Character.isWhitespace(c)) {
+                    read();
+                    continue;
+                }
+                if (isWordChar(c))
+                    return new Token(TokenId.STRING, readWord(), l, col);
+                read();
+                switch (c) {
+                case ',': return new Token(TokenId.COMMA, ",", l, col);
+                case ':': return new Token(TokenId.COLON, ":", l, col);
+                case '(': return new Token(TokenId.LPAREN, "(", l, col);
+                case ')': return new Token(TokenId.RPAREN, ")", l, col);
+                case '&':
+                case '|':
+                    if (peek() != c)
+                        throw error(l, col, "unexpected character `" + (char) c + "'");
+                    read();
+                    return c == '&' ?
+                        new Token(TokenId.AND, "&&", l, col) :
+                        new Token(TokenId.OR, "||", l, col);
+                case '\\':
+                    break;
+                default:
+                    throw error(l, col, "unexpected character `" + (char) c + "'");
+                }
+
+                /* backslash */
+                c = peek();
+                if (c == '\\') {
+                    while (c != '\n' && c != -1)
+                        c = read();
+                    continue;
                 }
-                if (tk == null)
-                    throw new Error("Parse error: " + s);
-                tks.add(tk);
+                if (c == '{') {
+                    read();
+                    return new Token(TokenId.CPROGRAM, readCProgram(l, col), l, col);
+                }
+                String word = readWord();
+                switch (word) {
+                case "inst":      return new Token(TokenId.KEY_INST, "\\inst", l, col);
+                case "prologue":  return new Token(TokenId.KEY_PROLOGUE, "\\prologue", l, col);
+                case "epilogue":  return new Token(TokenId.KEY_EPILOGUE, "\\epilogue", l, col);
+                case "when":      return new Token(TokenId.KEY_WHEN, "\\when", l, col);
+                case "otherwise": return new Token(TokenId.KEY_OTHERWISE, "\\otherwise", l, col);
+                default:
+                    throw error(l, col, "unknown keyword `\\" + word + "'");
+                }
+            }
+        }
+
+        String readCProgram(int l, int col) throws IOException, ParseErrorException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int c = read();
+                if (c == -1)
+                    throw error(l, col, "unterminated C program");
+                if (c == '\\' && peek() == '}') {
+                    read();
+                    return sb.toString();
+                }
+                sb.append((char) c);
             }
-            return tks;
         }
     }
-    String readAll(String fname) {
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new FileReader(fname))) {
-            String string = reader.readLine();
-            while (string != null){
-                sb.append(string + System.getProperty("line.separator"));
-                string = reader.readLine();
+
+    /**
+     * Recursive descent parser over the tokens of a Lexer with up to two
+     * tokens of lookahead.
+     */
+    class Parser {
+        final Lexer lexer;
+        Token tk;    /* current token */
+        Token la;    /* the token after tk, if it has been read */
+
+        Parser(Lexer lexer) throws IOException, ParseErrorException {
+            this.lexer = lexer;
+            tk = lexer.next();
+        }
+
+        ParseErrorException error(Token t, String msg) {
+            return lexer.error(t.line, t.column, msg);
+        }
+
+        ParseErrorException unexpected(Token t) {
+            return error(t, "unexpected " + t.describe());
+        }
+
+        Token lookahead() throws IOException, ParseErrorException {
+            if (la == null)
+                la = lexer.next();
+            return la;
+        }
+
+        Token advance() throws IOException, ParseErrorException {
+            Token t = tk;
+            if (la != null) {
+                tk = la;
+                la = null;
+            } else
+                tk = lexer.next();
+            return t;
+        }
+
+        Token expect(TokenId id) throws IOException, ParseErrorException {
+            if (tk.id != id)
+                throw unexpected(tk);
+            return advance();
+        }
+
+        List<InstDef> parseFile() throws IOException, ParseErrorException {
+            List<InstDef> instDefs = new ArrayList<InstDef>();
+            while (tk.id != TokenId.EOF)
+                instDefs.add(parseInst());
+            return instDefs;
+        }
+
+        /*
+         * Old syntax:  \inst name (v1, v2)
+         * New syntax:  \inst name (Register dst, Value v1, Value v2)
+         * They are told apart by the first two tokens in the parentheses.
+         */
+        InstDef parseInst() throws IOException, ParseErrorException {
+            expect(TokenId.KEY_INST);
+            String id = expect(TokenId.STRING).raw;
+            expect(TokenId.LPAREN);
+            if (tk.id == TokenId.STRING && lookahead().id != TokenId.STRING)
+                return parseOldInst(id);
+            return parseNewInst(id);
+        }
+
+        InstDef parseOldInst(String id) throws IOException, ParseErrorException {
+            List<String> vars = new ArrayList<String>();
+            vars.add(expect(TokenId.STRING).raw);
+            while (tk.id == TokenId.COMMA) {
+                advance();
+                vars.add(expect(TokenId.STRING).raw);
             }
-        } catch (IOException e) {
-            System.out.println(e);
-            return null;
+            expect(TokenId.RPAREN);
+            InstDef instDef = new InstDef(id, vars.toArray(new String[vars.size()]));
+            while (tk.id != TokenId.KEY_INST && tk.id != TokenId.EOF) {
+                Token key = advance();
+                switch (key.id) {
+                case KEY_PROLOGUE:
+                    instDef.prologue = expect(TokenId.CPROGRAM).raw;
+                    break;
+                case KEY_EPILOGUE:
+                    instDef.epilogue = expect(TokenId.CPROGRAM).raw;
+                    break;
+                default:
+                    parseClause(instDef, key);
+                }
+            }
+            return instDef;
+        }
+
+        InstDef parseNewInst(String id) throws IOException, ParseErrorException {
+            List<String> valVars = new ArrayList<String>();
+            StringBuilder prologue = new StringBuilder();
+            StringBuilder epilogue = new StringBuilder();
+            if (tk.id != TokenId.RPAREN) {
+                for (int order = 0; ; order++) {
+                    Token t = expect(TokenId.STRING);
+                    String n = expect(TokenId.STRING).raw;
+                    if (t.raw.equals("Register"))
+                        appendParamDefIfNecessary(prologue, epilogue, n, "regbase[r"+order+"]");
+                    else if (t.raw.equals("Value")) {
+                        appendParamDefIfNecessary(prologue, epilogue, n, "v"+order);
+                        valVars.add(n);
+                    } else if (t.raw.equals("Subscript"))
+                        appendParamDefIfNecessary(prologue, epilogue, n, "s"+order);
+                    else if (t.raw.equals("Immediate"))
+                        appendParamDefIfNecessary(prologue, epilogue, n, "i"+order);
+                    else if (t.raw.equals("Displacement"))
+                        appendParamDefIfNecessary(prologue, epilogue, n, "d"+order);
+                    else
+                        throw error(t, "invalid parameter type: "+t.raw);
+                    if (tk.id != TokenId.COMMA)
+                        break;
+                    advance();
+                }
+            }
+            expect(TokenId.RPAREN);
+            InstDef instDef = new InstDef(id, valVars.toArray(new String[valVars.size()]));
+            while (tk.id != TokenId.KEY_INST && tk.id != TokenId.EOF) {
+                Token key = advance();
+                switch (key.id) {
+                case KEY_PROLOGUE:
+                    prologue.append(expect(TokenId.CPROGRAM).raw);
+                    break;
+                case KEY_EPILOGUE:
+                    epilogue.append(expect(TokenId.CPROGRAM).raw);
+                    break;
+                default:
+                    parseClause(instDef, key);
+                }
+            }
+            instDef.prologue = prologue.toString();
+            instDef.epilogue = epilogue.toString();
+            return instDef;
+        }
+
+        void parseClause(InstDef instDef, Token key) throws IOException, ParseErrorException {
+            switch (key.id) {
+            case KEY_WHEN: {
+                Condition c = parseCondition(instDef.vars);
+                instDef.whenClauses.add(new WhenClause(c, expect(TokenId.CPROGRAM).raw));
+            } break;
+            case KEY_OTHERWISE:
+                instDef.whenClauses.add(new WhenClause(null, expect(TokenId.CPROGRAM).raw));
+                break;
+            default:
+                throw unexpected(key);
+            }
+        }
+
+        /*
+         * condition ::= term [ || condition ]
+         * term      ::= atom [ && term ]
+         * atom      ::= ( condition ) | var : type
+         */
+        Condition parseCondition(String[] vars) throws IOException, ParseErrorException {
+            Condition t = parseConditionTerm(vars);
+            if (tk.id != TokenId.OR)
+                return t;
+            advance();
+            return t.or(parseCondition(vars));
+        }
+
+        Condition parseConditionTerm(String[] vars) throws IOException, ParseErrorException {
+            Condition a = parseConditionAtom(vars);
+            if (tk.id != TokenId.AND)
+                return a;
+            advance();
+            return a.and(parseConditionTerm(vars));
+        }
+
+        Condition parseConditionAtom(String[] vars) throws IOException, ParseErrorException {
+            if (tk.id == TokenId.LPAREN) {
+                advance();
+                Condition c = parseCondition(vars);
+                expect(TokenId.RPAREN);
+                return c;
+            }
+            Token var = expect(TokenId.STRING);
+            expect(TokenId.COLON);
+            Token tname = expect(TokenId.STRING);
+            VMDataType dt = typeDef.getVMDataType(tname.raw, true);
+            if (dt == null)
+                throw error(tname, "unknown data type: "+tname.raw);
+            int varIdx = Arrays.asList(vars).lastIndexOf(var.raw);
+            if (varIdx == -1)
+                throw error(var, "unknown variable: "+var.raw);
+            return new Condition(vars.length, varIdx, dt);
         }
-        return sb.toString();
     }
 
-    public InstDef run(String fname) {
-        String all = readAll(fname);
-        List<Token> tks = new Tokenizer().tokenize(all);
-        try {
-        	InstDef instDef = parse(tks);
-        	return instDef;
-        } catch(ParseErrorException e) {
-        	try {
-        		System.out.println("new DSL syntax");
-        		InstDef instDef = newParse(tks);
-        		return instDef;
-        	} catch (ParseErrorException e2) {
-        		e2.printStackTrace();
-        		return null;
-        	}
+    /**
+     * Parses all instruction definitions in the input.
+     */
+    public List<InstDef> parse(Reader in, String fileName) throws IOException, ParseErrorException {
+        return new Parser(new Lexer(in, fileName)).parseFile();
+    }
+
+    public List<InstDef> run(String fname) {
+        try (Reader in = new BufferedReader(new FileReader(fname))) {
+            return parse(in, fname);
+        } catch (ParseErrorException e) {
+            throw new Error(e.getMessage());
+        } catch (IOException e) {
+            throw new Error("cannot read "+fname+": "+e.getMessage());
         }
     }
 
     public static void main(String[] args) {
-        DslParser dslp = new DslParser();
-        InstDef instDef = dslp.run("idefs/add.idef");
-         System.out.println(instDef);
-        /*
-        String all = dslp.readAll("idefs/sample.idef");
-        System.out.println(all);
-        System.out.println("============");
-        List<Token> tks = new Tokenizer().tokenize(all);
-        InstDef instDef = dslp.parse(tks);
-        System.out.println("##############");
-        System.out.println(instDef.toString());*/
+        TypeDefinition td = new TypeDefinition();
+        try {
+            td.load("datatype/new.dtdef");
+        } catch (FileNotFoundException e) {
+            System.out.println(e);
+            return;
+        }
+        DslParser dslp = new DslParser(td);
+        for (InstDef instDef: dslp.run(args.length > 0 ? args[0] : "idefs/add.idef"))
+            System.out.println(instDef);
     }
 }
@@ -9,27 +9,43 @@
      Hideya Iwasaki, 2016-18
 */
 package vmgen;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashMap;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import vmgen.RuleSet.Rule;
 import vmgen.newsynth.NewSynthesiser;
+import vmgen.newsynth.SubDiagramMemo;
 import vmgen.synth.SimpleSynthesiser;
 import vmgen.synth.SwitchSynthesiser;
 import vmgen.synth.TagPairSynthesiser;
 import vmgen.type.TypeDefinition;
 import vmgen.type.VMDataType;
+import vmgen.type.VMDataTypeVecSet;
 
 public class InsnGen {
 	public static class Option {
-		HashMap<AvailableOptions, Object> options = new HashMap<AvailableOptions, Object>();
+		EnumMap<AvailableOptions, Object> options = new EnumMap<AvailableOptions, Object>(AvailableOptions.class);
 		
 		public enum AvailableOptions {
 			CMP_MERGE_LEVEL("cmp:merge_level", Integer.class),
@@ -39,8 +55,13 @@ public class InsnGen {
 			CMP_SIZE_INCREASING_MERGE("cmp:size_increasing_merge", Boolean.class),
 			CMP_CORRECT_COMPATIBILITY("cmp:correct_compatibility", Boolean.class),
 			CMP_RAND_SEED("cmp:rand_seed", Integer.class),
+			CMP_REUSE_SUBDIAGRAM("cmp:reuse_subdiagram", Boolean.class),
+			CMP_UNIQUE_TABLE("cmp:unique_table", Boolean.class),
+			CMP_OPT_ROUNDS("cmp:opt_rounds", Integer.class),
+			CMP_PASS_STATS("cmp:pass_stats", Boolean.class),
 			GEN_USE_GOTO("gen:use_goto", Boolean.class),
 			GEN_PAD_CASES("gen:pad_cases", Boolean.class),
+			GEN_PAD_LIMIT("gen:pad_limit", Integer.class),
 			GEN_USE_DEFAULT("gen:use_default", Boolean.class),
 			GEN_MAGIC_COMMENT("gen:magic_comment", Boolean.class),
 			GEN_DEBUG_COMMENT("gen:debug_comment", Boolean.class);
@@ -77,11 +98,52 @@ public class InsnGen {
 		}
 	}
 	
+	/**
+	 * A VM flavour: a type definition and the instruction definitions and
+	 * operand specifications read against its type universe.
+	 */
+	static class Flavour {
+		final String typeDefFile;
+		final String outDir;
+		final String typesFile;
+		TypeDefinition typeDef;
+		OperandSpecifications operandSpec;
+		List<ProcDefinition.InstDefinition> insnDefs;
+		/* instruction name -> sub-diagrams of its last synthesis */
+		final Map<String, SubDiagramMemo> subDiagramMemos = new ConcurrentHashMap<String, SubDiagramMemo>();
+
+		Flavour(String typeDefFile, String outDir, String typesFile) {
+			this.typeDefFile = typeDefFile;
+			this.outDir = outDir;
+			this.typesFile = typesFile;
+		}
+
+		void load() throws FileNotFoundException {
+			typeDef = new TypeDefinition();
+			typeDef.load(typeDefFile);
+
+			ProcDefinition procDef = new ProcDefinition(typeDef);
+			Set<String> names = new HashSet<String>();
+			for (String file: expandInsnDefFiles(insnDefFile))
+				for (ProcDefinition.InstDefinition insnDef: procDef.load(file))
+					if (!names.add(insnDef.name))
+						throw new Error("duplicate definition of instruction "+insnDef.name+" in "+file);
+			insnDefs = procDef.instDefs;
+
+			operandSpec = new OperandSpecifications(typeDef);
+			operandSpec.load(operandSpecFile);
+		}
+	}
+
 	static String typeDefFile;
 	static String insnDefFile;
+	static String typesFile;
+	static SynthesisCache cache;
+	static boolean watch;
 	static String operandSpecFile;
 	static String outDir;
 	static int compiler;
+	static int jobs;
 	static Option option = new Option();
 	
 	public static final int COMPILER_DEFAULT = 0;
@@ -94,10 +156,16 @@ public class InsnGen {
 		int i = 0;
 		
 		compiler = COMPILER_DEFAULT;
+		jobs = 1;
+		typesFile = null;
+		cache = null;
+		watch = false;
+		outDir = null;
 		
 		if (args.length == 0) {
 			typeDefFile = "datatype/genericfloat.def";
 			insnDefFile = "idefs/div.idef";
+			typesFile = null;
 			operandSpecFile = null;
 			outDir = null;
 			DEBUG = true;
@@ -112,6 +180,20 @@ public class InsnGen {
 				} else if (args[i].equals("-old")) {
 					compiler = COMPILER_OLD;
 					i++;
+				} else if (args[i].equals("-j")) {
+					jobs = Integer.parseInt(args[i + 1]);
+					if (jobs < 1)
+						throw new Exception("invalid number of jobs");
+					i += 2;
+				} else if (args[i].equals("-types")) {
+					typesFile = args[i + 1];
+					i += 2;
+				} else if (args[i].equals("--watch")) {
+					watch = true;
+					i++;
+				} else if (args[i].equals("-cache")) {
+					cache = new SynthesisCache(args[i + 1]);
+					i += 2;
 				} else if (args[i].startsWith("-X")){
 					i = option.addOption(args, i);
 					if (i == -1)
@@ -125,13 +207,30 @@ public class InsnGen {
 			operandSpecFile = args[i++];
 			if (i < args.length)
 				outDir = args[i++];
+			if (watch && outDir == null)
+				throw new Exception("--watch needs an output directory");
+			if (option.getOption(Option.AvailableOptions.CMP_PASS_STATS, false) && outDir == null)
+				throw new Exception("cmp:pass_stats needs an output directory");
+			if (typeDefFile.contains(File.pathSeparator)) {
+				if (outDir == null)
+					throw new Exception("several type definitions need an output directory");
+				if (watch)
+					throw new Exception("--watch takes a single type definition");
+			}
 		} catch (Exception e) {
-			System.out.println("InsnGen [-simple|-old] <type definition> <insn definition> <operand spec> [<out dir>]");
+			System.out.println("InsnGen [-simple|-old] [-j <jobs>] [-types <types header>] [-cache <dir>] [--watch] <type definition> <insn definition> <operand spec> [<out dir>]");
+			System.out.println("  <type definition> is a list of files separated by '"+File.pathSeparator+"'; with more than one, the code for X.dtdef goes to <out dir>/X");
+			System.out.println("  <insn definition> is a list of files, directories or glob patterns separated by '"+File.pathSeparator+"'");
 			System.exit(1);
 		}
 	}
 	
-	static String synthesise(ProcDefinition.InstDefinition insnDef, OperandSpecifications operandSpec, Synthesiser synth, boolean verbose) {
+	/**
+	 * Makes the rule set given to the synthesiser by applying operand
+	 * specifications to the rules of the instruction.  Actions that are
+	 * no longer reachable are added to unusedActions.
+	 */
+	static RuleSet makeRuleSet(ProcDefinition.InstDefinition insnDef, OperandSpecifications operandSpec, Set<String> unusedActions) {
 		/*
 		Set<VMDataType[]> dontCareInput = new HashSet<VMDataType[]>();
     	//dontCareInput.add(new VMDataType[]{VMDataType.get("string"), VMDataType.get("array")});
@@ -145,94 +244,334 @@ public class InsnGen {
     	*/
     	
     	String errorAction = "LOG_EXIT(\"unexpected operand type\\n\");";
-		Set<VMDataType[]> dontCareInput = operandSpec.getUnspecifiedOperands(insnDef.name, insnDef.dispatchVars.length);
-    	Set<VMDataType[]> errorInput = operandSpec.getErrorOperands(insnDef.name, insnDef.dispatchVars.length);
+		VMDataTypeVecSet dontCareInput = operandSpec.getUnspecifiedOperands(insnDef.name, insnDef.dispatchVars.length);
+		VMDataTypeVecSet errorConditions = operandSpec.getErrorOperands(insnDef.name, insnDef.dispatchVars.length);
     	
-		Set<Rule> rules = new HashSet<Rule>();
-		Set<String> unusedActions = new HashSet<String>();
-		Set<RuleSet.Condition> removeSet = new HashSet<RuleSet.Condition>();
-		Set<RuleSet.Condition> errorConditions = new HashSet<RuleSet.Condition>();
-		for (VMDataType[] dts: dontCareInput)
-			removeSet.add(new RuleSet.Condition(dts));
-		for (VMDataType[] dts: errorInput) {
-			RuleSet.Condition c = new RuleSet.Condition(dts);
-			removeSet.add(c);
-			errorConditions.add(c);
-		}
+		Set<Rule> rules = new LinkedHashSet<Rule>();
+		VMDataTypeVecSet removeSet = dontCareInput.union(errorConditions);
     	for (Rule r: insnDef.tdDef.rules) {
     		r = r.filterConditions(removeSet);
     		rules.add(r);
-    		if (r.condition.size() == 0)
+    		if (r.getConditionSet().isEmpty())
     			unusedActions.add(r.action);
     	}
-    	if (errorConditions.size() > 0) {
+    	if (!errorConditions.isEmpty()) {
     		rules.add(new Rule(errorAction, errorConditions));
     	}
     	
-        RuleSet p = new RuleSet(insnDef.dispatchVars, rules);
-        String dispatchCode = synth.synthesise(p, insnDef.name, option);
-    	
-    	StringBuilder sb = new StringBuilder();
-    	if (insnDef.prologue != null)
-    	    sb.append(insnDef.prologue + "\n");
-    	sb.append("INSN_COUNT"+insnDef.dispatchVars.length+"("+insnDef.name);
-    	for (String rand: insnDef.dispatchVars)
-    		sb.append(",").append(rand);
-    	sb.append(");");
-		sb.append(insnDef.name + "_HEAD:\n");
-        sb.append(dispatchCode);
-        for (String a: unusedActions) {
-        	sb.append("if (0) {\n")
-        	  .append(a)
-        	  .append("}\n");
-        }
-        if (insnDef.epilogue != null)
-            sb.append(insnDef.epilogue + "\n");
-        return sb.toString();
+        return new RuleSet(insnDef.dispatchVars, rules);
+	}
+
+	/**
+	 * Writes the code of an instruction to out.  Reports of the synthesis
+	 * are added to ctx.
+	 */
+	static void generate(Flavour flavour, ProcDefinition.InstDefinition insnDef, Synthesiser synth, SynthesisContext ctx, Appendable out) throws IOException {
+		Set<String> unusedActions = new LinkedHashSet<String>();
+		RuleSet p = makeRuleSet(insnDef, flavour.operandSpec, unusedActions);
+
+		if (insnDef.prologue != null)
+			out.append(insnDef.prologue).append("\n");
+		out.append("INSN_COUNT").append(Integer.toString(insnDef.dispatchVars.length)).append("(").append(insnDef.name);
+		for (String rand: insnDef.dispatchVars)
+			out.append(",").append(rand);
+		out.append(");");
+		out.append(insnDef.name).append("_HEAD:\n");
+		synthesiseDispatch(flavour, insnDef, p, synth, ctx, out);
+		for (String a: unusedActions) {
+			out.append("if (0) {\n")
+			   .append(a)
+			   .append("}\n");
+		}
+		if (insnDef.epilogue != null)
+			out.append(insnDef.epilogue).append("\n");
+	}
+
+	static SynthesisContext makeContext(Flavour flavour, ProcDefinition.InstDefinition insnDef) {
+		SynthesisContext ctx = new SynthesisContext(flavour.typeDef, insnDef.name, option);
+		if (option.getOption(Option.AvailableOptions.CMP_REUSE_SUBDIAGRAM, false))
+			ctx.setSubDiagramMemo(flavour.subDiagramMemos.computeIfAbsent(insnDef.name, n -> new SubDiagramMemo()));
+		return ctx;
+	}
+
+	/* On a cache hit the synthesiser does not run, so ctx would get no
+	 * reports.  The cache is not used when reports are asked for. */
+	static void synthesiseDispatch(Flavour flavour, ProcDefinition.InstDefinition insnDef, RuleSet p, Synthesiser synth, SynthesisContext ctx, Appendable out) throws IOException {
+		if (cache == null || option.getOption(Option.AvailableOptions.CMP_PASS_STATS, false)) {
+			synth.synthesise(p, ctx, out);
+			return;
+		}
+		String cacheKey = cache.key(flavour.typeDef, insnDef.name, p, compiler, option);
+		if (cache.copyTo(cacheKey, out))
+			return;
+		SynthesisCache.Recorder recorder = cache.record(cacheKey, out);
+		boolean completed = false;
+		try {
+			synth.synthesise(p, ctx, recorder);
+			completed = true;
+		} finally {
+			if (completed)
+				recorder.commit();
+			else
+				recorder.abort();
+		}
+	}
+
+	/**
+	 * Expands the instruction definition argument into a list of files.
+	 * The argument is a list separated by File.pathSeparator, each element
+	 * of which is a file, a directory (all *.idef files in it) or a glob
+	 * pattern on file names (e.g., idefs/get*.idef).
+	 */
+	static List<String> expandInsnDefFiles(String arg) {
+		List<String> files = new ArrayList<String>();
+		for (String elem: arg.split(File.pathSeparator)) {
+			if (elem.isEmpty())
+				continue;
+			File f = new File(elem);
+			if (f.isDirectory())
+				files.addAll(listFiles(f, "*.idef"));
+			else if (f.getName().matches(".*[*?\\[{].*")) {
+				File dir = f.getParentFile();
+				if (dir == null)
+					dir = new File(".");
+				List<String> matched = listFiles(dir, f.getName());
+				if (matched.isEmpty())
+					throw new Error("no file matches "+elem);
+				files.addAll(matched);
+			} else
+				files.add(elem);
+		}
+		return files;
+	}
+
+	static List<String> listFiles(File dir, String glob) {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+glob);
+		File[] entries = dir.listFiles();
+		if (entries == null)
+			throw new Error("cannot read directory "+dir);
+		Arrays.sort(entries);
+		List<String> files = new ArrayList<String>();
+		for (File f: entries)
+			if (f.isFile() && matcher.matches(f.toPath().getFileName()))
+				files.add(f.getPath());
+		return files;
+	}
+
+	static Synthesiser createSynthesiser(ProcDefinition.InstDefinition insnDef) {
+		switch (compiler) {
+		case COMPILER_DEFAULT:
+			return new NewSynthesiser();
+		case COMPILER_SIMPLE:
+			return new SimpleSynthesiser();
+		case COMPILER_OLD:
+			return insnDef.dispatchVars.length == 2 ?
+					new TagPairSynthesiser() :
+					new SwitchSynthesiser();
+		default:
+			throw new Error("unknown compiler type");
+		}
+	}
+
+	/**
+	 * Generates instructions of a flavour.  Each instruction is written to
+	 * its own file in the output directory of the flavour, or to the
+	 * standard output in the order of insnDefs if there is none.
+	 */
+	static void generateAll(Flavour flavour, List<ProcDefinition.InstDefinition> insnDefs) {
+		if (flavour.outDir == null) {
+			for (ProcDefinition.InstDefinition insnDef: insnDefs) {
+				try {
+					generate(flavour, insnDef, createSynthesiser(insnDef), makeContext(flavour, insnDef), System.out);
+				} catch (IOException e) {
+					throw new Error(e);  // PrintStream never throws
+				}
+				System.out.println();
+			}
+			return;
+		}
+
+		List<Runnable> tasks = new ArrayList<Runnable>(insnDefs.size());
+		for (ProcDefinition.InstDefinition insnDef: insnDefs)
+			tasks.add(() -> generateFile(flavour, insnDef));
+		runTasks(tasks);
+	}
+
+	/**
+	 * Generates all instructions of all flavours.  Instructions of
+	 * different flavours are synthesised in parallel as well.
+	 */
+	static void generateAll(List<Flavour> flavours) {
+		if (flavours.size() == 1) {
+			Flavour flavour = flavours.get(0);
+			generateAll(flavour, flavour.insnDefs);
+			return;
+		}
+
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (Flavour flavour: flavours)
+			for (ProcDefinition.InstDefinition insnDef: flavour.insnDefs)
+				tasks.add(() -> generateFile(flavour, insnDef));
+		runTasks(tasks);
+	}
+
+	static void runTasks(List<Runnable> tasks) {
+		if (jobs == 1) {
+			for (Runnable task: tasks)
+				task.run();
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(jobs);
+		try {
+			List<ForkJoinTask<?>> submitted = new ArrayList<ForkJoinTask<?>>(tasks.size());
+			for (Runnable task: tasks)
+				submitted.add(pool.submit(task));
+			for (ForkJoinTask<?> task: submitted)
+				task.get();
+		} catch (InterruptedException e) {
+			throw new Error(e);
+		} catch (ExecutionException e) {
+			throw new Error("synthesis failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Makes a flavour for each type definition.  If there are more than
+	 * one, the output of X.dtdef goes to the subdirectory X of outDir.
+	 */
+	static List<Flavour> makeFlavours() {
+		List<String> typeDefFiles = new ArrayList<String>();
+		for (String elem: typeDefFile.split(File.pathSeparator))
+			if (!elem.isEmpty())
+				typeDefFiles.add(elem);
+		List<Flavour> flavours = new ArrayList<Flavour>();
+		if (typeDefFiles.size() == 1) {
+			flavours.add(new Flavour(typeDefFiles.get(0), outDir, typesFile));
+			return flavours;
+		}
+		Set<String> names = new HashSet<String>();
+		for (String file: typeDefFiles) {
+			String name = new File(file).getName().replaceFirst("\\.[^.]*$", "");
+			if (!names.add(name))
+				throw new Error("type definitions with the same name "+name);
+			File dir = new File(outDir, name);
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new Error("cannot create directory "+dir);
+			String types = typesFile == null ? null : new File(dir, new File(typesFile).getName()).getPath();
+			flavours.add(new Flavour(file, dir.getPath(), types));
+		}
+		return flavours;
 	}
 
 	public static void main(String[] args) throws FileNotFoundException {
 		parseOption(args);
 
-        TypeDefinition.load(typeDefFile);
-
-        ProcDefinition procDef = new ProcDefinition();
-        procDef.load(insnDefFile);
-        
-        OperandSpecifications operandSpec = new OperandSpecifications();
-        operandSpec.load(operandSpecFile);
-        
-        for (ProcDefinition.InstDefinition insnDef: procDef.instDefs) {
-        	boolean verbose = outDir != null;
-        	Synthesiser synth;
-        	switch (compiler) {
-        	case COMPILER_DEFAULT:
-        		synth = new NewSynthesiser();
-        		break;
-        	case COMPILER_SIMPLE:
-        		synth = new SimpleSynthesiser();
-        		break;
-        	case COMPILER_OLD:
-        		synth = insnDef.dispatchVars.length == 2 ?
-        					new TagPairSynthesiser() :
-       					new SwitchSynthesiser();
-        		break;
-        	default:
-        		throw new Error("unknown compiler type");
-        	}
-        	String code = synthesise(insnDef, operandSpec, synth, verbose);
-        	if (outDir == null)
-        		System.out.println(code);
-        	else {
-        		try {
-        			File file = new File(outDir + "/" + insnDef.name + ".inc");
-	                PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file)));
-	                pw.print(code);
-	                pw.close();
-	            }catch(IOException e){
-	                System.out.println(e);
-        		}
+        List<Flavour> flavours = makeFlavours();
+        for (Flavour flavour: flavours) {
+        	flavour.load();
+        	if (flavour.typesFile != null)
+        		writeTypes(flavour);
+        }
+
+        generateAll(flavours);
+
+        if (watch) {
+        	try {
+        		new Watcher(flavours.get(0)).run();
+        	} catch (IOException e) {
+        		System.out.println(e);
+        		System.exit(1);
         	}
         }
 	}
+
+	static void writeTypes(Flavour flavour) {
+		try {
+			String types = new TypesGen(flavour.typeDef).generate();
+			writeIfChanged(new File(flavour.typesFile), out -> out.append(types));
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	static void generateFile(Flavour flavour, ProcDefinition.InstDefinition insnDef) {
+		try {
+			File file = new File(flavour.outDir, insnDef.name + ".inc");
+			SynthesisContext ctx = makeContext(flavour, insnDef);
+			writeIfChanged(file, out -> generate(flavour, insnDef, createSynthesiser(insnDef), ctx, out));
+			List<String> targets = new ArrayList<String>();
+			targets.add(file.getPath());
+			for (Map.Entry<String, String> report: ctx.getReports().entrySet()) {
+				File reportFile = new File(flavour.outDir, report.getKey());
+				writeIfChanged(reportFile, out -> out.append(report.getValue()));
+				targets.add(reportFile.getPath());
+			}
+			File depFile = new File(flavour.outDir, insnDef.name + ".d");
+			String dep = makeDependency(targets, flavour.typeDefFile, insnDef.sourceFile, operandSpecFile);
+			writeIfChanged(depFile, out -> out.append(dep));
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+	}
+
+	/**
+	 * Returns a Makefile rule telling that targets are derived from
+	 * sources.  Each source also gets an empty rule so that make does not
+	 * fail when it is removed (cf. gcc -MP).
+	 */
+	static String makeDependency(List<String> targets, String... sources) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < targets.size(); i++) {
+			if (i > 0)
+				sb.append(" ");
+			sb.append(escapeForMake(targets.get(i)));
+		}
+		sb.append(":");
+		for (String src: sources)
+			if (src != null)
+				sb.append(" ").append(escapeForMake(src));
+		sb.append("\n");
+		for (String src: sources)
+			if (src != null)
+				sb.append("\n").append(escapeForMake(src)).append(":\n");
+		return sb.toString();
+	}
+
+	static String escapeForMake(String path) {
+		return path.replace("$", "$$").replace(" ", "\\ ").replace("#", "\\#");
+	}
+
+	interface Contents {
+		void writeTo(Appendable out) throws IOException;
+	}
+
+	/**
+	 * Writes contents to file unless the file already has exactly the
+	 * contents, so that its modification time is kept.  Contents are
+	 * streamed to a temporary file in the same directory, which then
+	 * atomically replaces the file; readers see either the old or the new
+	 * file.
+	 */
+	static void writeIfChanged(File file, Contents contents) throws IOException {
+		Path path = file.toPath();
+		Path dir = path.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, file.getName(), ".tmp");
+		try {
+			try (Writer w = Files.newBufferedWriter(tmp, Charset.defaultCharset())) {
+				contents.writeTo(w);
+			}
+			if (file.isFile() && Files.mismatch(tmp, path) == -1)
+				return;
+			try {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
 }
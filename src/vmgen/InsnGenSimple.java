@@ -29,9 +29,10 @@ public class InsnGenSimple {
 		String insnDefFile = args[1];
 		String outDir = args[2];
 
-        TypeDefinition.load(typeDefFile);
+        TypeDefinition typeDef = new TypeDefinition();
+        typeDef.load(typeDefFile);
 
-        ProcDefinition procDef = new ProcDefinition();
+        ProcDefinition procDef = new ProcDefinition(typeDef);
         procDef.load(insnDefFile);
 
         for (ProcDefinition.InstDefinition insnDef: procDef.instDefs) {
@@ -45,7 +46,7 @@ public class InsnGenSimple {
 				dispatchVars[i] = dv.substring(1, dv.length());
 			}
             RuleSet p = new RuleSet(dispatchVars, insnDef.tdDef.rules);
-            sb.append(synth.synthesise(p, "none", new InsnGen.Option()));
+            sb.append(synth.synthesise(p, typeDef, "none", new InsnGen.Option()));
             try {
             	File file = new File(outDir + "/" + insnDef.name.substring(2).toLowerCase() + ".inc");
                 PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file)));
@@ -14,15 +14,21 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import vmgen.type.TypeDefinition;
 import vmgen.type.VMDataType;
+import vmgen.type.VMDataTypeVecSet;
 
 public class OperandSpecifications {
 	static class OperandSpecificationRecord {
@@ -40,10 +46,19 @@ public class OperandSpecifications {
 			this.behaviour = behaviour;
 		}
 	}
-	List<OperandSpecificationRecord> spec = new ArrayList<OperandSpecificationRecord>();
+	TypeDefinition typeDef;
+	/* instruction name -> records in the order of the file */
+	Map<String, List<OperandSpecificationRecord>> spec = new HashMap<String, List<OperandSpecificationRecord>>();
+	/* instruction name and arity -> compiled specification */
+	Map<String, Map<OperandSpecificationRecord.Behaviour, VMDataTypeVecSet>> compiled =
+		new ConcurrentHashMap<String, Map<OperandSpecificationRecord.Behaviour, VMDataTypeVecSet>>();
+
+	public OperandSpecifications(TypeDefinition typeDef) {
+		this.typeDef = typeDef;
+	}
 
 	void load(Scanner sc) {
-		final String P_SYMBOL = "[a-zA-Z_]+";
+		final String P_SYMBOL = "[a-zA-Z_][a-zA-Z0-9_]*";
 		final String P_OPERANDS = "\\(\\s*([^)]+)\\s*\\)";
 		final String P_BEHAVIOUR = "accept|error|unspecified";
 		final Pattern splitter = Pattern.compile("("+P_SYMBOL+")\\s+"+P_OPERANDS+"\\s+("+P_BEHAVIOUR+")\\s*$");
@@ -73,7 +88,7 @@ public class OperandSpecifications {
 				else
 					throw new Error("operand specification syntax error:"+ m.group());
 				OperandSpecificationRecord r = new OperandSpecificationRecord(insnName, operandTypes, behaviour);
-				spec.add(r);
+				spec.computeIfAbsent(insnName, k -> new ArrayList<OperandSpecificationRecord>()).add(r);
 			} else
 				throw new Error("operand specification syntax error:"+ line);
 		}
@@ -88,51 +103,65 @@ public class OperandSpecifications {
 		}
 	}
 
-	boolean matchOperandTypes(String[] specTypes, VMDataType[] types) {
-		if (specTypes.length != types.length)
-			return false;
-		for (int i = 0; i < specTypes.length; i++)
-			if (!specTypes[i].equals("_") &&
-				!(specTypes[i].equals("object") && types[i].isObject()) &&
-				!specTypes[i].equals(types[i].getName()))
-				return false;
-		return true;
+	/**
+	 * Returns the set of data types an operand type in a record stands for,
+	 * or null for any type.
+	 */
+	BitSet resolveOperandType(String specType) {
+		if (specType.equals("_"))
+			return null;
+		BitSet dts = new BitSet();
+		for (VMDataType dt: typeDef.allDataTypes())
+			if (specType.equals("object") ? dt.isObject() : specType.equals(dt.getName()))
+				dts.set(dt.getID());
+		return dts;
 	}
-	
-	OperandSpecificationRecord findSpecificationRecord(String insnName, VMDataType[] types) {
-		for (OperandSpecificationRecord rec: spec) {
-			if (insnName.equals(rec.insnName) &&
-				matchOperandTypes(rec.operandTypes, types))
-				return rec;
+
+	/**
+	 * Compiles the records of an instruction into one set of operand type
+	 * tuples for each behaviour.  A tuple has the behaviour of the first
+	 * record that matches it, so each record takes the tuples it matches
+	 * out of those not yet taken.
+	 */
+	Map<OperandSpecificationRecord.Behaviour, VMDataTypeVecSet> compile(String insnName, int arity) {
+		Map<OperandSpecificationRecord.Behaviour, VMDataTypeVecSet> result =
+			new EnumMap<OperandSpecificationRecord.Behaviour, VMDataTypeVecSet>(OperandSpecificationRecord.Behaviour.class);
+		for (OperandSpecificationRecord.Behaviour b: OperandSpecificationRecord.Behaviour.values())
+			result.put(b, new VMDataTypeVecSet(typeDef, arity));
+		VMDataTypeVecSet rest = new VMDataTypeVecSet(typeDef, arity).complement();
+		for (OperandSpecificationRecord rec: spec.getOrDefault(insnName, Collections.emptyList())) {
+			if (rec.operandTypes.length != arity)
+				continue;
+			BitSet[] components = new BitSet[arity];
+			for (int i = 0; i < arity; i++)
+				components[i] = resolveOperandType(rec.operandTypes[i]);
+			VMDataTypeVecSet matched = VMDataTypeVecSet.product(typeDef, components);
+			matched.retainAll(rest);
+			result.get(rec.behaviour).addAll(matched);
+			rest.removeAll(matched);
 		}
-		throw new Error("unexhaustive type specification for :"+insnName+"("+types[0].getName()+","+types[1].getName()+")");
-	}
-	
-	public Set<VMDataType[]> getOperands(String insnName, int arity, OperandSpecificationRecord.Behaviour behaviour) {
-		Set<VMDataType[]> typess = new HashSet<VMDataType[]>();
-	    int total = 1;
-		for (int i = 0; i < arity; i++)
-			total *= VMDataType.all().size();
-		for (int i = 0; i < total; i++) {
-			VMDataType[] types = new VMDataType[arity];
-			int a = i;
-			for (int j = 0; j < arity; j++) {
-				types[j] = VMDataType.all().get(a % VMDataType.all().size());
-				a /= VMDataType.all().size();
-			}
-			OperandSpecificationRecord rec = findSpecificationRecord(insnName, types);
-			if (rec.behaviour == behaviour)
-				typess.add(types);
+		if (!rest.isEmpty()) {
+			StringBuilder sb = new StringBuilder();
+			for (VMDataType dt: rest.toList().get(0))
+				sb.append(sb.length() == 0 ? "" : ",").append(dt.getName());
+			throw new Error("unexhaustive type specification for :"+insnName+"("+sb+")");
 		}
-		return typess;
+		return result;
 	}
-	
-	
-	public Set<VMDataType[]> getUnspecifiedOperands(String insnName, int arity) {
+
+	public VMDataTypeVecSet getOperands(String insnName, int arity, OperandSpecificationRecord.Behaviour behaviour) {
+		return compiled.computeIfAbsent(insnName+"/"+arity, k -> compile(insnName, arity)).get(behaviour);
+	}
+
+	public VMDataTypeVecSet getAcceptOperands(String insnName, int arity) {
+		return getOperands(insnName, arity, OperandSpecificationRecord.Behaviour.ACCEPT);
+	}
+
+	public VMDataTypeVecSet getUnspecifiedOperands(String insnName, int arity) {
 		return getOperands(insnName, arity, OperandSpecificationRecord.Behaviour.UNSPECIFIED);
 	}
 
-	public Set<VMDataType[]> getErrorOperands(String insnName, int arity) {
+	public VMDataTypeVecSet getErrorOperands(String insnName, int arity) {
 		return getOperands(insnName, arity, OperandSpecificationRecord.Behaviour.ERROR);
 	}
 }
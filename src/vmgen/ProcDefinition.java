@@ -16,32 +16,33 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import vmgen.type.TypeDefinition;
 import vmgen.type.VMDataType;
+import vmgen.type.VMDataTypeVecSet;
 
 
 
-class JSTypePair {
-    VMDataType left, right;
-    JSTypePair(VMDataType left, VMDataType right) {
-        this.left = left;
-        this.right = right;
-    }
-    public String toString() {
-        String l, r;
-        l = (left == null) ? "***" : left.getName();
-        r = (right == null) ? "***" : right.getName();
-        return "(" + l + " : " + r + ")";
-    }
-}
+public class ProcDefinition {
+    /* a subset of the operands is a mask in an int, kept non-negative
+     * so that MASK_ORDER can subtract masks */
+    static final int MAX_DISPATCH_ARITY = Integer.SIZE - 2;
 
+    TypeDefinition typeDef;
 
-public class ProcDefinition {
+    public ProcDefinition(TypeDefinition typeDef) {
+        this.typeDef = typeDef;
+    }
 
     static class TypeDispatchDefinition {
         String[] vars;
@@ -56,213 +57,140 @@ public class ProcDefinition {
         void gen(Synthesiser synthesiser);
     }
 
-    ProcDefinition.TypeDispatchDefinition build(String[] vars, List<Pair<JSTypePair,String>> raw) {
-        List<Pair<JSTypePair,String>> twoOp = new LinkedList<Pair<JSTypePair,String>>();
-        List<Pair<JSTypePair,String>> oneOpL = new LinkedList<Pair<JSTypePair,String>>();
-        List<Pair<JSTypePair,String>> oneOpR = new LinkedList<Pair<JSTypePair,String>>();
-        Pair<JSTypePair,String> otherwisep = new Pair<JSTypePair,String>(null, null);
-        splitByOpType(raw, twoOp, oneOpL, oneOpR, otherwisep);
+    /* Reports each tuple of dup once projected on the operands of mask,
+     * e.g., (a : ***) for the first of two operands. */
+    private void reportDuplicates(VMDataTypeVecSet dup, int mask) {
+        Set<String> conditions = new LinkedHashSet<String>();
+        for (VMDataType[] dts: dup.toList()) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < dts.length; i++)
+                sb.append(i == 0 ? "(" : " : ").append((mask & 1 << i) != 0 ? dts[i].getName() : "***");
+            conditions.add(sb.append(")").toString());
+        }
+        for (String condition: conditions) {
+            // error
+            System.out.println("error: same condition " + condition);
+        }
+    }
 
-        String otherwise = otherwisep.second();
-        List<Pair<JSTypePair,String>> result = new LinkedList<Pair<JSTypePair,String>>();
-        if (vars.length == 1) {
-            result.addAll(oneOpL);
-            if (otherwise != null) {
-                for (VMDataType dt : VMDataType.all()) {
-                    boolean b = true;
-                    for (Pair<JSTypePair,String> e : result) {
-                        JSTypePair jtp = e.first();
-                        if (jtp.left == dt) {
-                            b = false;
-                            break;
-                        }
-                    }
-                    if (b) result.add(new Pair<JSTypePair,String>(new JSTypePair(dt, null), otherwise));
-                }
-            }
-        } else if (vars.length == 2) {
-            result.addAll(twoOp);
-            for (Pair<JSTypePair,String> el : oneOpL) {
-                VMDataType left = el.first().left;
-                for (VMDataType right : VMDataType.all()) {
-                    boolean willBeAdded = true;
-                    for (Pair<JSTypePair,String> etwo : twoOp) {
-                        if (etwo.first().left == left && etwo.first().right == right) {
-                            willBeAdded = false;
-                            break;
-                        }
-                    }
-                    if (!willBeAdded) continue;
-                    for (Pair<JSTypePair,String> er : oneOpR) {
-                        if (er.first().right == right) {
-                            willBeAdded = false;
-                            break;
-                        }
-                    }
-                    if (!willBeAdded) continue;
-                    result.add(new Pair<JSTypePair,String>(new JSTypePair(left, right), el.second()));
-                }
-            }
-            for (Pair<JSTypePair,String> er : oneOpR) {
-                VMDataType right = er.first().right;
-                for (VMDataType left : VMDataType.all()) {
-                    boolean willBeAdded = true;
-                    for (Pair<JSTypePair,String> etwo : twoOp) {
-                        if (etwo.first().left == left && etwo.first().right == right) {
-                            willBeAdded = false;
-                            break;
-                        }
-                    }
-                    if (!willBeAdded) continue;
-                    for (Pair<JSTypePair,String> el : oneOpL) {
-                        if (el.first().left == left) {
-                            willBeAdded = false;
-                            break;
-                        }
-                    }
-                    if (!willBeAdded) continue;
-                    result.add(new Pair<JSTypePair,String>(new JSTypePair(left, right), er.second()));
-                }
+    /* larger subsets of the operands first, those of the same size in
+     * the order of their masks */
+    static final Comparator<Integer> MASK_ORDER = (a, b) ->
+        Integer.bitCount(a) != Integer.bitCount(b) ?
+            Integer.bitCount(b) - Integer.bitCount(a) : a - b;
+
+    /**
+     * Builds the rules of an instruction from its \when clauses.  Each cube
+     * of a clause gives the types of a subset of the operands.  Which
+     * clause decides a tuple of operand types is determined, in order of
+     * precedence, by
+     *   1. the first clause that gives the types of a subset of the
+     *      operands that includes every other subset given for the tuple,
+     *      e.g., for two operands, the first clause that gives the types
+     *      of both operands, or else the first clause that gives the type
+     *      of only one operand unless another clause gives the type of
+     *      only the other operand, and
+     *   2. the \otherwise clause.
+     * The type sets of the clauses are kept for each subset of the
+     * operands some clause gives, so that all of this is done with set
+     * operations.
+     */
+    TypeDispatchDefinition build(String[] vars, List<DslParser.WhenClause> clauses) {
+        int arity = vars.length;
+        Set<RuleSet.Rule> rules = new LinkedHashSet<RuleSet.Rule>();
+        if (arity == 0)
+            return new TypeDispatchDefinition(vars, rules);
+        if (arity > MAX_DISPATCH_ARITY)
+            throw new Error("at most " + MAX_DISPATCH_ARITY + " operands can be dispatched: " + arity);
+
+        /* split each clause into the tuples it gives by the subset of the
+         * operands whose types it gives; bit i of the mask of a subset
+         * stands for the i-th operand */
+        String otherwise = null;
+        List<String> actions = new ArrayList<String>();
+        List<TreeMap<Integer, VMDataTypeVecSet>> given = new ArrayList<TreeMap<Integer, VMDataTypeVecSet>>();
+        TreeMap<Integer, VMDataTypeVecSet> givenAll = new TreeMap<Integer, VMDataTypeVecSet>(MASK_ORDER);
+        for (DslParser.WhenClause clause: clauses) {
+            if (clause.condition == null) {
+                otherwise = clause.body;
+                continue;
             }
-            if (otherwise != null) {
-                for (VMDataType left : VMDataType.all()) {
-                    for (VMDataType right : VMDataType.all()) {
-                        boolean willBeAdded = true;
-                        for (Pair<JSTypePair,String> e : result) {
-                            if (e.first().left == left && e.first().right == right) {
-                                willBeAdded = false;
-                                break;
-                            }
-                        }
-                        if (willBeAdded) {
-                            result.add(new Pair<JSTypePair,String>(new JSTypePair(left, right), otherwise));
-                        }
-                    }
-                }
+            TreeMap<Integer, VMDataTypeVecSet> g = new TreeMap<Integer, VMDataTypeVecSet>(MASK_ORDER);
+            for (BitSet[] cube: clause.condition.cubes) {
+                int mask = 0;
+                for (int i = 0; i < arity; i++)
+                    if (cube[i] != null)
+                        mask |= 1 << i;
+                g.computeIfAbsent(mask, m -> new VMDataTypeVecSet(typeDef, arity))
+                    .addAll(VMDataTypeVecSet.product(typeDef, cube));
             }
-        }
-        return new ProcDefinition.TypeDispatchDefinition(vars, partsToRules(vars, result));
-    }
-    private Set<RuleSet.Rule> partsToRules(String[] vars, List<Pair<JSTypePair,String>> parts) {
-        List<Pair<JSTypePair,String>> _parts = new LinkedList<Pair<JSTypePair,String>>(parts);
-        Set<RuleSet.Rule> rules = new HashSet<RuleSet.Rule>();
-        for (Pair<JSTypePair,String> e : parts) {
-            if (_parts.contains(e)) {
-                Set<RuleSet.Condition> conditions = new HashSet<RuleSet.Condition>();
-                List<Pair<JSTypePair,String>> rmList = new LinkedList<Pair<JSTypePair,String>>();
-                for (Pair<JSTypePair,String> _e : _parts) {
-                    if (e.second() == _e.second()) {
-                        if (vars.length == 1) {
-                            conditions.add(new RuleSet.Condition(_e.first().left.getName()));
-                        } else if (vars.length == 2) {
-                            conditions.add(new RuleSet.Condition(_e.first().left.getName(), _e.first().right.getName()));
-                        }
-                        rmList.add(_e);
-                    }
-                }
-                _parts.removeAll(rmList);
-                rules.add(new RuleSet.Rule(e.second(), conditions));
+            for (Map.Entry<Integer, VMDataTypeVecSet> e: g.entrySet()) {
+                int mask = e.getKey();
+                VMDataTypeVecSet all = givenAll.computeIfAbsent(mask, m -> new VMDataTypeVecSet(typeDef, arity));
+                reportDuplicates(e.getValue().intersection(all), mask);
+                e.getValue().removeAll(all);
+                all.addAll(e.getValue());
             }
+            actions.add(clause.body);
+            given.add(g);
         }
-        return rules;
-    }
 
-    private void splitByOpType(List<Pair<JSTypePair,String>> raw,
-            List<Pair<JSTypePair,String>> twoOp,
-            List<Pair<JSTypePair,String>> oneOpL,
-            List<Pair<JSTypePair,String>> oneOpR,
-            Pair<JSTypePair,String> otherwise) {
-        for (Pair<JSTypePair,String> e : raw) {
-            JSTypePair j = e.first();
-            if (j == null) {
-                otherwise.t = e.second();
-            } else if (j.left != null) {
-                if (j.right != null) {
-                    twoOp.add(e);
-                } else {
-                    oneOpL.add(e);
-                }
-            } else {
-                if (j.right != null) {
-                    oneOpR.add(e);
-                } else {
-                    otherwise.t = e.second();
-                }
-            }
+        /* A tuple given for a subset is excluded if it is also given for
+         * a subset that is not included in it. */
+        List<Integer> masks = new ArrayList<Integer>(givenAll.keySet());
+        Map<Integer, VMDataTypeVecSet> excluded = new HashMap<Integer, VMDataTypeVecSet>();
+        for (int mask: masks) {
+            VMDataTypeVecSet ex = new VMDataTypeVecSet(typeDef, arity);
+            for (int other: masks)
+                if ((other & ~mask) != 0)
+                    ex.addAll(givenAll.get(other));
+            excluded.put(mask, ex);
         }
-    }
 
-    private void conditionIntoParts(List<JSTypePair> result, DslParser.Condition arg) {
-        if (arg instanceof DslParser.CompoundCondition) {
-            DslParser.CompoundCondition cond = (DslParser.CompoundCondition) arg;
-            if (cond.op == DslParser.ConditionalOp.AND) {
-                if (cond.cond1 instanceof DslParser.AtomCondition && cond.cond2 instanceof DslParser.AtomCondition) {
-                    DslParser.AtomCondition c1 = (DslParser.AtomCondition) cond.cond1;
-                    DslParser.AtomCondition c2 = (DslParser.AtomCondition) cond.cond2;
-                    if (c1.varIdx == 0 && c2.varIdx == 1) {
-                        result.add(new JSTypePair(c1.t, c2.t));
-                    } else if (c2.varIdx == 0 && c1.varIdx == 1) {
-                        result.add(new JSTypePair(c2.t, c1.t));
-                    } else {
-                        // error
-                        System.out.println("error: " + c1.varIdx + ", " + c2.varIdx);
-                    }
-                } else {
-                    // error
-                    System.out.println("error: cond1 and cond2 must be AtomCondition.");
-                }
-            } else if (cond.op == DslParser.ConditionalOp.OR) {
-                conditionIntoParts(result, cond.cond1);
-                conditionIntoParts(result, cond.cond2);
-            }
-        } else if (arg instanceof DslParser.AtomCondition) {
-            DslParser.AtomCondition atom = (DslParser.AtomCondition) arg;
-            if (atom.varIdx == 0) {
-                result.add(new JSTypePair(atom.t, null));
-            } else if (atom.varIdx == 1) {
-                result.add(new JSTypePair(null, atom.t));
-            } else {
-                // error
-                System.out.println("error: AtomCondition.varIdx must be '0' or '1'.");
+        /* A rule is placed by the first subset in masks that gives it a
+         * tuple, then in the order of the clauses. */
+        VMDataTypeVecSet covered = new VMDataTypeVecSet(typeDef, arity);
+        List<List<RuleSet.Rule>> byPrecedence = new ArrayList<List<RuleSet.Rule>>();
+        for (int i = 0; i < masks.size(); i++)
+            byPrecedence.add(new ArrayList<RuleSet.Rule>());
+        for (int k = 0; k < actions.size(); k++) {
+            VMDataTypeVecSet conditionSet = new VMDataTypeVecSet(typeDef, arity);
+            int precedence = -1;
+            for (int i = 0; i < masks.size(); i++) {
+                int mask = masks.get(i);
+                VMDataTypeVecSet g = given.get(k).get(mask);
+                if (g == null)
+                    continue;
+                VMDataTypeVecSet decided = g.minus(excluded.get(mask));
+                if (!decided.isEmpty() && precedence == -1)
+                    precedence = i;
+                conditionSet.addAll(decided);
             }
+            if (conditionSet.isEmpty())
+                continue;
+            byPrecedence.get(precedence).add(new RuleSet.Rule(actions.get(k), conditionSet));
+            covered.addAll(conditionSet);
         }
+        for (List<RuleSet.Rule> rs: byPrecedence)
+            rules.addAll(rs);
+        if (otherwise != null) {
+            VMDataTypeVecSet rest = covered.complement();
+            if (!rest.isEmpty())
+                rules.add(new RuleSet.Rule(otherwise, rest));
+        }
+        return new TypeDispatchDefinition(vars, rules);
     }
-    // private List<Pair<JSTypePair,String>> actListToParts(List<Pair<DslParser.Condition,String>> actList) {
-    private List<Pair<JSTypePair,String>> whenClausesToParts(List<DslParser.WhenClause> actList) {
-        List<Pair<JSTypePair,String>> result = new LinkedList<Pair<JSTypePair,String>>();
-        actList.forEach(act -> {
-            if (act.condition == null) {
-                result.add(new Pair<JSTypePair,String>(null, act.body));
-            } else {
-                List<JSTypePair> jtps = new LinkedList<JSTypePair>();
-                conditionIntoParts(jtps, act.condition);
-                for (JSTypePair j1 : jtps) {
-                    boolean b = true;
-                    for (Pair<JSTypePair,String> e : result) {
-                        JSTypePair j2 = e.first();
-                        if (j1.left == j2.left && j1.right == j2.right) {
-                            // error
-                            b = false;
-                            System.out.println("error: same condition (" + j1 + ", " + j2 + ")");
-                        }
-                    }
-                    if (b) result.add(new Pair<JSTypePair, String>(j1, act.body));
-                }
-            }
-        });
-        return result;
-    }
+
     TypeDispatchDefinition makeDispatchDefFromInstDef(DslParser.InstDef idef) {
-        List<Pair<JSTypePair,String>> actions = whenClausesToParts(idef.whenClauses);
-        TypeDispatchDefinition td = build(idef.vars, actions);
-        return td;
+        return build(idef.vars, idef.whenClauses);
     }
 
-    static class InstDefinition implements Definition {
+    class InstDefinition implements Definition {
         String name;
         String[] dispatchVars, otherVars;
         String prologue, epilogue;
         TypeDispatchDefinition tdDef;
+        String sourceFile;
         InstDefinition(String name, String[] dispatchVars, String[] otherVars, String prologue, String epilogue, TypeDispatchDefinition tdDef) {
             this.name = name;
             this.dispatchVars = dispatchVars;
@@ -278,7 +206,7 @@ public class ProcDefinition {
             }
             sb.append(name + "_HEAD:\n");
             RuleSet p = new RuleSet(dispatchVars, tdDef.rules);
-            sb.append(synthesiser.synthesise(p, "none", null));
+            sb.append(synthesiser.synthesise(p, typeDef, "none", null));
             if (this.epilogue != null) {
                 sb.append(this.epilogue + "\n");
             }
@@ -307,12 +235,16 @@ public class ProcDefinition {
         return new InstDefinition(ins.id, ins.vars, null, ins.prologue, ins.epilogue, td);
     }
 
-    public InstDefinition load(String fname) {
-        DslParser dslp = new DslParser();
-        DslParser.InstDef parsedInst = dslp.run(fname);
-        InstDefinition instDef = makeInstDefinitionFromParsedInst(parsedInst);
-        addDef(instDef);
-        return instDef;
+    public List<InstDefinition> load(String fname) {
+        DslParser dslp = new DslParser(typeDef);
+        List<InstDefinition> loaded = new ArrayList<InstDefinition>();
+        for (DslParser.InstDef parsedInst: dslp.run(fname)) {
+            InstDefinition instDef = makeInstDefinitionFromParsedInst(parsedInst);
+            instDef.sourceFile = fname;
+            addDef(instDef);
+            loaded.add(instDef);
+        }
+        return loaded;
     }
 
     public String toString() {
@@ -329,7 +261,7 @@ public class ProcDefinition {
     public static void main(String[] args) throws FileNotFoundException {
         TypeDefinition td = new TypeDefinition();
         td.load("datatype/default.dtdef");
-        ProcDefinition procDef = new ProcDefinition();
+        ProcDefinition procDef = new ProcDefinition(td);
         // InstDefinition instDef = procDef.load("idefs/div.idef");
 /*
         SimpleSynthesiser ss = new SimpleSynthesiser();
@@ -10,74 +10,30 @@
 */
 package vmgen;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
-import vmgen.type.VMDataType;
+import vmgen.type.TypeDefinition;
+import vmgen.type.VMDataTypeVecSet;
 
 
 public class RuleSet implements GlobalConstantOptions {
-	public static class Condition {
-		public VMDataType[] dts;
-
-		Condition(String tn1) {
-		    dts = new VMDataType[]{VMDataType.get(tn1)};
-		}
-		Condition(String tn1, String tn2) {
-			dts = new VMDataType[]{VMDataType.get(tn1), VMDataType.get(tn2)};
-		}
-		Condition(VMDataType[] dts) {
-			this.dts = dts;
-		}
-		@Override
-		public int hashCode() {
-			return Arrays.hashCode(dts);
-		}
-		@Override
-		public boolean equals(Object obj) {
-			if (obj != null && obj instanceof Condition)
-				return Arrays.equals(dts, ((Condition) obj).dts);
-			else
-				return false;
-		}
-	};
-
 	public static class Rule {
-		public Set<Condition> condition;
 		public String action;
-		
-		Rule(String action, Condition...  condition) {
+		/* the tuples of data types the action is for */
+		VMDataTypeVecSet conditionSet;
+
+		Rule(String action, VMDataTypeVecSet conditionSet) {
 			this.action = action;
-			this.condition = new HashSet<Condition>();
-			for (Condition c: condition)
-				this.condition.add(c);
+			this.conditionSet = conditionSet;
 		}
 
-		Rule(String action, List<Condition> condition) {
-		    this.action = action;
-		    this.condition = new HashSet<Condition>();
-		    for (Condition c: condition)
-		        this.condition.add(c);
+		Rule filterConditions(VMDataTypeVecSet remove) {
+			return new Rule(action, conditionSet.minus(remove));
 		}
 
-		Rule(String action, Set<Condition> condition) {
-		    this.action = action;
-		    this.condition = condition;
-		}
-		
-		Rule filterConditions(Collection<Condition> remove) {
-    		Set<Condition> filteredCondition = new HashSet<RuleSet.Condition>();
-    		for (Condition c: condition)
-	    		if (!remove.contains(c))
-	    			filteredCondition.add(c);
-	    	return new Rule(action, filteredCondition);
-		}
-		
-		public Set<Condition> getCondition() {
-			return condition;
+		public VMDataTypeVecSet getConditionSet() {
+			return conditionSet;
 		}
 	}
 
@@ -96,27 +52,35 @@ public class RuleSet implements GlobalConstantOptions {
 		return dispatchVars.length;
 	}
 
-	public RuleSet() {
-		rules = new HashSet<Rule>();
+	public RuleSet(TypeDefinition td) {
+		rules = new LinkedHashSet<Rule>();
 		dispatchVars = new String[]{"v1", "v2"};
 
 		/* generate dummy data that looks like add */
-		rules.add(new Rule("fixfix", new Condition("fixnum", "fixnum")));
-		rules.add(new Rule("fixflo", new Condition("fixnum", "flonum")));
-		rules.add(new Rule("flofix", new Condition("flonum", "fixnum")));
-		rules.add(new Rule("floflo", new Condition("flonum", "flonum")));
-		rules.add(new Rule("strstr", new Condition("string", "string")));
-		rules.add(new Rule("strflo", new Condition("string", "flonum")));
-		rules.add(new Rule("flostr", new Condition("flonum", "string")));
-		rules.add(new Rule("strspe", new Condition("string", "special")));
-		rules.add(new Rule("spestr", new Condition("special", "string")));
-		rules.add(new Rule("strfix", new Condition("string", "fixnum")));
-		rules.add(new Rule("fixstr", new Condition("fixnum", "string")));
-		rules.add(new Rule("to_primitive",
-							new Condition("simple_object", "simple_object"),
-							new Condition("simple_object", "array"),
-							new Condition("array", "simple_object"),
-							new Condition("array", "array")));
+		rules.add(dummyRule(td, "fixfix", "fixnum", "fixnum"));
+		rules.add(dummyRule(td, "fixflo", "fixnum", "flonum"));
+		rules.add(dummyRule(td, "flofix", "flonum", "fixnum"));
+		rules.add(dummyRule(td, "floflo", "flonum", "flonum"));
+		rules.add(dummyRule(td, "strstr", "string", "string"));
+		rules.add(dummyRule(td, "strflo", "string", "flonum"));
+		rules.add(dummyRule(td, "flostr", "flonum", "string"));
+		rules.add(dummyRule(td, "strspe", "string", "special"));
+		rules.add(dummyRule(td, "spestr", "special", "string"));
+		rules.add(dummyRule(td, "strfix", "string", "fixnum"));
+		rules.add(dummyRule(td, "fixstr", "fixnum", "string"));
+		rules.add(dummyRule(td, "to_primitive",
+							"simple_object", "simple_object",
+							"simple_object", "array",
+							"array", "simple_object",
+							"array", "array"));
+	}
+
+	/* tns lists the pairs of type names */
+	static Rule dummyRule(TypeDefinition td, String action, String... tns) {
+		VMDataTypeVecSet conditionSet = new VMDataTypeVecSet(td, 2);
+		for (int i = 0; i < tns.length; i += 2)
+			conditionSet.add(td.getVMDataType(tns[i]), td.getVMDataType(tns[i + 1]));
+		return new Rule(action, conditionSet);
 	}
 
 /*<<<<<<< HEAD
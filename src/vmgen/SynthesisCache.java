@@ -0,0 +1,289 @@
+/*
+   SynthesisCache.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import vmgen.type.TypeDefinition;
+import vmgen.type.VMDataType;
+import vmgen.type.VMRepType;
+
+/**
+ * On-disk cache of synthesised dispatch code.  An entry is keyed by the
+ * SHA-256 hash of everything the synthesiser looks at: the rule set
+ * after operand specifications are applied, the representation of every
+ * data type, the compiler and the compiler options, and of the generator
+ * itself.  Entries are never invalidated; a change of any input yields a
+ * different key.
+ */
+public class SynthesisCache {
+	/* the generator; any change of its classes may change the output */
+	static final String VERSION = hashOfClasses();
+
+	final File dir;
+
+	public SynthesisCache(String dir) {
+		this.dir = new File(dir);
+		if (!this.dir.isDirectory() && !this.dir.mkdirs())
+			throw new Error("cannot create cache directory "+dir);
+	}
+
+	/**
+	 * Returns a textual form of the inputs of a synthesis.  Options are
+	 * sorted, but rules and their conditions are kept in the order the
+	 * synthesisers see them, which decides the numbering of nodes and the
+	 * order in which they are merged.
+	 */
+	static String normalise(TypeDefinition typeDef, String name, RuleSet plan, int compiler, InsnGen.Option option) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("version ").append(VERSION).append('\n');
+		sb.append("compiler ").append(compiler).append('\n');
+		List<String> opts = new ArrayList<String>();
+		for (InsnGen.Option.AvailableOptions opt: option.options.keySet())
+			opts.add(opt.key+"="+option.options.get(opt));
+		Collections.sort(opts);
+		for (String opt: opts)
+			sb.append("option ").append(opt).append('\n');
+		for (VMDataType dt: typeDef.allDataTypes())
+			sb.append(normaliseDataType(dt));
+		sb.append(normaliseRuleSet(name, plan));
+		return sb.toString();
+	}
+
+	static String normaliseDataType(VMDataType dt) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("datatype ").append(dt.getName());
+		if (dt.isObject())
+			sb.append(" object");
+		sb.append('\n');
+		for (VMRepType rt: dt.getVMRepTypes()) {
+			VMRepType.PT pt = rt.getPT();
+			sb.append("  reptype ").append(rt.getName())
+			  .append(' ').append(pt.getName()).append('/').append(pt.getValue()).append('/').append(pt.getBits());
+			VMRepType.HT ht = rt.getHT();
+			if (ht != null)
+				sb.append(' ').append(ht.getName()).append('/').append(ht.getValue());
+			sb.append(' ').append(rt.getStruct()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	static String normaliseRuleSet(String name, RuleSet plan) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("insn ").append(name);
+		for (String v: plan.getDispatchVars())
+			sb.append(' ').append(v);
+		sb.append('\n');
+		for (RuleSet.Rule r: plan.getRules()) {
+			sb.append("rule");
+			for (VMDataType[][] cube: r.getConditionSet().toCubes()) {
+				sb.append(" (");
+				for (VMDataType[] component: cube) {
+					for (VMDataType dt: component)
+						sb.append(dt.getName()).append('|');
+					sb.append(',');
+				}
+				sb.append(')');
+			}
+			sb.append('\n').append(r.action.length()).append(':').append(r.action).append('\n');
+		}
+		return sb.toString();
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+	}
+
+	static String toHex(byte[] digest) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b: digest)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	static String hash(String s) {
+		return toHex(newDigest().digest(s.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Returns the hash of the class files of the generator, i.e., of the
+	 * directory or the jar file this class is loaded from.  Files are
+	 * taken in the order of their names; time stamps are not looked at.
+	 */
+	static String hashOfClasses() {
+		MessageDigest md = newDigest();
+		try {
+			Path location = Paths.get(SynthesisCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (Files.isDirectory(location)) {
+				List<Path> files;
+				try (Stream<Path> s = Files.walk(location)) {
+					files = s.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+				}
+				for (Path p: files) {
+					md.update(location.relativize(p).toString().getBytes(StandardCharsets.UTF_8));
+					md.update(Files.readAllBytes(p));
+				}
+			} else {
+				try (JarFile jar = new JarFile(location.toFile())) {
+					List<JarEntry> entries = new ArrayList<JarEntry>();
+					for (JarEntry e: Collections.list(jar.entries()))
+						if (e.getName().endsWith(".class"))
+							entries.add(e);
+					entries.sort((a, b) -> a.getName().compareTo(b.getName()));
+					for (JarEntry e: entries) {
+						md.update(e.getName().getBytes(StandardCharsets.UTF_8));
+						try (InputStream in = jar.getInputStream(e)) {
+							md.update(in.readAllBytes());
+						}
+					}
+				}
+			}
+		} catch (IOException | URISyntaxException | SecurityException | NullPointerException e) {
+			throw new Error("cannot read the classes of the generator", e);
+		}
+		return toHex(md.digest());
+	}
+
+	public String key(TypeDefinition typeDef, String name, RuleSet plan, int compiler, InsnGen.Option option) {
+		return hash(normalise(typeDef, name, plan, compiler, option));
+	}
+
+	File entry(String key) {
+		return new File(dir, key + ".dispatch");
+	}
+
+	/**
+	 * Appends the cached dispatch code to out.  Returns false if there is
+	 * no entry.
+	 */
+	public boolean copyTo(String key, Appendable out) throws IOException {
+		File f = entry(key);
+		if (!f.isFile())
+			return false;
+		Reader in;
+		try {
+			in = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return false;
+		}
+		try {
+			char[] buf = new char[8192];
+			int n;
+			while ((n = in.read(buf)) >= 0)
+				out.append(CharBuffer.wrap(buf, 0, n));
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns an Appendable that passes the dispatch code through to out
+	 * while recording it under key.  The entry is written to a temporary
+	 * file and renamed on commit so that concurrent builds never see a
+	 * partial entry.
+	 */
+	public Recorder record(String key, Appendable out) {
+		return new Recorder(key, out);
+	}
+
+	public class Recorder implements Appendable {
+		final String key;
+		final Appendable out;
+		Path tmp;
+		Writer writer;
+
+		Recorder(String key, Appendable out) {
+			this.key = key;
+			this.out = out;
+			try {
+				tmp = Files.createTempFile(dir.toPath(), key, ".tmp");
+				writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				System.out.println("cannot write cache entry: "+e);
+				abort();
+			}
+		}
+
+		@Override
+		public Appendable append(CharSequence csq) throws IOException {
+			out.append(csq);
+			if (writer != null)
+				writer.append(csq);
+			return this;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) throws IOException {
+			out.append(csq, start, end);
+			if (writer != null)
+				writer.append(csq, start, end);
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) throws IOException {
+			out.append(c);
+			if (writer != null)
+				writer.append(c);
+			return this;
+		}
+
+		public void commit() {
+			if (writer == null)
+				return;
+			try {
+				writer.close();
+				writer = null;
+				Files.move(tmp, entry(key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				System.out.println("cannot write cache entry: "+e);
+				abort();
+			}
+		}
+
+		public void abort() {
+			try {
+				if (writer != null)
+					writer.close();
+				if (tmp != null)
+					Files.deleteIfExists(tmp);
+			} catch (IOException e) {
+			}
+			writer = null;
+			tmp = null;
+		}
+	}
+}
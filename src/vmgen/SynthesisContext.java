@@ -0,0 +1,115 @@
+/*
+   SynthesisContext.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import vmgen.newsynth.SubDiagramMemo;
+import vmgen.type.TypeDefinition;
+
+/**
+ * State of a single synthesis run, i.e., synthesis of the dispatch code
+ * of one instruction.  Everything a synthesiser used to keep in static
+ * fields (options, label counters, node numbering) lives here so that
+ * several instructions can be synthesised at the same time.
+ */
+public class SynthesisContext {
+	private final TypeDefinition typeDef;
+	private final InsnGen.Option option;
+	private final String labelPrefix;
+	private int nextLabel;
+	private final Random random;
+	private int nextNodeOrder;
+	private final Map<String, String> reports = new LinkedHashMap<String, String>();
+	private SubDiagramMemo subDiagramMemo;
+
+	public SynthesisContext(TypeDefinition typeDef, String labelPrefix, InsnGen.Option option) {
+		if (option == null)
+			option = new InsnGen.Option();
+		this.typeDef = typeDef;
+		this.option = option;
+		this.labelPrefix = labelPrefix;
+		nextLabel = 0;
+		random = new Random(0);
+		int seed = option.getOption(InsnGen.Option.AvailableOptions.CMP_RAND_SEED, -1);
+		if (seed >= 0)
+			random.setSeed(seed);
+		nextNodeOrder = 0;
+	}
+
+	/**
+	 * Returns the type universe the rules of the synthesis refer to.
+	 */
+	public TypeDefinition getTypeDefinition() {
+		return typeDef;
+	}
+
+	public InsnGen.Option getOption() {
+		return option;
+	}
+
+	public String getLabelPrefix() {
+		return labelPrefix;
+	}
+
+	/**
+	 * Adds a report of the synthesis, such as statistics.  InsnGen writes
+	 * it to the file of the name next to the generated code, or drops it
+	 * if the code goes to the standard output.
+	 */
+	public void addReport(String fileName, String contents) {
+		reports.put(fileName, contents);
+	}
+
+	/**
+	 * Returns the reports added so far, from file name to contents.
+	 */
+	public Map<String, String> getReports() {
+		return reports;
+	}
+
+	/**
+	 * Returns the memo of optimised sub-diagrams of the instruction, which
+	 * is handed from one synthesis of the instruction to the next, or
+	 * null if there is none.
+	 */
+	public SubDiagramMemo getSubDiagramMemo() {
+		return subDiagramMemo;
+	}
+
+	public void setSubDiagramMemo(SubDiagramMemo subDiagramMemo) {
+		this.subDiagramMemo = subDiagramMemo;
+	}
+
+	/**
+	 * Returns a fresh label of the generated code.
+	 */
+	public String newLabel() {
+		return String.format("L%s%d", labelPrefix, nextLabel++);
+	}
+
+	/**
+	 * Returns an identifier of a decision diagram node.  Identifiers
+	 * may collide; use {@link #nextNodeOrder()} to break ties.
+	 */
+	public int nextNodeId() {
+		return random.nextInt(10000);
+	}
+
+	/**
+	 * Returns the creation order of a decision diagram node.
+	 */
+	public int nextNodeOrder() {
+		return nextNodeOrder++;
+	}
+}
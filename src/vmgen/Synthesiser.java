@@ -1,7 +1,28 @@
 package vmgen;
 
+import java.io.IOException;
+
+import vmgen.type.TypeDefinition;
+
 public abstract class Synthesiser implements GlobalConstantOptions {
-	public abstract String synthesise(RuleSet plan, String prefix, InsnGen.Option option);
+	/**
+	 * Writes the dispatch code for plan to out.
+	 */
+	public abstract void synthesise(RuleSet plan, SynthesisContext ctx, Appendable out) throws IOException;
+
+	public String synthesise(RuleSet plan, SynthesisContext ctx) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			synthesise(plan, ctx, sb);
+		} catch (IOException e) {
+			throw new Error(e);  // StringBuilder never throws
+		}
+		return sb.toString();
+	}
+
+	public String synthesise(RuleSet plan, TypeDefinition typeDef, String prefix, InsnGen.Option option) {
+		return synthesise(plan, new SynthesisContext(typeDef, prefix, option));
+	}
 
 	public String getPTCode(String dispatchVar) {
 		return "get_tag("+dispatchVar+")";
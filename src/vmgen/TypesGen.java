@@ -14,6 +14,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -22,30 +25,40 @@ import vmgen.type.VMDataType;
 import vmgen.type.VMRepType;
 
 public class TypesGen {
+	TypeDefinition typeDef;
+
+	public TypesGen(TypeDefinition typeDef) {
+		this.typeDef = typeDef;
+	}
+
 	String definePT() {
 		StringBuilder sb = new StringBuilder();
-		for (VMRepType.PT pt: VMRepType.allPT()) {
+		for (VMRepType.PT pt: typeDef.allPT()) {
 			sb.append(String.format("#define %s %d\n", pt.getName(), pt.getValue()));
 			sb.append(String.format("#define %s_MASK 0x%x\n", pt.getName(), (1 << pt.getBits()) - 1));
 		}
+		/* the numeric padding cases of a switch on TAG_PAIR are computed
+		 * as in DecisionDiagram.TagPairNode.TagPair.getValue */
+		sb.append("/* TAG_PAIR(t1, t2) must be ((t2) << TAG_PAIR_SHIFT | (t1)) */\n");
+		sb.append(String.format("#define TAG_PAIR_SHIFT %d\n", typeDef.getPTBits()));
 		return sb.toString();
 	}
 
 	String defineHT() {
 		StringBuilder sb = new StringBuilder();
-		for (VMRepType.HT ht: VMRepType.allHT())
+		for (VMRepType.HT ht: typeDef.allHT())
 			sb.append(String.format("#define %s %d\n",  ht.getName(), ht.getValue()));
 		return sb.toString();
 	}
 
 	@SuppressWarnings("serial")
-	static class ClassifiedVMRepTypes extends HashMap<VMRepType.PT, Set<VMRepType>> {
+	static class ClassifiedVMRepTypes extends LinkedHashMap<VMRepType.PT, Set<VMRepType>> {
 		public ClassifiedVMRepTypes(Collection<VMRepType> rts) {
 			for (VMRepType rt: rts) {
 				VMRepType.PT pt = rt.getPT();
 				Set<VMRepType> set = this.get(pt);
 				if (set == null) {
-					set = new HashSet<VMRepType>();
+					set = new LinkedHashSet<VMRepType>();
 					this.put(pt, set);
 				}
 				set.add(rt);
@@ -53,6 +66,37 @@ public class TypesGen {
 		}
 	}
 
+	static final int MIN_HT_RANGE = 3;
+
+	/**
+	 * Finds runs of at least MIN_HT_RANGE header types with consecutive
+	 * values, which are tested as a range instead of one by one.  The
+	 * header type of each run that comes first in hts maps to the lowest
+	 * and highest ones of the run, and the others map to null.
+	 */
+	static Map<VMRepType.HT, VMRepType.HT[]> consecutiveRuns(Collection<VMRepType.HT> hts) {
+		List<VMRepType.HT> sorted = new ArrayList<VMRepType.HT>(hts);
+		sorted.sort((a, b) -> Integer.compare(a.getValue(), b.getValue()));
+		Map<VMRepType.HT, VMRepType.HT[]> runs = new HashMap<VMRepType.HT, VMRepType.HT[]>();
+		int start = 0;
+		for (int i = 1; i <= sorted.size(); i++) {
+			if (i < sorted.size() && sorted.get(i).getValue() == sorted.get(i - 1).getValue() + 1)
+				continue;
+			if (i - start >= MIN_HT_RANGE) {
+				Set<VMRepType.HT> run = new HashSet<VMRepType.HT>(sorted.subList(start, i));
+				for (VMRepType.HT ht: run)
+					runs.put(ht, null);
+				for (VMRepType.HT ht: hts)
+					if (run.contains(ht)) {
+						runs.put(ht, new VMRepType.HT[] {sorted.get(start), sorted.get(i - 1)});
+						break;
+					}
+			}
+			start = i;
+		}
+		return runs;
+	}
+
 	String minimumRepresentation(Collection<VMRepType> dts, Collection<VMRepType> among) {
 		if (!among.containsAll(dts))
 			throw new Error("Internal error");
@@ -63,8 +107,8 @@ public class TypesGen {
 		ClassifiedVMRepTypes targetMap = new ClassifiedVMRepTypes(dts);
 		ClassifiedVMRepTypes amongMap = new ClassifiedVMRepTypes(among);
 
-		Collection<VMRepType.PT> unique = new HashSet<VMRepType.PT>();
-		Collection<VMRepType.PT> common = new HashSet<VMRepType.PT>();
+		Collection<VMRepType.PT> unique = new LinkedHashSet<VMRepType.PT>();
+		Collection<VMRepType.PT> common = new LinkedHashSet<VMRepType.PT>();
 		Collection<VMRepType.HT> hts = new ArrayList<VMRepType.HT>();
 		for (VMRepType.PT pt: targetMap.keySet()) {
 			Set<VMRepType> targetSet = targetMap.get(pt);
@@ -84,9 +128,16 @@ public class TypesGen {
 			sb.append(" || ")
 			  .append(String.format("(((x) & %s_MASK) == %s)", pt.getName(), pt.getName()));
 		sb.append(") && (0");
-		for (VMRepType.HT ht : hts)
-			sb.append(" || ")
-			  .append(String.format("(obj_header_tag(x) == %s)", ht.getName()));
+		Map<VMRepType.HT, VMRepType.HT[]> ranges = consecutiveRuns(hts);
+		for (VMRepType.HT ht : hts) {
+			if (!ranges.containsKey(ht))
+				sb.append(" || ")
+				  .append(String.format("(obj_header_tag(x) == %s)", ht.getName()));
+			else if (ranges.get(ht) != null)
+				sb.append(" || ")
+				  .append(String.format("((obj_header_tag(x) >= %s) && (obj_header_tag(x) <= %s))",
+						  ranges.get(ht)[0].getName(), ranges.get(ht)[1].getName()));
+		}
 		sb.append("))");
 		for (VMRepType.PT pt : unique)
 			sb.append(" || ")
@@ -100,19 +151,19 @@ public class TypesGen {
 		StringBuilder sb = new StringBuilder();
 
 		sb.append("/* VM-DataTypes */\n");
-		for (VMDataType dt: VMDataType.all()) {
+		for (VMDataType dt: typeDef.allDataTypes()) {
 			sb.append("#define is_").append(dt.getName()).append("(x) ");
 			if (dt.getVMRepTypes().isEmpty())
 				sb.append("0  /* not used */\n");
 			else
-				sb.append(minimumRepresentation(dt.getVMRepTypes(), VMRepType.all()))
+				sb.append(minimumRepresentation(dt.getVMRepTypes(), typeDef.allRepTypes()))
 				  .append("\n");
 		}
 
 		sb.append("/* VM-RepTypes */\n");
-		for (VMDataType dt: VMDataType.all()) {
+		for (VMDataType dt: typeDef.allDataTypes()) {
 			for (VMRepType rt: dt.getVMRepTypes()) {
-				Set<VMRepType> rtSingleton = new HashSet<VMRepType>(1);
+				Set<VMRepType> rtSingleton = new LinkedHashSet<VMRepType>(1);
 				rtSingleton.add(rt);
 				sb.append("#define is_").append(rt.getName()).append("(x) ");
 				sb.append(minimumRepresentation(rtSingleton, dt.getVMRepTypes()));
@@ -123,11 +174,11 @@ public class TypesGen {
 	}
 
 	void appendDataTypeFamilyPredicates(StringBuilder sb, String name, String[] dtNames) {
-		Set<VMRepType> rts = new HashSet<VMRepType>();
+		Set<VMRepType> rts = new LinkedHashSet<VMRepType>();
 		for (String dtName: dtNames)
-			rts.addAll(VMDataType.get(dtName).getVMRepTypes());
+			rts.addAll(typeDef.getVMDataType(dtName).getVMRepTypes());
 		sb.append("#define is_").append(name).append("(x) ")
-		  .append(minimumRepresentation(rts, VMRepType.all()))
+		  .append(minimumRepresentation(rts, typeDef.allRepTypes()))
 		  .append("\n");
 	}
 
@@ -154,11 +205,11 @@ public class TypesGen {
 	String defineNeed() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("/* VM-DataTypes */\n");
-		for (VMDataType dt: VMDataType.all())
+		for (VMDataType dt: typeDef.allDataTypes())
 			if (!dt.getVMRepTypes().isEmpty())
 				sb.append("#define need_").append(dt.getName()).append(" 1\n");
 		sb.append("/* customised types */\n");
-		for (VMDataType dt: VMDataType.all()) {
+		for (VMDataType dt: typeDef.allDataTypes()) {
 			for (VMRepType rt: dt.getVMRepTypes())
 				sb.append("#define need_"+rt.getName()+" 1\n");
 			if (dt.getVMRepTypes().size() > 1)
@@ -172,7 +223,7 @@ public class TypesGen {
 
 		/* leaf types */
 		sb.append("/* leaf types */\n");
-		for (VMRepType rt: VMRepType.all()) {
+		for (VMRepType rt: typeDef.allRepTypes()) {
 			String ptName = rt.getPT().getName();
 			String cast = rt.getStruct() == null ? "" : ("("+rt.getStruct()+" *)");
 			sb.append("#define put_"+rt.getName()+"_tag(p) ")
@@ -184,18 +235,29 @@ public class TypesGen {
 		return sb.toString();
 	}
 
+	/**
+	 * Returns the whole contents of the types header for the loaded
+	 * type definition.
+	 */
+	public String generate() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(definePT()).append("\n");
+		sb.append(defineHT()).append("\n");
+		sb.append(defineTypePredicates()).append("\n");
+		sb.append(defineDTFamilyPredicates()).append("\n");
+		sb.append(defineTagOperations()).append("\n");
+		sb.append(defineNeed()).append("\n");
+		sb.append(typeDef.getQuoted()).append("\n");
+		return sb.toString();
+	}
+
 	public static void main(String[] args) throws FileNotFoundException {
+		TypeDefinition td = new TypeDefinition();
 		if (args.length == 1)
-			TypeDefinition.load(args[0]);
+			td.load(args[0]);
 		else
-			TypeDefinition.load("datatype/new.dtdef"); // debug
-		TypesGen tg = new TypesGen();
-		System.out.println(tg.definePT());
-		System.out.println(tg.defineHT());
-		System.out.println(tg.defineTypePredicates());
-		System.out.println(tg.defineDTFamilyPredicates());
-		System.out.println(tg.defineTagOperations());
-		System.out.println(tg.defineNeed());
-		System.out.println(TypeDefinition.getQuoted());
+			td.load("datatype/new.dtdef"); // debug
+		TypesGen tg = new TypesGen(td);
+		System.out.print(tg.generate());
 	}
 }
@@ -0,0 +1,232 @@
+/*
+   Watcher.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import vmgen.type.TypeDefinition;
+import vmgen.type.VMDataType;
+
+/**
+ * Implementation of InsnGen --watch.  Parsed instruction definitions,
+ * the type definition and the operand specifications are kept in memory.
+ * When an input file changes, only that file is parsed again and only the
+ * instructions whose synthesis inputs have changed are regenerated.
+ */
+class Watcher {
+	/* time to wait for further events after one arrives; editors often
+	 * write a file in several steps */
+	static final long SETTLE_MILLIS = 50;
+
+	final InsnGen.Flavour flavour;
+	final Path typeDefPath;
+	final Path operandSpecPath;
+
+	/* instruction definition file -> instructions defined in it */
+	LinkedHashMap<Path, List<ProcDefinition.InstDefinition>> insnDefs = new LinkedHashMap<Path, List<ProcDefinition.InstDefinition>>();
+	/* instruction name -> fingerprint of the inputs it was generated from */
+	HashMap<String, String> generated = new HashMap<String, String>();
+	/* changed files not read yet because an update failed */
+	Set<Path> pending = new HashSet<Path>();
+
+	WatchService watchService;
+	Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+
+	Watcher(InsnGen.Flavour flavour) {
+		this.flavour = flavour;
+		typeDefPath = canonical(flavour.typeDefFile);
+		operandSpecPath = canonical(InsnGen.operandSpecFile);
+		for (ProcDefinition.InstDefinition insnDef: flavour.insnDefs) {
+			insnDefs.computeIfAbsent(canonical(insnDef.sourceFile), p -> new ArrayList<ProcDefinition.InstDefinition>()).add(insnDef);
+			generated.put(insnDef.name, fingerprint(insnDef));
+		}
+	}
+
+	static Path canonical(String file) {
+		return new File(file).toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Returns a string that changes iff the generated code of the
+	 * instruction may change: the rules after operand specifications are
+	 * applied, the representation of data types they mention, and the
+	 * code around the dispatch.
+	 */
+	String fingerprint(ProcDefinition.InstDefinition insnDef) {
+		Set<String> unusedActions = new HashSet<String>();
+		RuleSet p = InsnGen.makeRuleSet(insnDef, flavour.operandSpec, unusedActions);
+		StringBuilder sb = new StringBuilder();
+		sb.append(SynthesisCache.normaliseRuleSet(insnDef.name, p));
+		TreeSet<VMDataType> dts = new TreeSet<VMDataType>();
+		for (RuleSet.Rule r: p.getRules())
+			for (VMDataType[][] cube: r.getConditionSet().toCubes())
+				for (VMDataType[] component: cube)
+					for (VMDataType dt: component)
+						dts.add(dt);
+		for (VMDataType dt: dts)
+			sb.append(SynthesisCache.normaliseDataType(dt));
+		for (String a: new TreeSet<String>(unusedActions))
+			sb.append("unused ").append(a.length()).append(':').append(a).append('\n');
+		sb.append("prologue ").append(insnDef.prologue).append('\n');
+		sb.append("epilogue ").append(insnDef.epilogue).append('\n');
+		return sb.toString();
+	}
+
+	void watchDirectory(Path dir) throws IOException {
+		if (dir == null || watchedDirs.containsValue(dir))
+			return;
+		WatchKey key = dir.register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		watchedDirs.put(key, dir);
+	}
+
+	void watchInputs() throws IOException {
+		watchDirectory(typeDefPath.getParent());
+		watchDirectory(operandSpecPath.getParent());
+		for (String elem: InsnGen.insnDefFile.split(File.pathSeparator)) {
+			if (elem.isEmpty())
+				continue;
+			Path p = canonical(elem);
+			if (p.toFile().isDirectory())
+				watchDirectory(p);
+			else
+				watchDirectory(p.getParent());
+		}
+	}
+
+	void collectEvents(WatchKey key, Set<Path> changed) {
+		Path dir = watchedDirs.get(key);
+		for (WatchEvent<?> event: key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+				continue;
+			changed.add(dir.resolve((Path) event.context()));
+		}
+		key.reset();
+	}
+
+	void run() throws IOException {
+		watchService = FileSystems.getDefault().newWatchService();
+		watchInputs();
+		System.out.println("watching for changes");
+		while (true) {
+			Set<Path> changed = new HashSet<Path>();
+			try {
+				collectEvents(watchService.take(), changed);
+				WatchKey key;
+				while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null)
+					collectEvents(key, changed);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				update(changed);
+				watchInputs();
+			} catch (Exception | Error e) {
+				/* keep watching; the user will fix the input */
+				System.out.println("error: "+e);
+			}
+		}
+	}
+
+	void update(Set<Path> changed) throws IOException {
+		long start = System.currentTimeMillis();
+
+		/* Changes are kept until they have been read.  The definitions
+		 * are read into locals and replace those in flavour only when all
+		 * of them have been read, so that a failure never leaves a mix of
+		 * two type universes. */
+		pending.addAll(changed);
+
+		/* A new type definition makes a new type universe; everything
+		 * read against the old one has to be read again. */
+		boolean typesChanged = pending.contains(typeDefPath);
+		TypeDefinition typeDef = flavour.typeDef;
+		if (typesChanged) {
+			System.out.println("reloading "+typeDefPath);
+			typeDef = new TypeDefinition();
+			typeDef.load(flavour.typeDefFile);
+		}
+		OperandSpecifications spec = flavour.operandSpec;
+		if (typesChanged || pending.contains(operandSpecPath)) {
+			System.out.println("reloading "+operandSpecPath);
+			spec = new OperandSpecifications(typeDef);
+			spec.load(InsnGen.operandSpecFile);
+		}
+
+		/* instruction definitions; files may have been added or removed */
+		LinkedHashMap<Path, List<ProcDefinition.InstDefinition>> newDefs = new LinkedHashMap<Path, List<ProcDefinition.InstDefinition>>();
+		List<ProcDefinition.InstDefinition> all = new ArrayList<ProcDefinition.InstDefinition>();
+		Set<String> names = new HashSet<String>();
+		for (String file: InsnGen.expandInsnDefFiles(InsnGen.insnDefFile)) {
+			Path p = canonical(file);
+			List<ProcDefinition.InstDefinition> defs = insnDefs.get(p);
+			if (defs == null || typesChanged || pending.contains(p)) {
+				System.out.println("parsing "+file);
+				defs = new ProcDefinition(typeDef).load(file);
+			}
+			newDefs.put(p, defs);
+			for (ProcDefinition.InstDefinition insnDef: defs)
+				if (!names.add(insnDef.name))
+					throw new Error("duplicate definition of instruction "+insnDef.name+" in "+p);
+			all.addAll(defs);
+		}
+
+		flavour.typeDef = typeDef;
+		flavour.operandSpec = spec;
+		insnDefs = newDefs;
+		flavour.insnDefs = all;
+		pending.clear();
+		if (typesChanged) {
+			flavour.subDiagramMemos.clear();
+			if (flavour.typesFile != null)
+				InsnGen.writeTypes(flavour);
+		}
+		flavour.subDiagramMemos.keySet().retainAll(names);
+
+		/* regenerate instructions whose inputs have changed */
+		List<ProcDefinition.InstDefinition> targets = new ArrayList<ProcDefinition.InstDefinition>();
+		List<String> fingerprints = new ArrayList<String>();
+		for (ProcDefinition.InstDefinition insnDef: all) {
+			String fp = fingerprint(insnDef);
+			if (!fp.equals(generated.get(insnDef.name))) {
+				targets.add(insnDef);
+				fingerprints.add(fp);
+			}
+		}
+		if (targets.isEmpty())
+			return;
+		InsnGen.generateAll(flavour, targets);
+		for (int i = 0; i < targets.size(); i++) {
+			ProcDefinition.InstDefinition insnDef = targets.get(i);
+			generated.put(insnDef.name, fingerprints.get(i));
+			System.out.println("regenerated "+insnDef.name);
+		}
+		System.out.println(targets.size()+" instruction(s) in "+(System.currentTimeMillis() - start)+" ms");
+	}
+}
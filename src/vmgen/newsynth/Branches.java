@@ -0,0 +1,162 @@
+/*
+   Branches.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+ */
+package vmgen.newsynth;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import vmgen.newsynth.DecisionDiagram.Node;
+
+/**
+ * Edges of a TagNode.  Tags are kept sorted in their natural order in one
+ * array and the children they lead to in a parallel array, so iterating
+ * over the edges allocates nothing and a node takes memory proportional
+ * to its edges however large the tag universe is.  The distinct children
+ * and the map from a child to its tags are computed on demand and kept
+ * until the edges change.
+ */
+class Branches<T> {
+    static final int INITIAL_CAPACITY = 4;
+
+    Object[] tags = new Object[INITIAL_CAPACITY];
+    Node[] children = new Node[INITIAL_CAPACITY];
+    int size;
+
+    final List<T> tagView = new AbstractList<T>() {
+        @Override
+        public T get(int i) {
+            return tagAt(i);
+        }
+        @Override
+        public int size() {
+            return size;
+        }
+    };
+    List<Node> distinctChildren;
+    TreeMap<Node, TreeSet<T>> childToTags;
+
+    @SuppressWarnings("unchecked")
+    T tagAt(int i) {
+        return (T) tags[i];
+    }
+
+    Node childAt(int i) {
+        return children[i];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /* index of the tag, or -(insertion point) - 1 */
+    @SuppressWarnings("unchecked")
+    int find(T tag) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = ((Comparable<T>) tags[mid]).compareTo(tag);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+
+    Node get(T tag) {
+        int i = find(tag);
+        return i >= 0 ? children[i] : null;
+    }
+
+    void put(T tag, Node child) {
+        int i = find(tag);
+        if (i >= 0) {
+            children[i] = child;
+            changed();
+            return;
+        }
+        i = -i - 1;
+        if (size == tags.length) {
+            int capacity = size * 2;
+            Object[] newTags = new Object[capacity];
+            Node[] newChildren = new Node[capacity];
+            System.arraycopy(tags, 0, newTags, 0, size);
+            System.arraycopy(children, 0, newChildren, 0, size);
+            tags = newTags;
+            children = newChildren;
+        }
+        System.arraycopy(tags, i, tags, i + 1, size - i);
+        System.arraycopy(children, i, children, i + 1, size - i);
+        tags[i] = tag;
+        children[i] = child;
+        size++;
+        changed();
+    }
+
+    // replaces the child only if the tag has an edge
+    void replace(T tag, Node child) {
+        int i = find(tag);
+        if (i >= 0) {
+            children[i] = child;
+            changed();
+        }
+    }
+
+    void changed() {
+        distinctChildren = null;
+        childToTags = null;
+    }
+
+    // tags in order; a view that follows changes
+    List<T> tags() {
+        return tagView;
+    }
+
+    // the child if all edges lead to the same child, otherwise null
+    Node getSingleChild() {
+        Node single = null;
+        for (int i = 0; i < size; i++) {
+            if (single == null)
+                single = children[i];
+            else if (children[i] != single)
+                return null;
+        }
+        return single;
+    }
+
+    // distinct children in the order of nodes; must not be modified
+    List<Node> getChildren() {
+        if (distinctChildren == null) {
+            TreeSet<Node> s = new TreeSet<Node>();
+            for (int i = 0; i < size; i++)
+                s.add(children[i]);
+            distinctChildren = Collections.unmodifiableList(new ArrayList<Node>(s));
+        }
+        return distinctChildren;
+    }
+
+    // must not be modified
+    TreeMap<Node, TreeSet<T>> getChildToTagsMap() {
+        if (childToTags == null) {
+            childToTags = new TreeMap<Node, TreeSet<T>>();
+            for (int i = 0; i < size; i++)
+                childToTags.computeIfAbsent(children[i], c -> new TreeSet<T>()).add(tagAt(i));
+        }
+        return childToTags;
+    }
+}
@@ -10,6 +10,8 @@
  */
 package vmgen.newsynth;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -25,10 +27,11 @@ import vmgen.type.VMRepType.HT;
 import vmgen.type.VMRepType.PT;
 
 class CodeGenerateVisitor extends NodeVisitor<Void> {
-    static boolean USE_GOTO = true;
-    static boolean PAD_CASES = true;
-    static boolean USE_DEFAULT = false;  // add default by the same strategy as -old (exclusive to PAD_CASES)
-    static boolean DEBUG_COMMENT = true;
+    static final boolean DEFAULT_USE_GOTO = true;
+    static final boolean DEFAULT_PAD_CASES = true;
+    static final int DEFAULT_PAD_LIMIT = 64;  // covers every gap between pairs of 3-bit pointer tags
+    static final boolean DEFAULT_USE_DEFAULT = false;  // add default by the same strategy as -old (exclusive to PAD_CASES)
+    static final boolean DEFAULT_DEBUG_COMMENT = true;
     static class Macro {
         int nextLabel = 0;
 
@@ -50,43 +53,71 @@ class CodeGenerateVisitor extends NodeVisitor<Void> {
     }
 
     Option option;
-    StringBuffer sb = new StringBuffer();
+    final boolean useGoto;
+    final boolean padCases;
+    final int padLimit;
+    final boolean useDefault;
+    final boolean debugComment;
+    Appendable out;
     Macro tagMacro;
     String[] varNames;
     TreeMap<Node, String> labels = new TreeMap<Node, String>();
 
-    public CodeGenerateVisitor(String[] varNames, Macro tagMacro, Option option) {
+    public CodeGenerateVisitor(String[] varNames, Macro tagMacro, Option option, Appendable out) {
+        this.out = out;
         this.varNames = varNames;
         this.tagMacro = tagMacro;
         this.option = option;
-        USE_GOTO = option.getOption(Option.AvailableOptions.GEN_USE_GOTO, USE_GOTO);
-        PAD_CASES = option.getOption(Option.AvailableOptions.GEN_PAD_CASES, PAD_CASES);
-        USE_DEFAULT = option.getOption(Option.AvailableOptions.GEN_USE_DEFAULT, USE_DEFAULT);
-        DEBUG_COMMENT = option.getOption(Option.AvailableOptions.GEN_DEBUG_COMMENT, DEBUG_COMMENT);
+        useGoto = option.getOption(Option.AvailableOptions.GEN_USE_GOTO, DEFAULT_USE_GOTO);
+        padCases = option.getOption(Option.AvailableOptions.GEN_PAD_CASES, DEFAULT_PAD_CASES);
+        padLimit = option.getOption(Option.AvailableOptions.GEN_PAD_LIMIT, DEFAULT_PAD_LIMIT);
+        useDefault = option.getOption(Option.AvailableOptions.GEN_USE_DEFAULT, DEFAULT_USE_DEFAULT);
+        debugComment = option.getOption(Option.AvailableOptions.GEN_DEBUG_COMMENT, DEFAULT_DEBUG_COMMENT);
     }
 
-    @Override
-    public String toString() {
+    // Visitors cannot throw checked exceptions; an IOException of the
+    // output is rethrown unchecked and unwrapped by generateCodeForNode.
+    CodeGenerateVisitor append(CharSequence s) {
+        try {
+            out.append(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    CodeGenerateVisitor append(char c) {
+        try {
+            out.append(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    CodeGenerateVisitor append(Object o) {
+        return append(String.valueOf(o));
+    }
+
+    void finish() {
         if (option.getOption(Option.AvailableOptions.GEN_MAGIC_COMMENT, false)) {
-            return sb.toString() +
-                    "/* Local Variables: */\n" +
-                    "/* mode: c */\n" +
-                    "/* c-basic-offset: 4 */\n" +
-                    "/* End: */\n";
-        } else
-            return sb.toString();
+            append("/* Local Variables: */\n");
+            append("/* mode: c */\n");
+            append("/* c-basic-offset: 4 */\n");
+            append("/* End: */\n");
+        }
     }
 
     boolean processSharedNode(Node node) {
-        if (USE_GOTO) {
+        if (useGoto) {
             String label = labels.get(node);
             if (label != null) {
-                sb.append("goto ").append(label).append(";\n");
+                append("goto ").append(label).append(";\n");
                 return true;
             }
             label = tagMacro.getLabel();
             labels.put(node, label);
-            sb.append(label).append(":");
+            append(label).append(":");
         }
         return false;
     }
@@ -95,34 +126,44 @@ class CodeGenerateVisitor extends NodeVisitor<Void> {
     Void visitLeaf(Leaf node) {
         if (processSharedNode(node))
             return null;
-        sb.append("{");
-        if (DEBUG_COMMENT) {
-            sb.append(" //");
+        append("{");
+        if (debugComment) {
+            append(" //");
             for (VMRepType rt: node.getRule().getVMRepTypes())
-                sb.append(" ").append(rt.getName());
-            sb.append(" ").append(node);
+                append(" ").append(rt.getName());
+            append(" ").append(node);
         }
-        sb.append('\n').append(node.getRule().getHLRule().action).append("}\n");
+        append('\n').append(node.getRule().getHLRule().action).append("}\n");
         return null;
     }
+    /*
+     * Adds cases for the values between the tag and the next smaller tag
+     * of the switch so that the compiler can make a dense jump table, and
+     * default to the largest tag.  A gap wider than padLimit is not filled;
+     * otherwise a wide tag universe would fill every switch with cases.
+     */
+    void appendPadding(int value, TreeSet<Integer> tagValues) {
+        Integer lower = tagValues.lower(value);
+        int from = lower == null ? 0 : lower + 1;
+        if (value - from <= padLimit)
+            for (int v = value - 1; v >= from; v--)
+                append("case ").append(Integer.toString(v)).append(":\n");
+        if (value == tagValues.last())
+            append("default:\n");
+    }
     @Override
     Void visitTagPairNode(TagPairNode node) {
         if (processSharedNode(node))
             return null;
         TreeMap<Node, TreeSet<TagPairNode.TagPair>> childToTags = node.getChildToTagsMap();
-        sb.append("switch(").append(tagMacro.composeTagPairCode(varNames[0], varNames[1])).append("){");
-        if (DEBUG_COMMENT)
-            sb.append(" // "+node+"("+childToTags.size()+")");
-        sb.append('\n');
+        append("switch(").append(tagMacro.composeTagPairCode(varNames[0], varNames[1])).append("){");
+        if (debugComment)
+            append(" // ").append(node).append('(').append(childToTags.size()).append(')');
+        append('\n');
 
         TreeSet<Integer> tagValues = new TreeSet<Integer>();
-        int max = 0;
-        for (TagPair tag: node.getEdges()) {
-            int v = tag.getValue();
-            tagValues.add(v);
-            if (v > max)
-                max = v;
-        }
+        for (TagPair tag: node.getEdges())
+            tagValues.add(tag.getValue());
         Node defaultChild = null;
         int defaultChildCases = 0;
         for (Node child: childToTags.keySet()) {
@@ -135,27 +176,20 @@ class CodeGenerateVisitor extends NodeVisitor<Void> {
 
         for (Node child: childToTags.keySet()) {
             for (TagPairNode.TagPair tag: childToTags.get(child)) {
-                sb.append("case ").append(tagMacro.composeTagPairLiteral(tag.op1.getName(), tag.op2.getName())).append(":\n");
-                if (PAD_CASES) {
-                    for (int v = tag.getValue() - 1; v >= 0; v--) {
-                        if (tagValues.contains(v))
-                            break;
-                        sb.append("case "+v+":\n");
-                    }
-                    if (tag.getValue() == max)
-                        sb.append("default:\n");
-                }
+                append("case ").append(tagMacro.composeTagPairLiteral(tag.op1.getName(), tag.op2.getName())).append(":\n");
+                if (padCases)
+                    appendPadding(tag.getValue(), tagValues);
             }
-            if (USE_DEFAULT) {
+            if (useDefault) {
                 if (child == defaultChild)
-                    sb.append("default:\n");
+                    append("default:\n");
             }			child.accept(this);
-            sb.append("break;\n");
+            append("break;\n");
         }
-        sb.append("}");
-        if (DEBUG_COMMENT)
-            sb.append(" // "+node);
-        sb.append('\n');
+        append("}");
+        if (debugComment)
+            append(" // ").append(node);
+        append('\n');
         return null;
     }
     @Override
@@ -163,19 +197,14 @@ class CodeGenerateVisitor extends NodeVisitor<Void> {
         if (processSharedNode(node))
             return null;
         TreeMap<Node, TreeSet<PT>> childToTags = node.getChildToTagsMap();
-        sb.append("switch(").append(tagMacro.getPTCode(varNames[node.getOpIndex()])).append("){");
-        if (DEBUG_COMMENT)
-            sb.append(" // "+node+"("+childToTags.size()+")");
-        sb.append('\n');
+        append("switch(").append(tagMacro.getPTCode(varNames[node.getOpIndex()])).append("){");
+        if (debugComment)
+            append(" // ").append(node).append('(').append(childToTags.size()).append(')');
+        append('\n');
 
         TreeSet<Integer> tagValues = new TreeSet<Integer>();
-        int max = 0;
-        for (PT tag: node.getEdges()) {
-            int v = tag.getValue();
-            tagValues.add(v);
-            if (v > max)
-                max = v;
-        }
+        for (PT tag: node.getEdges())
+            tagValues.add(tag.getValue());
         Node defaultChild = null;
         int defaultChildCases = 0;
         for (Node child: childToTags.keySet()) {
@@ -188,28 +217,21 @@ class CodeGenerateVisitor extends NodeVisitor<Void> {
 
         for (Node child: childToTags.keySet()) {
             for (PT tag: childToTags.get(child)) {
-                sb.append("case "+tag.getName()+":\n");
-                if (PAD_CASES) {
-                    for (int v = tag.getValue() - 1; v >= 0; v--) {
-                        if (tagValues.contains(v))
-                            break;
-                        sb.append("case "+v+":\n");
-                    }
-                    if (tag.getValue() == max)
-                        sb.append("default:\n");
-                }
+                append("case ").append(tag.getName()).append(":\n");
+                if (padCases)
+                    appendPadding(tag.getValue(), tagValues);
             }
-            if (USE_DEFAULT) {
+            if (useDefault) {
                 if (child == defaultChild)
-                    sb.append("default:\n");
+                    append("default:\n");
             }
             child.accept(this);
-            sb.append("break;\n");
+            append("break;\n");
         }
-        sb.append("}");
-        if (DEBUG_COMMENT)
-            sb.append(" // "+node);
-        sb.append('\n');
+        append("}");
+        if (debugComment)
+            append(" // ").append(node);
+        append('\n');
         return null;
     }
     @Override
@@ -221,19 +243,14 @@ class CodeGenerateVisitor extends NodeVisitor<Void> {
             return null;
         }
         TreeMap<Node, TreeSet<HT>> childToTags = node.getChildToTagsMap();
-        sb.append("switch(").append(tagMacro.getHTCode(varNames[node.getOpIndex()])).append("){");
-        if (DEBUG_COMMENT)
-            sb.append(" // "+node+"("+childToTags.size()+")");
-        sb.append('\n');
+        append("switch(").append(tagMacro.getHTCode(varNames[node.getOpIndex()])).append("){");
+        if (debugComment)
+            append(" // ").append(node).append('(').append(childToTags.size()).append(')');
+        append('\n');
 
         TreeSet<Integer> tagValues = new TreeSet<Integer>();
-        int max = 0;
-        for (HT tag: node.getEdges()) {
-            int v = tag.getValue();
-            tagValues.add(v);
-            if (v > max)
-                max = v;
-        }
+        for (HT tag: node.getEdges())
+            tagValues.add(tag.getValue());
         Node defaultChild = null;
         int defaultChildCases = 0;
         for (Node child: childToTags.keySet()) {
@@ -246,28 +263,21 @@ class CodeGenerateVisitor extends NodeVisitor<Void> {
 
         for (Node child: childToTags.keySet()) {
             for (HT tag: childToTags.get(child))  {
-                sb.append("case "+tag.getName()+":\n");
-                if (PAD_CASES) {
-                    for (int v = tag.getValue() - 1; v >= 0; v--) {
-                        if (tagValues.contains(v))
-                            break;
-                        sb.append("case "+v+":\n");
-                    }
-                    if (tag.getValue() == max)
-                        sb.append("default:\n");
-                }
+                append("case ").append(tag.getName()).append(":\n");
+                if (padCases)
+                    appendPadding(tag.getValue(), tagValues);
             }
-            if (USE_DEFAULT) {
+            if (useDefault) {
                 if (child == defaultChild)
-                    sb.append("default:\n");
+                    append("default:\n");
             }
             child.accept(this);
-            sb.append("break;\n");
+            append("break;\n");
         }
-        sb.append("}");
-        if (DEBUG_COMMENT)
-            sb.append("// "+node);
-        sb.append('\n');
+        append("}");
+        if (debugComment)
+            append("// ").append(node);
+        append('\n');
         return null;
     }
 }
\ No newline at end of file
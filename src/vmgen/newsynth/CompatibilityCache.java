@@ -0,0 +1,67 @@
+/*
+   CompatibilityCache.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+ */
+package vmgen.newsynth;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import vmgen.InsnGen.Option;
+import vmgen.newsynth.DecisionDiagram.Leaf;
+import vmgen.newsynth.DecisionDiagram.Node;
+
+/**
+ * Results of IsCompatibleVisitor during an optimisation pass, including
+ * those for the pairs of children compared on the way.  Merging does not
+ * change existing nodes, so results stay valid until a pass replaces
+ * children of a node; the pass has to call invalidate before doing so.
+ */
+class CompatibilityCache {
+    final boolean sizeIncreasingMerge;
+    final boolean correctCompatibility;
+
+    // nodes do not override equals; these are identity maps
+    ConcurrentHashMap<Node, ConcurrentHashMap<Node, Boolean>> memo = new ConcurrentHashMap<Node, ConcurrentHashMap<Node, Boolean>>();
+    Set<Node> compared = ConcurrentHashMap.newKeySet();
+
+    CompatibilityCache(Option option) {
+        sizeIncreasingMerge = option.getOption(Option.AvailableOptions.CMP_SIZE_INCREASING_MERGE, false);
+        correctCompatibility = option.getOption(Option.AvailableOptions.CMP_CORRECT_COMPATIBILITY, true);
+    }
+
+    boolean isCompatible(Node a, Node b) {
+        // not worth recording
+        if (a instanceof Leaf || b instanceof Leaf)
+            return b.accept(new IsCompatibleVisitor(a, this));
+
+        ConcurrentHashMap<Node, Boolean> row = memo.computeIfAbsent(a, n -> new ConcurrentHashMap<Node, Boolean>());
+        Boolean result = row.get(b);
+        if (result == null) {
+            result = b.accept(new IsCompatibleVisitor(a, this));
+            row.put(b, result);
+            compared.add(a);
+            compared.add(b);
+        }
+        return result;
+    }
+
+    /**
+     * Called before children of the node are replaced.  A result about
+     * other nodes can depend on the node only if it was computed by
+     * comparing the node, so nothing is forgotten unless the node has
+     * been compared.
+     */
+    void invalidate(Node node) {
+        if (compared.contains(node)) {
+            memo.clear();
+            compared.clear();
+        }
+    }
+}
@@ -10,20 +10,31 @@
  */
 package vmgen.newsynth;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import vmgen.InsnGen.Option;
+import vmgen.RuleSet;
+import vmgen.SynthesisContext;
 import vmgen.newsynth.LLRuleSet.LLRule;
+import vmgen.type.TypeDefinition;
+import vmgen.type.VMDataType;
+import vmgen.type.VMDataTypeVecSet;
 import vmgen.type.VMRepType;
 import vmgen.type.VMRepType.HT;
 import vmgen.type.VMRepType.PT;
 
 public class DecisionDiagram {
-    static Option option;
     public static int MERGE_LEVEL = 2; // 0-2: 0 is execution spped oriendted, 2 is size oriented
 
     static abstract class DispatchCriterion {
@@ -33,7 +44,11 @@ public class DecisionDiagram {
     static class TagPairDispatch extends DispatchCriterion {
         @Override
         public boolean available(int arity) {
-            return arity == 2;
+            return arity >= 2;
+        }
+        @Override
+        public String toString() {
+            return "TAGPAIR";
         }
     }
 
@@ -49,6 +64,10 @@ public class DecisionDiagram {
         int getOpIndex() {
             return opIndex;
         }
+        @Override
+        public String toString() {
+            return "PT"+opIndex;
+        }
     }
 
     static class HTDispatch extends DispatchCriterion {
@@ -63,20 +82,20 @@ public class DecisionDiagram {
         int getOpIndex() {
             return opIndex;
         }
+        @Override
+        public String toString() {
+            return "HT"+opIndex;
+        }
     }
 
     static abstract class Node implements Comparable<Node> {
-        static int lastId = 0;
-        static java.util.Random r = new java.util.Random();
-        static {
-            r.setSeed(0);
-        }
-        static void srand(int n) {
-            r.setSeed(n);
-        }
+        int id;
+        int genOrder;
 
-        int id = r.nextInt(10000); //lastId++;
-        int genOrder = lastId++;
+        Node(SynthesisContext ctx) {
+            id = ctx.nextNodeId();
+            genOrder = ctx.nextNodeOrder();
+        }
 
         @Override
         public int hashCode() {
@@ -84,21 +103,30 @@ public class DecisionDiagram {
         }
 
         abstract <R> R accept(NodeVisitor<R> visitor);		
+        // nodes are shared after merging; each is measured once
         int depth() {
+            return depth(new IdentityHashMap<Node, Integer>());
+        }
+        int depth(IdentityHashMap<Node, Integer> measured) {
+            Integer d = measured.get(this);
+            if (d != null)
+                return d;
             int max = 0;
             for (Node child: getChildren()) {
-                int d = child.depth();
-                if (d > max)
-                    max = d;
+                int dc = child.depth(measured);
+                if (dc > max)
+                    max = dc;
             }
+            measured.put(this, max + 1);
             return max + 1;
         }
-        abstract ArrayList<Node> getChildren();
+        // distinct children in the order of nodes; must not be modified
+        abstract List<Node> getChildren();
 
         // returns a merged node
         // other should be compatible with this
         // this method does not mutate this object
-        abstract Node merge(Node other);
+        abstract Node merge(Node other, SynthesisContext ctx);
 
         @Override
         public int compareTo(Node other) {
@@ -111,7 +139,8 @@ public class DecisionDiagram {
 
     static class Leaf extends Node {
         LLRuleSet.LLRule rule;
-        Leaf(LLRuleSet.LLRule rule) {
+        Leaf(SynthesisContext ctx, LLRuleSet.LLRule rule) {
+            super(ctx);
             this.rule = rule;
         }
         LLRuleSet.LLRule getRule() {
@@ -122,23 +151,24 @@ public class DecisionDiagram {
             return visitor.visitLeaf(this);
         }
         @Override
-        ArrayList<Node> getChildren() {
-            return new ArrayList<Node>();
+        List<Node> getChildren() {
+            return Collections.emptyList();
         }
         boolean hasSameHLRule(Leaf other) {
             return getRule().getHLRule() == other.getRule().getHLRule();
         }
         @Override
-        Node merge(Node otherx) {
+        Node merge(Node otherx, SynthesisContext ctx) {
             return this;
         }
     }
 
     static abstract class TagNode<T> extends Node {
         int opIndex;
-        TreeMap<T, Node> branches = new TreeMap<T, Node>();
+        Branches<T> branches = new Branches<T>();
 
-        TagNode(int opIndex) {
+        TagNode(SynthesisContext ctx, int opIndex) {
+            super(ctx);
             this.opIndex = opIndex;
         }
         void addBranch(TreeDigger digger, T tag) {
@@ -151,14 +181,15 @@ public class DecisionDiagram {
             return visitor.visitTagNode(this);
         }
         @Override
-        ArrayList<Node> getChildren() {
-            TreeSet<Node> s = new TreeSet<Node>();
-            for (T tag: branches.keySet())
-                s.add(branches.get(tag));
-            return new ArrayList<Node>(s);
+        List<Node> getChildren() {
+            return branches.getChildren();
+        }
+        // the child if all branches lead to the same child, otherwise null
+        Node getSingleChild() {
+            return branches.getSingleChild();
         }
-        Set<T> getEdges() {
-            return branches.keySet();
+        List<T> getEdges() {
+            return branches.tags();
         }
         void replaceChild(T tag, Node child) {
             branches.replace(tag, child);
@@ -169,34 +200,37 @@ public class DecisionDiagram {
         int getOpIndex() {
             return opIndex;
         }
-        void makeMergedNode(TagNode<T> n1, TagNode<T> n2) {
-            TreeSet<T> union = new TreeSet<T>(n1.branches.keySet());
-            union.addAll(n2.branches.keySet());
-            for (T tag: union) {
-                Node c1 = n1.branches.get(tag);
-                Node c2 = n2.branches.get(tag);
-                if (c1 == null)
-                    branches.put(tag, c2);
-                else if (c2 == null)
-                    branches.put(tag, c1);
-                else {
-                    Node child = c1.merge(c2);
-                    branches.put(tag, child);
+        @SuppressWarnings("unchecked")
+        void makeMergedNode(TagNode<T> n1, TagNode<T> n2, SynthesisContext ctx) {
+            // walk the sorted edges of both nodes in step
+            Branches<T> b1 = n1.branches;
+            Branches<T> b2 = n2.branches;
+            int i = 0, j = 0;
+            while (i < b1.size() || j < b2.size()) {
+                int c;
+                if (i == b1.size())
+                    c = 1;
+                else if (j == b2.size())
+                    c = -1;
+                else
+                    c = ((Comparable<T>) b1.tagAt(i)).compareTo(b2.tagAt(j));
+                if (c < 0) {
+                    branches.put(b1.tagAt(i), b1.childAt(i));
+                    i++;
+                } else if (c > 0) {
+                    branches.put(b2.tagAt(j), b2.childAt(j));
+                    j++;
+                } else {
+                    Node child = b1.childAt(i).merge(b2.childAt(j), ctx);
+                    branches.put(b1.tagAt(i), child);
+                    i++;
+                    j++;
                 }
             }
         }
+        // must not be modified
         TreeMap<Node, TreeSet<T>> getChildToTagsMap() {
-            TreeMap<Node, TreeSet<T>> childToTags = new TreeMap<Node, TreeSet<T>>();
-            for (T tag: branches.keySet()) {
-                Node child = branches.get(tag);
-                TreeSet<T> tags = childToTags.get(child);
-                if (tags == null) {
-                    tags = new TreeSet<T>();
-                    childToTags.put(child, tags);
-                }
-                tags.add(tag);
-            }
-            return childToTags;
+            return branches.getChildToTagsMap();
         }
     }
 
@@ -204,7 +238,7 @@ public class DecisionDiagram {
         static class TagPair implements Comparable<TagPair> {
             @Override
             public int hashCode() {
-                return (op1.getValue() << 8) + op2.getValue();
+                return op1.getValue() * 31 + op2.getValue();
             }
             @Override
             public boolean equals(Object obj) {
@@ -217,10 +251,14 @@ public class DecisionDiagram {
             }
             @Override
             public int compareTo(TagPair other) {
-                return this.hashCode() - other.hashCode();
+                int c = Integer.compare(op1.getValue(), other.op1.getValue());
+                if (c != 0)
+                    return c;
+                return Integer.compare(op2.getValue(), other.op2.getValue());
             }
+            /* TAG_PAIR(op1, op2) of the VM, which shifts op2 by TAG_PAIR_SHIFT of the types header */
             public int getValue() {
-                return (op2.getValue() << 3 | op1.getValue());
+                return op2.getValue() << op1.getTypeDefinition().getPTBits() | op1.getValue();
             }
             PT op1;
             PT op2;
@@ -229,32 +267,32 @@ public class DecisionDiagram {
                 this.op2 = op2;
             }
         };
-        TagPairNode() {
-            super(-1);
+        TagPairNode(SynthesisContext ctx) {
+            super(ctx, -1);
         }
         @Override
         <R> R accept(NodeVisitor<R> visitor) {
             return visitor.visitTagPairNode(this);
         }
         @Override
-        Node merge(Node otherx) {
+        Node merge(Node otherx, SynthesisContext ctx) {
             throw new Error("merge for TagPairNode is called");
         }
     }
 
     static class PTNode extends TagNode<PT> {
-        PTNode(int opIndex) {
-            super(opIndex);
+        PTNode(SynthesisContext ctx, int opIndex) {
+            super(ctx, opIndex);
         }
         @Override
         <R> R accept(NodeVisitor<R> visitor) {
             return visitor.visitPTNode(this);
         }
         @Override
-        Node merge(Node otherx) {
+        Node merge(Node otherx, SynthesisContext ctx) {
             PTNode other = (PTNode) otherx;
-            PTNode merged = new PTNode(opIndex);
-            merged.makeMergedNode(this, other);
+            PTNode merged = new PTNode(ctx, opIndex);
+            merged.makeMergedNode(this, other, ctx);
             return merged;
         }
     }
@@ -262,8 +300,8 @@ public class DecisionDiagram {
     static class HTNode extends TagNode<HT> {
         boolean noHT;
         Node child;
-        HTNode(int opIndex) {
-            super(opIndex);
+        HTNode(SynthesisContext ctx, int opIndex) {
+            super(ctx, opIndex);
             noHT = false;
         }
         @Override
@@ -281,14 +319,17 @@ public class DecisionDiagram {
             return visitor.visitHTNode(this);
         }
         @Override
-        ArrayList<Node> getChildren() {
-            if (noHT) {
-                ArrayList<Node> r = new ArrayList<Node>(1);
-                r.add(child);
-                return r;
-            }
+        List<Node> getChildren() {
+            if (noHT)
+                return Collections.singletonList(child);
             return super.getChildren();
         }
+        @Override
+        Node getSingleChild() {
+            if (noHT)
+                return child;
+            return super.getSingleChild();
+        }
         boolean isNoHT() {
             return noHT;
         }
@@ -299,16 +340,16 @@ public class DecisionDiagram {
             child = node;
         }
         @Override
-        Node merge(Node otherx) {
+        Node merge(Node otherx, SynthesisContext ctx) {
             HTNode other = (HTNode) otherx;
             if (noHT || other.noHT) {
-                HTNode merged = new HTNode(opIndex);
+                HTNode merged = new HTNode(ctx, opIndex);
                 merged.noHT = true;
-                merged.child = getChildren().get(0).merge(other.getChildren().get(0));
+                merged.child = getChildren().get(0).merge(other.getChildren().get(0), ctx);
                 return merged;
             }
-            HTNode merged = new HTNode(opIndex);
-            merged.makeMergedNode(this, other);
+            HTNode merged = new HTNode(ctx, opIndex);
+            merged.makeMergedNode(this, other, ctx);
             return merged;
         }
     }
@@ -328,23 +369,23 @@ public class DecisionDiagram {
 
         Node dig(Node nodex) {
             if (planIndex == dispatchPlan.size())
-                return new Leaf(rule);
+                return new Leaf(ctx, rule);
 
             DispatchCriterion dispatchCriterion = dispatchPlan.get(planIndex++);
             if (!dispatchCriterion.available(arity))
                 return dig(nodex);
             if (dispatchCriterion instanceof TagPairDispatch) {
-                TagPairNode node = nodex == null ? new TagPairNode() : (TagPairNode) nodex;
+                TagPairNode node = nodex == null ? new TagPairNode(ctx) : (TagPairNode) nodex;
                 node.addBranch(this, new TagPairNode.TagPair(rts[0].getPT(), rts[1].getPT()));
                 return node;
             } else if (dispatchCriterion instanceof PTDispatch) {
                 int opIndex = ((PTDispatch) dispatchCriterion).getOpIndex();
-                PTNode node = nodex == null ? new PTNode(opIndex) : (PTNode) nodex;
+                PTNode node = nodex == null ? new PTNode(ctx, opIndex) : (PTNode) nodex;
                 node.addBranch(this, rts[opIndex].getPT());
                 return node;
             } else if (dispatchCriterion instanceof HTDispatch) {
                 int opIndex = ((HTDispatch) dispatchCriterion).getOpIndex();
-                HTNode node = nodex == null ? new HTNode(opIndex) : (HTNode) nodex;
+                HTNode node = nodex == null ? new HTNode(ctx, opIndex) : (HTNode) nodex;
                 node.addBranch(this, rts[opIndex].getHT());
                 return node;
             } else
@@ -352,55 +393,314 @@ public class DecisionDiagram {
         }
     }
 
+    // Key of the unique table.  Children are compared by identity, which
+    // is structural equality because they are themselves unique.  The hash
+    // is made of those of the children in the table; unlike ids, they do
+    // not depend on the random seed.
+    static class NodeKey {
+        final Class<?> kind;
+        final int opIndex;
+        final Object[] tags;  // {null} for HTNode without HT
+        final Node[] children;
+        final int hash;
+
+        NodeKey(Class<?> kind, int opIndex, Object[] tags, Node[] children, Map<Node, Integer> hashes) {
+            this.kind = kind;
+            this.opIndex = opIndex;
+            this.tags = tags;
+            this.children = children;
+            int h = kind.getSimpleName().hashCode() * 31 + opIndex;
+            for (int i = 0; i < tags.length; i++)
+                h = (h * 31 + tagValue(tags[i])) * 31 + hashes.get(children[i]);
+            hash = h;
+        }
+
+        static int tagValue(Object tag) {
+            if (tag instanceof PT)
+                return ((PT) tag).getValue();
+            if (tag instanceof HT)
+                return ((HT) tag).getValue();
+            if (tag instanceof TagPairNode.TagPair)
+                return ((TagPairNode.TagPair) tag).getValue();
+            return -1;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NodeKey))
+                return false;
+            NodeKey other = (NodeKey) obj;
+            if (kind != other.kind || opIndex != other.opIndex || tags.length != other.tags.length)
+                return false;
+            for (int i = 0; i < tags.length; i++) {
+                if (children[i] != other.children[i])
+                    return false;
+                if (tags[i] == null ? other.tags[i] != null : !tags[i].equals(other.tags[i]))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Builds the diagram bottom-up, creating a node only if no node of the
+     * same kind with the same branches exists.  Structurally equal
+     * sub-diagrams are thus shared from the beginning and the number of
+     * nodes ever created is that of the reduced diagram.
+     *
+     * The LLRules are not collected.  As in DiagramVerifier, a node is
+     * given, for each operand, the set of rep types that reach it, and
+     * its branches split the set by tag.  The rep types are thus walked in
+     * the order of the dispatch plan, and a node is interned as soon as
+     * its last branch is built.  A branch is built only if a specified
+     * tuple of data types reaches it.
+     */
+    class UniqueTable {
+        HashMap<NodeKey, Node> table = new HashMap<NodeKey, Node>();
+        // structural hashes of the nodes in the table
+        IdentityHashMap<Node, Integer> hashes = new IdentityHashMap<Node, Integer>();
+        IdentityHashMap<RuleSet.Rule, Leaf> leaves = new IdentityHashMap<RuleSet.Rule, Leaf>();
+        final RuleSet hlrs;
+        final TypeDefinition typeDef;
+        final List<VMRepType> repTypes;
+        // data types of each rep type, indexed by rep type ID
+        final BitSet[] dataTypesOf;
+        final VMDataTypeVecSet specified;
+
+        UniqueTable(LLRuleSet rs) {
+            hlrs = rs.hlrs;
+            typeDef = ctx.getTypeDefinition();
+            repTypes = typeDef.allRepTypes();
+            dataTypesOf = new BitSet[repTypes.size()];
+            for (int i = 0; i < dataTypesOf.length; i++)
+                dataTypesOf[i] = new BitSet();
+            for (VMDataType dt: typeDef.allDataTypes())
+                for (VMRepType rt: dt.getVMRepTypes())
+                    dataTypesOf[rt.getID()].set(dt.getID());
+            specified = new VMDataTypeVecSet(typeDef, hlrs.getArity());
+            for (RuleSet.Rule r: hlrs.getRules())
+                specified.addAll(r.getConditionSet());
+        }
+
+        Node build() {
+            BitSet[] region = new BitSet[hlrs.getArity()];
+            for (int i = 0; i < region.length; i++) {
+                region[i] = new BitSet();
+                for (VMRepType rt: repTypes)
+                    if (!dataTypesOf[rt.getID()].isEmpty())
+                        region[i].set(rt.getID());
+            }
+            return build(region, 0);
+        }
+
+        // region[i] is the set of rep types of the i-th operand
+        Node build(BitSet[] region, int planIndex) {
+            if (!specified.meetsProduct(dataTypes(region)))
+                return null;
+            if (planIndex == dispatchPlan.size())
+                return makeLeaf(region);
+
+            DispatchCriterion dispatchCriterion = dispatchPlan.get(planIndex);
+            if (!dispatchCriterion.available(hlrs.getArity()))
+                return build(region, planIndex + 1);
+            if (dispatchCriterion instanceof TagPairDispatch) {
+                TreeMap<TagPairNode.TagPair, BitSet[]> groups = new TreeMap<TagPairNode.TagPair, BitSet[]>();
+                TreeMap<PT, BitSet> pts1 = split(region[1], rt -> rt.getPT());
+                for (Map.Entry<PT, BitSet> e0: split(region[0], rt -> rt.getPT()).entrySet())
+                    for (Map.Entry<PT, BitSet> e1: pts1.entrySet()) {
+                        BitSet[] sub = region.clone();
+                        sub[0] = e0.getValue();
+                        sub[1] = e1.getValue();
+                        groups.put(new TagPairNode.TagPair(e0.getKey(), e1.getKey()), sub);
+                    }
+                return makeTagNode(TagPairNode.class, -1, groups, planIndex, () -> new TagPairNode(ctx));
+            } else if (dispatchCriterion instanceof PTDispatch) {
+                int opIndex = ((PTDispatch) dispatchCriterion).getOpIndex();
+                return makeTagNode(PTNode.class, opIndex, split(region, opIndex, rt -> rt.getPT()), planIndex, () -> new PTNode(ctx, opIndex));
+            } else if (dispatchCriterion instanceof HTDispatch) {
+                int opIndex = ((HTDispatch) dispatchCriterion).getOpIndex();
+                BitSet[] withHT = region.clone();
+                BitSet[] noHT = region.clone();
+                withHT[opIndex] = new BitSet();
+                noHT[opIndex] = new BitSet();
+                for (int id = region[opIndex].nextSetBit(0); id >= 0; id = region[opIndex].nextSetBit(id + 1))
+                    (repTypes.get(id).getHT() == null ? noHT : withHT)[opIndex].set(id);
+                if (!specified.meetsProduct(dataTypes(noHT)))
+                    return makeTagNode(HTNode.class, opIndex, split(withHT, opIndex, rt -> rt.getHT()), planIndex, () -> new HTNode(ctx, opIndex));
+                if (specified.meetsProduct(dataTypes(withHT)))
+                    throw new Error("invalid tag assignment");
+                Node child = build(noHT, planIndex + 1);
+                return intern(new NodeKey(HTNode.class, opIndex, new Object[] {null}, new Node[] {child}, hashes), () -> {
+                    HTNode node = new HTNode(ctx, opIndex);
+                    node.noHT = true;
+                    node.child = child;
+                    return node;
+                });
+            } else
+                return build(region, planIndex + 1);
+        }
+
+        // data types of the rep types of each operand
+        BitSet[] dataTypes(BitSet[] region) {
+            BitSet[] components = new BitSet[region.length];
+            for (int i = 0; i < region.length; i++) {
+                components[i] = new BitSet();
+                for (int id = region[i].nextSetBit(0); id >= 0; id = region[i].nextSetBit(id + 1))
+                    components[i].or(dataTypesOf[id]);
+            }
+            return components;
+        }
+
+        // rep types of the set grouped by their tag in the order of tags
+        <T> TreeMap<T, BitSet> split(BitSet rts, Function<VMRepType, T> tagOf) {
+            TreeMap<T, BitSet> groups = new TreeMap<T, BitSet>();
+            for (int id = rts.nextSetBit(0); id >= 0; id = rts.nextSetBit(id + 1))
+                groups.computeIfAbsent(tagOf.apply(repTypes.get(id)), t -> new BitSet()).set(id);
+            return groups;
+        }
+
+        <T> TreeMap<T, BitSet[]> split(BitSet[] region, int opIndex, Function<VMRepType, T> tagOf) {
+            TreeMap<T, BitSet[]> groups = new TreeMap<T, BitSet[]>();
+            for (Map.Entry<T, BitSet> e: split(region[opIndex], tagOf).entrySet()) {
+                BitSet[] sub = region.clone();
+                sub[opIndex] = e.getValue();
+                groups.put(e.getKey(), sub);
+            }
+            return groups;
+        }
+
+        // As TreeDigger, the last rule wins if the plan leaves several
+        // tuples of rep types at a leaf.
+        Leaf makeLeaf(BitSet[] region) {
+            BitSet[] components = dataTypes(region);
+            VMRepType[] rts = new VMRepType[region.length];
+            boolean single = true;
+            boolean shared = false;
+            for (int i = 0; i < rts.length; i++) {
+                rts[i] = repTypes.get(region[i].nextSetBit(0));
+                single &= region[i].cardinality() == 1;
+                shared |= components[i].cardinality() > 1;
+            }
+            RuleSet.Rule hlr = null;
+            int n = 0;
+            for (RuleSet.Rule r: hlrs.getRules())
+                if (r.getConditionSet().meetsProduct(components)) {
+                    hlr = r;
+                    n++;
+                }
+            if (single && shared && n == 1)
+                // a rep type of several data types
+                n = VMDataTypeVecSet.product(typeDef, components).intersection(hlr.getConditionSet()).size();
+            if (single && n > 1) {
+                StringBuilder sb = new StringBuilder();
+                for (VMRepType rt: rts)
+                    sb.append(sb.length() == 0 ? "" : ",").append(rt.getName());
+                throw new Error("LL-Rule duplicate: ("+sb+")");
+            }
+            Leaf leaf = leaves.get(hlr);
+            if (leaf == null) {
+                leaf = new Leaf(ctx, new LLRule(rts, hlr));
+                hashes.put(leaf, hlr.action.hashCode());
+                leaves.put(hlr, leaf);
+            }
+            return leaf;
+        }
+
+        <T> Node makeTagNode(Class<?> kind, int opIndex, TreeMap<T, BitSet[]> groups, int planIndex, Supplier<TagNode<T>> factory) {
+            Branches<T> branches = new Branches<T>();
+            for (Map.Entry<T, BitSet[]> e: groups.entrySet()) {
+                Node child = build(e.getValue(), planIndex + 1);
+                if (child != null)
+                    branches.put(e.getKey(), child);
+            }
+            Object[] tags = branches.tags().toArray();
+            Node[] children = new Node[branches.size()];
+            for (int i = 0; i < children.length; i++)
+                children[i] = branches.childAt(i);
+            return intern(new NodeKey(kind, opIndex, tags, children, hashes), () -> {
+                TagNode<T> node = factory.get();
+                node.branches = branches;
+                return node;
+            });
+        }
+
+        Node intern(NodeKey key, Supplier<Node> factory) {
+            Node node = table.get(key);
+            if (node == null) {
+                node = factory.get();
+                hashes.put(node, key.hashCode());
+                table.put(key, node);
+            }
+            return node;
+        }
+    }
+
     Node root;
     List<DispatchCriterion> dispatchPlan;
+    final SynthesisContext ctx;
 
-    public DecisionDiagram(List<DispatchCriterion> dispatchPlan, LLRuleSet rs, Option option) {
+    public DecisionDiagram(List<DispatchCriterion> dispatchPlan, LLRuleSet rs, SynthesisContext ctx) {
         this.dispatchPlan = dispatchPlan;
-        this.option = option;
-
-        if (rs.getRules().size() == 0)
-            return;
-        for (LLRuleSet.LLRule r : rs.getRules()) {
-            TreeDigger digger = new TreeDigger(r);
-            root = digger.dig(root);
-        }
+        this.ctx = ctx;
+
+        // SubDiagramMemo assumes a tree; it identifies a sub-diagram
+        // by its leaves.
+        Option option = ctx.getOption();
+        if (option.getOption(Option.AvailableOptions.CMP_UNIQUE_TABLE, false) &&
+            !option.getOption(Option.AvailableOptions.CMP_REUSE_SUBDIAGRAM, false)) {
+            root = new UniqueTable(rs).build();
+        } else
+            rs.forEach(r -> root = new TreeDigger(r).dig(root));
     }
 
-    public String generateCode(String[] varNames, CodeGenerateVisitor.Macro tagMacro) {
-        return generateCodeForNode(root, varNames, tagMacro);
+    public void generateCode(String[] varNames, CodeGenerateVisitor.Macro tagMacro, Appendable out) throws IOException {
+        generateCodeForNode(root, varNames, tagMacro, ctx.getOption(), out);
     }
 
-    public void mergeChildren() {
-        mergeChildren(root);
+    // returns the number of merges
+    public int mergeChildren() {
+        return mergeChildren(root, ctx);
     }
 
-    public void skipNoChoice() {
-        root = skipNoChoice(root);
+    // returns the number of nodes skipped
+    public int skipNoChoice() {
+        SkipNoChoiceVisitor v = new SkipNoChoiceVisitor();
+        root = (Node) root.accept(v);
+        return v.skipped;
     }
 
-    public void mergeRelative() {
-        mergeRelative(root);
+    // returns the number of merges
+    public int mergeRelative() {
+        return mergeRelative(root, ctx);
     }
 
     ////
     // static method
     ////
 
-    static String generateCodeForNode(Node node, String[] varNames, CodeGenerateVisitor.Macro tagMacro) {
-        CodeGenerateVisitor gen = new CodeGenerateVisitor(varNames, tagMacro, option);
-        node.accept(gen);
-        return gen.toString();
+    static void generateCodeForNode(Node node, String[] varNames, CodeGenerateVisitor.Macro tagMacro, Option option, Appendable out) throws IOException {
+        CodeGenerateVisitor gen = new CodeGenerateVisitor(varNames, tagMacro, option, out);
+        try {
+            node.accept(gen);
+            gen.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
-    static boolean isCompatible(Node a, Node b) {
-        IsCompatibleVisitor v = new IsCompatibleVisitor(a, option);
-        return (Boolean) b.accept(v);
+    static boolean isCompatible(Node a, Node b, Option option) {
+        return new CompatibilityCache(option).isCompatible(a, b);
     }
 
-    static void mergeChildren(Node node) {
-        MergeChildrenVisitor v = new MergeChildrenVisitor();
+    static int mergeChildren(Node node, SynthesisContext ctx) {
+        MergeChildrenVisitor v = new MergeChildrenVisitor(ctx);
         node.accept(v);
+        return v.merges;
     }
 
     static Node skipNoChoice(Node node) {
@@ -408,9 +708,10 @@ public class DecisionDiagram {
         return (Node) node.accept(v);
     }
 
-    static public void mergeRelative(Node node) {
-        RelativeMerger m = new RelativeMerger();
+    static public int mergeRelative(Node node, SynthesisContext ctx) {
+        RelativeMerger m = new RelativeMerger(ctx);
         m.mergeRelative(node);
+        return m.merges;
     }
 
     ////
@@ -423,6 +724,12 @@ public class DecisionDiagram {
     }
 
     static String debugGenerateCodeForNode(Node node) {
-        return generateCodeForNode(node, new String[] {"a", "b", "c", "d", "e"}, new CodeGenerateVisitor.Macro());
+        StringBuilder sb = new StringBuilder();
+        try {
+            generateCodeForNode(node, new String[] {"a", "b", "c", "d", "e"}, new CodeGenerateVisitor.Macro(), new Option(), sb);
+        } catch (IOException e) {
+            throw new Error(e);  // StringBuilder never throws
+        }
+        return sb.toString();
     }
 }
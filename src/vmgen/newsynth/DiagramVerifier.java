@@ -0,0 +1,162 @@
+/*
+   DiagramVerifier.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+ */
+package vmgen.newsynth;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import vmgen.RuleSet;
+import vmgen.newsynth.DecisionDiagram.HTNode;
+import vmgen.newsynth.DecisionDiagram.Leaf;
+import vmgen.newsynth.DecisionDiagram.Node;
+import vmgen.newsynth.DecisionDiagram.PTNode;
+import vmgen.newsynth.DecisionDiagram.TagNode;
+import vmgen.newsynth.DecisionDiagram.TagPairNode;
+import vmgen.newsynth.DecisionDiagram.TagPairNode.TagPair;
+import vmgen.type.TypeDefinition;
+import vmgen.type.VMDataType;
+import vmgen.type.VMDataTypeVecSet;
+import vmgen.type.VMRepType;
+
+/**
+ * Checks a decision diagram against the rules it was built from without
+ * enumerating tuples of rep types.  The diagram is walked from the root
+ * with, for each operand, the set of rep types that can reach the node;
+ * as every edge fixes the tag of one operand (or of two for a tag pair),
+ * the tuples reaching a node along a path are the product of these sets.
+ * The rule of a rep type tuple depends only on the data types, so a leaf
+ * is correct iff no specified tuple of data types in the product belongs
+ * to another rule, and a node misses no edge iff no specified tuple has
+ * a tag the node has no edge for.  Each node is visited once for each
+ * distinct product reaching it.
+ */
+class DiagramVerifier {
+    final TypeDefinition typeDef;
+    final int arity;
+    // data types of each rep type, indexed by rep type ID
+    final BitSet[] dataTypesOf;
+    final List<VMRepType> repTypes;
+    final VMDataTypeVecSet specified;
+    // specified tuples of other rules
+    final Map<RuleSet.Rule, VMDataTypeVecSet> forbidden = new HashMap<RuleSet.Rule, VMDataTypeVecSet>();
+    Map<Node, Set<List<BitSet>>> visited = new IdentityHashMap<Node, Set<List<BitSet>>>();
+    Set<String> errors = new LinkedHashSet<String>();
+
+    DiagramVerifier(RuleSet hlrs, TypeDefinition typeDef) {
+        this.typeDef = typeDef;
+        arity = hlrs.getArity();
+        repTypes = typeDef.allRepTypes();
+        dataTypesOf = new BitSet[repTypes.size()];
+        for (int i = 0; i < dataTypesOf.length; i++)
+            dataTypesOf[i] = new BitSet();
+        for (VMDataType dt: typeDef.allDataTypes())
+            for (VMRepType rt: dt.getVMRepTypes())
+                dataTypesOf[rt.getID()].set(dt.getID());
+        specified = new VMDataTypeVecSet(typeDef, arity);
+        for (RuleSet.Rule r: hlrs.getRules())
+            specified.addAll(r.getConditionSet());
+        for (RuleSet.Rule r: hlrs.getRules())
+            forbidden.put(r, specified.minus(r.getConditionSet()));
+    }
+
+    /**
+     * Returns the tuples of data types the diagram decides wrongly, each
+     * with the reason.
+     */
+    Set<String> verify(Node root) {
+        if (root == null)
+            return errors;
+        BitSet[] all = new BitSet[arity];
+        for (int i = 0; i < arity; i++) {
+            all[i] = new BitSet();
+            for (VMRepType rt: repTypes)
+                if (!dataTypesOf[rt.getID()].isEmpty())
+                    all[i].set(rt.getID());
+        }
+        check(root, all);
+        return errors;
+    }
+
+    @SuppressWarnings("unchecked")
+    void check(Node node, BitSet[] region) {
+        if (!visited.computeIfAbsent(node, n -> new HashSet<List<BitSet>>()).add(Arrays.asList(region)))
+            return;
+        if (node instanceof Leaf) {
+            RuleSet.Rule hlr = ((Leaf) node).getRule().getHLRule();
+            report(product(region).intersection(forbidden.get(hlr)), "decided by another rule");
+        } else if (node instanceof TagPairNode) {
+            TagPairNode n = (TagPairNode) node;
+            for (Map.Entry<Object, BitSet> e0: split(region[0], rt -> rt.getPT()).entrySet())
+                for (Map.Entry<Object, BitSet> e1: split(region[1], rt -> rt.getPT()).entrySet()) {
+                    BitSet[] sub = region.clone();
+                    sub[0] = e0.getValue();
+                    sub[1] = e1.getValue();
+                    TagPair tag = new TagPair((VMRepType.PT) e0.getKey(), (VMRepType.PT) e1.getKey());
+                    follow(n.getChild(tag), sub);
+                }
+        } else if (node instanceof HTNode && ((HTNode) node).isNoHT())
+            check(((HTNode) node).getChild(), region);
+        else {
+            TagNode<Object> n = (TagNode<Object>) node;
+            int k = n.getOpIndex();
+            Function<VMRepType, Object> tagOf = node instanceof PTNode ? rt -> rt.getPT() : rt -> rt.getHT();
+            for (Map.Entry<Object, BitSet> e: split(region[k], tagOf).entrySet()) {
+                BitSet[] sub = region.clone();
+                sub[k] = e.getValue();
+                // a rep type without HT has no edge in an HTNode with HT
+                follow(e.getKey() == null ? null : n.getChild(e.getKey()), sub);
+            }
+        }
+    }
+
+    void follow(Node child, BitSet[] region) {
+        if (child == null)
+            report(product(region).intersection(specified), "no branch");
+        else
+            check(child, region);
+    }
+
+    // rep types of the set grouped by their tag
+    Map<Object, BitSet> split(BitSet rts, Function<VMRepType, Object> tagOf) {
+        Map<Object, BitSet> groups = new LinkedHashMap<Object, BitSet>();
+        for (int id = rts.nextSetBit(0); id >= 0; id = rts.nextSetBit(id + 1))
+            groups.computeIfAbsent(tagOf.apply(repTypes.get(id)), t -> new BitSet()).set(id);
+        return groups;
+    }
+
+    VMDataTypeVecSet product(BitSet[] region) {
+        BitSet[] components = new BitSet[arity];
+        for (int i = 0; i < arity; i++) {
+            components[i] = new BitSet();
+            for (int id = region[i].nextSetBit(0); id >= 0; id = region[i].nextSetBit(id + 1))
+                components[i].or(dataTypesOf[id]);
+        }
+        return VMDataTypeVecSet.product(typeDef, components);
+    }
+
+    void report(VMDataTypeVecSet wrong, String reason) {
+        for (VMDataType[] dts: wrong.toList()) {
+            StringBuilder sb = new StringBuilder();
+            for (VMDataType dt: dts)
+                sb.append(sb.length() == 0 ? "(" : ",").append(dt.getName());
+            errors.add(sb.append(arity == 0 ? "()" : ")").append(": ").append(reason).toString());
+        }
+    }
+}
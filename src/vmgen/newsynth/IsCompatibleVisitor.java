@@ -10,36 +10,37 @@
  */
 package vmgen.newsynth;
 
-import java.util.ArrayList;
-import java.util.TreeSet;
-
-import vmgen.InsnGen.Option;
 import vmgen.newsynth.DecisionDiagram.HTNode;
 import vmgen.newsynth.DecisionDiagram.Leaf;
 import vmgen.newsynth.DecisionDiagram.Node;
 import vmgen.newsynth.DecisionDiagram.TagNode;
 
 class IsCompatibleVisitor extends NodeVisitor<Boolean> {
-    Option option;
-    Node root;
+    CompatibilityCache cache;
     Node currentNodex;
 
-    IsCompatibleVisitor(Node root, Option option) {
-        this.option = option;
-        this.root = root;
+    IsCompatibleVisitor(Node root, CompatibilityCache cache) {
+        this.cache = cache;
         currentNodex = root;
     }
 
+    // children under the tags both nodes have should be compatible
+    @SuppressWarnings("unchecked")
     <T> boolean hasCompatibleBranches(TagNode<T> currentNode, TagNode<T> other) {
-        TreeSet<T> union = new TreeSet<T>(currentNode.branches.keySet());
-        union.addAll(other.branches.keySet());
-        for (T tag: union) {
-            Node thisChild = currentNode.branches.get(tag);
-            Node otherChild = other.branches.get(tag);
-            if (thisChild != null && otherChild != null) {
-                currentNodex = thisChild;
-                if (!otherChild.accept(this))
+        Branches<T> b1 = currentNode.branches;
+        Branches<T> b2 = other.branches;
+        int i = 0, j = 0;
+        while (i < b1.size() && j < b2.size()) {
+            int c = ((Comparable<T>) b1.tagAt(i)).compareTo(b2.tagAt(j));
+            if (c < 0)
+                i++;
+            else if (c > 0)
+                j++;
+            else {
+                if (!cache.isCompatible(b1.childAt(i), b2.childAt(j)))
                     return false;
+                i++;
+                j++;
             }
         }
         return true;
@@ -58,23 +59,24 @@ class IsCompatibleVisitor extends NodeVisitor<Boolean> {
     <T> Boolean visitTagNode(TagNode<T> other) {
         if (currentNodex.getClass() == other.getClass()) {
             TagNode<T> currentNode = (TagNode<T>) currentNodex;
+            // nodes of a layer dispatch on the same operand unless S has
+            // skipped some of them
             if (currentNode.getOpIndex() != other.getOpIndex())
-                throw new Error("opIndex mismatch");
+                return false;
 
-            if (!option.getOption(Option.AvailableOptions.CMP_SIZE_INCREASING_MERGE, false)) {
-                int currentNChildren = currentNode.getChildren().size();
-                int otherNChildren = other.getChildren().size();
+            if (!cache.sizeIncreasingMerge) {
+                Node currentSingle = currentNode.getSingleChild();
+                Node otherSingle = other.getSingleChild();
                 // branch increasing
-                if ((currentNChildren == 1 && otherNChildren > 1) ||
-                    (currentNChildren > 1 && otherNChildren == 1))
+                if ((currentSingle != null && otherSingle == null) ||
+                    (currentSingle == null && otherSingle != null))
                     return false;
-                if (currentNChildren == 1 && otherNChildren == 1) {
-                    if (option.getOption(Option.AvailableOptions.CMP_CORRECT_COMPATIBILITY, true)) {
-                        currentNodex = currentNode.getChildren().get(0);
-                        return other.getChildren().get(0).accept(this);
-                    } else {
-                        T currentTag = currentNode.branches.keySet().iterator().next();
-                        T otherTag = other.branches.keySet().iterator().next();
+                if (currentSingle != null && otherSingle != null) {
+                    if (cache.correctCompatibility)
+                        return cache.isCompatible(currentSingle, otherSingle);
+                    else {
+                        T currentTag = currentNode.branches.tagAt(0);
+                        T otherTag = other.branches.tagAt(0);
                         if (currentTag != otherTag)
                             return false;
                     }
@@ -91,30 +93,27 @@ class IsCompatibleVisitor extends NodeVisitor<Boolean> {
         if (currentNodex instanceof HTNode) {
             HTNode currentNode = (HTNode) currentNodex;
             if (currentNode.getOpIndex() != other.getOpIndex())
-                throw new Error("opIndex mismatch");
+                return false;
 
             // if each node has a single child, they are compatible iff their children are compatible,
             // regardless of existence of HT.
-            if (currentNode.isNoHT() && other.isNoHT()) {
-                currentNodex = currentNode.getChild();
-                return other.getChild().accept(this);
-            } else if (currentNode.isNoHT()) {
-                ArrayList<Node> otherChildren = other.getChildren();
-                if (otherChildren.size() == 1) {
-                    currentNodex = currentNode.getChild();
-                    return otherChildren.get(0).accept(this);
-                } else
+            if (currentNode.isNoHT() && other.isNoHT())
+                return cache.isCompatible(currentNode.getChild(), other.getChild());
+            else if (currentNode.isNoHT()) {
+                Node otherSingle = other.getSingleChild();
+                if (otherSingle != null)
+                    return cache.isCompatible(currentNode.getChild(), otherSingle);
+                else
                     return false;
             } else if (other.isNoHT()) {
-                ArrayList<Node> currentNodeChildren = currentNode.getChildren();
-                if (currentNodeChildren.size() == 1) {
-                    currentNodex = currentNodeChildren.get(0);
-                    return other.getChild().accept(this);
-                } else
+                Node currentSingle = currentNode.getSingleChild();
+                if (currentSingle != null)
+                    return cache.isCompatible(currentSingle, other.getChild());
+                else
                     return false;
             } else
                 return visitTagNode(other);
         }
         return false;
     }
-}
\ No newline at end of file
+}
@@ -10,14 +10,24 @@
  */
 package vmgen.newsynth;
 
-import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import vmgen.RuleSet;
+import vmgen.type.TypeDefinition;
 import vmgen.type.VMDataType;
 import vmgen.type.VMRepType;
 
+/**
+ * Low level rules: the rules of a RuleSet with each tuple of data types
+ * expanded into the tuples of representation types.  The LLRules are not
+ * stored but enumerated on each call to forEach.
+ */
 public class LLRuleSet {
-    static final boolean DEBUG = true;
+    /* largest key space checked with a bitset rather than a hash set */
+    static final long MAX_BITSET_KEYS = 1L << 24;
 
     static class LLRule {
         VMRepType[] rts;
@@ -37,38 +47,74 @@ public class LLRuleSet {
         }
     }
 
-    ArrayList<LLRule> rules = new ArrayList<LLRule>();
+    final RuleSet hlrs;
+    final int numRepTypes;
 
-    public LLRuleSet(RuleSet hlrs) {
-        for (RuleSet.Rule hr: hlrs.getRules())
-            addFromHLRule(hr);
+    public LLRuleSet(RuleSet hlrs, TypeDefinition typeDef) {
+        this.hlrs = hlrs;
+        this.numRepTypes = typeDef.allRepTypes().size();
     }
 
-    void addFromHLRule(RuleSet.Rule hlr) {
-        for (RuleSet.Condition c: hlr.getCondition()) {
-            VMRepType[] rts = new VMRepType[c.dts.length];
-            enumAndAddVmRepTypeCombo(c.dts, rts, 0, hlr);
+    /**
+     * Set of rep type tuples seen so far, keyed by the rep type IDs packed
+     * into a number.
+     */
+    class SeenTuples {
+        BitSet bits;
+        Set<Long> keys;
+
+        SeenTuples() {
+            long space = 1;
+            for (int i = 0; i < hlrs.getArity() && space <= MAX_BITSET_KEYS; i++)
+                space *= numRepTypes;
+            if (space <= MAX_BITSET_KEYS)
+                bits = new BitSet((int) space);
+            else
+                keys = new HashSet<Long>();
         }
-    }
 
-    void enumAndAddVmRepTypeCombo(VMDataType[] dts, VMRepType[] rts, int opOrder, RuleSet.Rule hlr) {
-        if (opOrder == dts.length) {
-            LLRule llr = new LLRule(rts.clone(), hlr);
-            if (DEBUG) {
-                if (rules.indexOf(llr) != -1)
-                    throw new Error("LL-Rule duplicate");
+        /* returns false if rts has been added before */
+        boolean add(VMRepType[] rts) {
+            long key = 0;
+            for (VMRepType rt: rts)
+                key = key * numRepTypes + rt.getID();
+            if (bits != null) {
+                if (bits.get((int) key))
+                    return false;
+                bits.set((int) key);
+                return true;
             }
-            rules.add(llr);
-            return;
-        }
-        VMDataType dt = dts[opOrder];
-        for (VMRepType rt: dt.getVMRepTypes()) {
-            rts[opOrder] = rt;
-            enumAndAddVmRepTypeCombo(dts, rts, opOrder + 1, hlr);
+            return keys.add(key);
         }
     }
 
-    public ArrayList<LLRule> getRules() {
-        return rules;
+    /**
+     * Passes the LLRules to action one by one in the order of the rules,
+     * the cubes of their conditions and the rep types of each data type.  A tuple of
+     * rep types covered by more than one condition is an error.
+     */
+    public void forEach(Consumer<LLRule> action) {
+        SeenTuples seen = new SeenTuples();
+        for (RuleSet.Rule hlr: hlrs.getRules())
+            for (VMDataType[][] cube: hlr.getConditionSet().toCubes())
+                enumVmRepTypeCombo(cube, new VMRepType[cube.length], 0, hlr, seen, action);
+    }
+
+    void enumVmRepTypeCombo(VMDataType[][] cube, VMRepType[] rts, int opOrder, RuleSet.Rule hlr, SeenTuples seen, Consumer<LLRule> action) {
+        if (opOrder == cube.length) {
+            if (!seen.add(rts)) {
+                StringBuilder sb = new StringBuilder();
+                for (VMRepType rt: rts)
+                    sb.append(sb.length() == 0 ? "" : ",").append(rt.getName());
+                throw new Error("LL-Rule duplicate: ("+sb+")");
+            }
+            action.accept(new LLRule(rts.clone(), hlr));
+            return;
+        }
+        for (VMDataType dt: cube[opOrder])
+            for (VMRepType rt: dt.getVMRepTypes()) {
+                rts[opOrder] = rt;
+                enumVmRepTypeCombo(cube, rts, opOrder + 1, hlr, seen, action);
+            }
     }
 }
@@ -14,12 +14,22 @@ import java.util.ArrayList;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
+import vmgen.SynthesisContext;
 import vmgen.newsynth.DecisionDiagram.HTNode;
 import vmgen.newsynth.DecisionDiagram.Leaf;
 import vmgen.newsynth.DecisionDiagram.Node;
 import vmgen.newsynth.DecisionDiagram.TagNode;
 
 public class MergeChildrenVisitor extends NodeVisitor<Void> {
+    SynthesisContext ctx;
+    CompatibilityCache cache;
+    int merges;
+
+    MergeChildrenVisitor(SynthesisContext ctx) {
+        this.ctx = ctx;
+        cache = new CompatibilityCache(ctx.getOption());
+    }
+
     @Override
     Void visitLeaf(Leaf node) {
         return null;
@@ -33,7 +43,7 @@ public class MergeChildrenVisitor extends NodeVisitor<Void> {
         for (Node child: children)
             child.accept(this);
 
-        TreeMap<T, Node> newBranches = new TreeMap<T, Node>();
+        Branches<T> newBranches = new Branches<T>();
         for (int i = 0; i < children.size(); i++) {
             if (hasMerged[i])
                 continue;
@@ -45,15 +55,17 @@ public class MergeChildrenVisitor extends NodeVisitor<Void> {
                 if (hasMerged[j])
                     continue;
                 Node cj = children.get(j);
-                if (!DecisionDiagram.isCompatible(merged, cj))
+                if (!cache.isCompatible(merged, cj))
                     continue;
-                merged = merged.merge(cj);
+                merged = merged.merge(cj, ctx);
+                merges++;
                 edge.addAll(childToTags.get(cj));
                 hasMerged[j] = true;
             }
             for (T tag: edge)
                 newBranches.put(tag, merged);
         }
+        cache.invalidate(node);
         node.branches = newBranches;
         return null;
     }
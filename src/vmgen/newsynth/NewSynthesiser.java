@@ -11,17 +11,24 @@
 package vmgen.newsynth;
 
 import vmgen.RuleSet;
+import vmgen.SynthesisContext;
 import vmgen.Synthesiser;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import vmgen.InsnGen.Option;
-import vmgen.newsynth.LLRuleSet.LLRule;
-import vmgen.type.VMRepType;
 
 public class NewSynthesiser extends Synthesiser {
     static final boolean UNSIGNED = true;
+
     class TagMacro extends CodeGenerateVisitor.Macro {
+        final SynthesisContext ctx;
+
+        TagMacro(SynthesisContext ctx) {
+            this.ctx = ctx;
+        }
+
         @Override
         String getPTCode(String var) {
             return (UNSIGNED ? "(unsigned int) " : "")+NewSynthesiser.this.getPTCode(var);
@@ -44,50 +51,44 @@ public class NewSynthesiser extends Synthesiser {
 
         @Override
         String getLabel() {
-            return String.format("L%s%d", NewSynthesiser.this.labelPrefix, nextLabel++);
+            return ctx.newLabel();
         }
     }
 
-    String labelPrefix;
-
     @Override
-    public String synthesise(RuleSet hlrs, String labelPrefix, vmgen.InsnGen.Option option) {
-        this.labelPrefix = labelPrefix;
+    public void synthesise(RuleSet hlrs, SynthesisContext ctx, Appendable out) throws IOException {
+        Option option = ctx.getOption();
 
-        int srand;
-        if ((srand = option.getOption(Option.AvailableOptions.CMP_RAND_SEED, -1)) >= 0) {
-            DecisionDiagram.Node.srand(srand);
-        }
-        
         ArrayList<DecisionDiagram.DispatchCriterion> dispatchPlan = new ArrayList<DecisionDiagram.DispatchCriterion>();
-        if (option.getOption(Option.AvailableOptions.CMP_USE_TAGPAIR, true))
+        // the tag pair decides the pointer tags of the first two operands
+        int firstPT = 0;
+        if (option.getOption(Option.AvailableOptions.CMP_USE_TAGPAIR, true) && hlrs.getArity() >= 2) {
             dispatchPlan.add(new DecisionDiagram.TagPairDispatch());
-        for (int i = 0; i < 5; i++)
+            firstPT = 2;
+        }
+        for (int i = firstPT; i < hlrs.getArity(); i++)
             dispatchPlan.add(new DecisionDiagram.PTDispatch(i));
-        for (int i = 0; i < 5; i++)
+        for (int i = 0; i < hlrs.getArity(); i++)
             dispatchPlan.add(new DecisionDiagram.HTDispatch(i));
 
-        LLRuleSet llrs = new LLRuleSet(hlrs);
-        DecisionDiagram dd = new DecisionDiagram(dispatchPlan, llrs, option);
+        LLRuleSet llrs = new LLRuleSet(hlrs, ctx.getTypeDefinition());
+        DecisionDiagram dd = new DecisionDiagram(dispatchPlan, llrs, ctx);
 
         // optimize
         String passes = option.getOption(Option.AvailableOptions.CMP_OPT_PASS, "MR:S");
-        for (String pass: passes.split(":")) {
-            switch(pass) {
-            case "MC": dd.mergeChildren(); break;
-            case "MR": dd.mergeRelative(); break;
-            case "S":  dd.skipNoChoice();  break;
-            }
-        }
+        PassManager pm = new PassManager(passes.split(":"), option);
+        if (option.getOption(Option.AvailableOptions.CMP_REUSE_SUBDIAGRAM, false)) {
+            SubDiagramMemo memo = ctx.getSubDiagramMemo();
+            pm.run(dd, memo != null ? memo : new SubDiagramMemo());
+        } else
+            pm.run(dd);
+        if (option.getOption(Option.AvailableOptions.CMP_PASS_STATS, false))
+            ctx.addReport(ctx.getLabelPrefix() + ".passes.json", pm.toJson(ctx.getLabelPrefix()));
 
         if (option.getOption(Option.AvailableOptions.CMP_VERIFY_DIAGRAM, true)) {
-            for (LLRule llr: llrs.getRules()) {
-                VMRepType[] rts = llr.getVMRepTypes();
-                LLRule found = dd.search(rts);
-                if (llr.getHLRule() != found.getHLRule())
-                    System.out.println("wrong decision diagram: " + rts[0] + "," + rts[1]);
-            }
-        }		
-        return dd.generateCode(hlrs.getDispatchVars(), new TagMacro());
+            for (String error: new DiagramVerifier(hlrs, ctx.getTypeDefinition()).verify(dd.root))
+                System.out.println("wrong decision diagram: " + error);
+        }
+        dd.generateCode(hlrs.getDispatchVars(), new TagMacro(ctx), out);
     }
 }
@@ -0,0 +1,211 @@
+/*
+   PassManager.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+ */
+package vmgen.newsynth;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import vmgen.InsnGen.Option;
+import vmgen.newsynth.DecisionDiagram.Leaf;
+import vmgen.newsynth.DecisionDiagram.Node;
+
+/**
+ * Runs the optimisation passes of cmp:opt_pass (e.g., "MR:S") on a
+ * decision diagram.  The sequence of passes is a round; rounds are
+ * repeated until one of them changes nothing or cmp:opt_rounds rounds
+ * have run.  For each pass the wall time, the bytes allocated by the
+ * calling thread, the number of merges (or of skipped nodes for S) and
+ * the size of the diagram afterwards are recorded, and can be turned
+ * into JSON.
+ */
+public class PassManager {
+    enum Pass {
+        MC {
+            int run(DecisionDiagram dd) {
+                return dd.mergeChildren();
+            }
+        },
+        MR {
+            int run(DecisionDiagram dd) {
+                return dd.mergeRelative();
+            }
+        },
+        S {
+            int run(DecisionDiagram dd) {
+                return dd.skipNoChoice();
+            }
+        };
+
+        // returns the number of changes made to the diagram
+        abstract int run(DecisionDiagram dd);
+
+        static Pass of(String name) {
+            for (Pass p: values())
+                if (p.name().equals(name))
+                    return p;
+            throw new Error("unknown optimisation pass: "+name);
+        }
+    }
+
+    static class Metrics {
+        int nodes;
+        int leaves;
+        int depth;
+
+        Metrics(Node root) {
+            count(root, Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>()));
+            depth = root.depth();
+        }
+
+        void count(Node node, Set<Node> visited) {
+            if (!visited.add(node))
+                return;
+            nodes++;
+            if (node instanceof Leaf)
+                leaves++;
+            for (Node child: node.getChildren())
+                count(child, visited);
+        }
+
+        void toJson(StringBuilder sb) {
+            sb.append("\"nodes\": ").append(nodes)
+              .append(", \"leaves\": ").append(leaves)
+              .append(", \"depth\": ").append(depth);
+        }
+    }
+
+    static class PassRecord {
+        final String pass;
+        final int round;
+        long nanos;
+        long callerThreadAllocatedBytes;
+        int changes;
+        Metrics after;
+
+        PassRecord(String pass, int round) {
+            this.pass = pass;
+            this.round = round;
+        }
+
+        void toJson(StringBuilder sb) {
+            sb.append("{\"round\": ").append(round)
+              .append(", \"pass\": \"").append(pass).append("\"")
+              .append(", \"nanos\": ").append(nanos)
+              .append(", \"callerThreadAllocatedBytes\": ").append(callerThreadAllocatedBytes)
+              .append(pass.equals(Pass.S.name()) ? ", \"skipped\": " : ", \"merges\": ").append(changes);
+            if (after != null) {
+                sb.append(", ");
+                after.toJson(sb);
+            }
+            sb.append("}");
+        }
+    }
+
+    final String[] passes;
+    final int maxRounds;
+    // metrics cost a traversal of the diagram per pass
+    final boolean measure;
+    Metrics initial;
+    List<PassRecord> records = new ArrayList<PassRecord>();
+    int rounds;
+
+    PassManager(String[] passes, Option option) {
+        this.passes = passes;
+        maxRounds = option.getOption(Option.AvailableOptions.CMP_OPT_ROUNDS, 1);
+        measure = option.getOption(Option.AvailableOptions.CMP_PASS_STATS, false);
+        for (String pass: passes)
+            if (!pass.isEmpty())
+                Pass.of(pass);
+    }
+
+    void run(DecisionDiagram dd) {
+        if (measure)
+            initial = new Metrics(dd.root);
+        while (rounds < maxRounds) {
+            rounds++;
+            int changes = 0;
+            for (String pass: passes) {
+                if (pass.isEmpty())
+                    continue;
+                PassRecord r = new PassRecord(pass, rounds);
+                long bytes = callerThreadAllocatedBytes();
+                long start = System.nanoTime();
+                r.changes = Pass.of(pass).run(dd);
+                r.nanos = System.nanoTime() - start;
+                r.callerThreadAllocatedBytes = bytes < 0 ? -1 : callerThreadAllocatedBytes() - bytes;
+                if (measure)
+                    r.after = new Metrics(dd.root);
+                records.add(r);
+                changes += r.changes;
+            }
+            if (changes == 0)
+                break;
+        }
+    }
+
+    /**
+     * Runs the passes through the memo of sub-diagrams, which runs the
+     * rounds on each child of the root it has not memoised; all of it is
+     * recorded as a single pass.  The number of rounds is the most any
+     * child needed, 0 if all of them came from the memo.
+     */
+    void run(DecisionDiagram dd, SubDiagramMemo memo) {
+        if (measure)
+            initial = new Metrics(dd.root);
+        PassRecord r = new PassRecord(String.join(":", passes), 1);
+        long bytes = callerThreadAllocatedBytes();
+        long start = System.nanoTime();
+        memo.optimise(dd, passes, maxRounds);
+        rounds = memo.rounds;
+        r.nanos = System.nanoTime() - start;
+        r.callerThreadAllocatedBytes = bytes < 0 ? -1 : callerThreadAllocatedBytes() - bytes;
+        if (measure)
+            r.after = new Metrics(dd.root);
+        records.add(r);
+    }
+
+    // Bytes allocated by the calling thread, or -1 if the JVM does not
+    // count allocation.  With -j, MR searches large buckets on workers
+    // of the pool, which run other instructions as well, so their
+    // allocation cannot be told apart and is not counted.
+    static long callerThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    String toJson(String insnName) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"insn\": \"").append(insnName).append("\",\n");
+        sb.append("  \"passes\": \"").append(String.join(":", passes)).append("\",\n");
+        sb.append("  \"rounds\": ").append(rounds).append(",\n");
+        if (initial != null) {
+            sb.append("  \"initial\": {");
+            initial.toJson(sb);
+            sb.append("},\n");
+        }
+        sb.append("  \"records\": [");
+        for (int i = 0; i < records.size(); i++) {
+            sb.append(i == 0 ? "\n    " : ",\n    ");
+            records.get(i).toJson(sb);
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+}
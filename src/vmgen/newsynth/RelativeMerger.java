@@ -11,18 +11,41 @@
 package vmgen.newsynth;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
 
+import vmgen.SynthesisContext;
 import vmgen.newsynth.DecisionDiagram.HTNode;
 import vmgen.newsynth.DecisionDiagram.Leaf;
 import vmgen.newsynth.DecisionDiagram.Node;
 import vmgen.newsynth.DecisionDiagram.TagNode;
 
 public class RelativeMerger {
+    // buckets with at least this many candidates are searched in parallel
+    static final int PARALLEL_THRESHOLD = 256;
+
+    SynthesisContext ctx;
+    CompatibilityCache cache;
+    int merges;
+
+    RelativeMerger(SynthesisContext ctx) {
+        this.ctx = ctx;
+        cache = new CompatibilityCache(ctx.getOption());
+    }
+
     static class LayerGatherVisitor extends NodeVisitor<Void> {
         ArrayList<Node> nodes = new ArrayList<Node>();
+        // a shared node is reached through several parents
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
         int depth;
 
         LayerGatherVisitor(int depth) {
@@ -33,18 +56,19 @@ public class RelativeMerger {
             return nodes;
         }
 
+        // after S, a leaf may be above the layer
         @Override
         Void visitLeaf(Leaf node) {
-            if (depth != 0)
-                throw new Error("depth too large");
-            nodes.add(node);
+            if (depth == 0 && seen.add(node))
+                nodes.add(node);
             return null;
         }
 
         @Override
         <T> Void visitTagNode(TagNode<T> node) {
             if (depth == 0) {
-                nodes.add(node);
+                if (seen.add(node))
+                    nodes.add(node);
                 return null;
             }
             depth--;
@@ -58,15 +82,18 @@ public class RelativeMerger {
     static class ReplaceVisitor extends NodeVisitor<Void> {
         int depth;
         TreeMap<Node, Node> replace;
+        CompatibilityCache cache;
 
-        ReplaceVisitor(int depth, TreeMap<Node, Node> replace) {
+        ReplaceVisitor(int depth, TreeMap<Node, Node> replace, CompatibilityCache cache) {
             this.depth = depth;
             this.replace = replace;
+            this.cache = cache;
         }
 
+        // after S, a leaf may be above the layer; it has no children
         @Override
         Void visitLeaf(Leaf node) {
-            throw new Error("attempt to replace children of Leaf");
+            return null;
         }
 
         @Override
@@ -77,16 +104,20 @@ public class RelativeMerger {
                     if (htnode.isNoHT()) {
                         Node before = htnode.getChild();
                         Node after = replace.get(before);
-                        if (after != null)
+                        if (after != null) {
+                            cache.invalidate(htnode);
                             htnode.replaceChild(after);
+                        }
                         return null;
                     }
                 }
                 for (T tag: node.getEdges()) {
                     Node before = node.getChild(tag);
                     Node after = replace.get(before);
-                    if (after != null)
+                    if (after != null) {
+                        cache.invalidate(node);
                         node.replaceChild(tag, after);
+                    }
                 }
                 return null;
             }
@@ -98,9 +129,92 @@ public class RelativeMerger {
         }
     }
 
+    /**
+     * A key that two nodes have in common if they are compatible.  A leaf
+     * is keyed by its HL rule.  A node with a single child, or an HTNode
+     * without HT, is keyed by its class and the key of the child, and
+     * other nodes by their class, because IsCompatibleVisitor never makes
+     * a node with a single child compatible with one with more children
+     * unless size increasing merges are allowed.
+     */
+    static class Signature {
+        static final Object MULTI = new Object();
+
+        final Object kind;  // class of a TagNode, or HL rule of a Leaf
+        final Object sub;   // signature of the single child, MULTI, or null
+        final int hash;
+
+        Signature(Object kind, Object sub) {
+            this.kind = kind;
+            this.sub = sub;
+            hash = kind.hashCode() * 31 + Objects.hashCode(sub);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Signature))
+                return false;
+            Signature other = (Signature) obj;
+            return kind == other.kind && Objects.equals(sub, other.sub);
+        }
+    }
+
+    Signature signature(Node node) {
+        if (node instanceof Leaf)
+            return new Signature(((Leaf) node).getRule().getHLRule(), null);
+        if (cache.sizeIncreasingMerge)
+            return new Signature(node.getClass(), null);
+        Node single = ((TagNode<?>) node).getSingleChild();
+        if (single != null)
+            return new Signature(node.getClass(), signature(single));
+        return new Signature(node.getClass(), Signature.MULTI);
+    }
+
+    /* returns the first candidate after the index from that is not merged
+     * yet and is compatible with node, or -1 */
+    int findCompatible(Node node, ArrayList<Integer> bucket, int from, ArrayList<Node> nodes, boolean[] hasMerged) {
+        int start = Collections.binarySearch(bucket, from + 1);
+        if (start < 0)
+            start = -start - 1;
+        if (bucket.size() - start >= PARALLEL_THRESHOLD && ForkJoinTask.inForkJoinPool()) {
+            // compatibility checks only read nodes; findFirst keeps the
+            // result the same as that of the sequential search
+            OptionalInt found = IntStream.range(start, bucket.size()).parallel()
+                .filter(k -> !hasMerged[bucket.get(k)] &&
+                        cache.isCompatible(node, nodes.get(bucket.get(k))))
+                .findFirst();
+            return found.isPresent() ? bucket.get(found.getAsInt()) : -1;
+        }
+        for (int k = start; k < bucket.size(); k++) {
+            int j = bucket.get(k);
+            if (!hasMerged[j] && cache.isCompatible(node, nodes.get(j)))
+                return j;
+        }
+        return -1;
+    }
+
+    /*
+     * Each node is merged, in order, with the later nodes that are
+     * compatible with the node merged so far.  Only the nodes with the
+     * same signature as the merged node are examined; the signature of
+     * the merged node may change after a merge.  Merges are not done in
+     * parallel because they draw IDs of new nodes, which decide the order
+     * of later merges, from the random number generator of the context.
+     */
     protected TreeMap<Node, Node> mergeNodes(ArrayList<Node> nodes) {
         TreeMap<Node, Node> replace = new TreeMap<Node, Node>();
         boolean[] hasMerged = new boolean[nodes.size()];
+        HashMap<Signature, ArrayList<Integer>> buckets = new HashMap<Signature, ArrayList<Integer>>();
+        Signature[] signatures = new Signature[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            signatures[i] = signature(nodes.get(i));
+            buckets.computeIfAbsent(signatures[i], sig -> new ArrayList<Integer>()).add(i);
+        }
         for (int i = 0; i < nodes.size(); i++) {
             TreeSet<Node> subjects = new TreeSet<Node>();
             if (hasMerged[i])
@@ -109,15 +223,21 @@ public class RelativeMerger {
             Node merged = ni;
             subjects.add(ni);
             hasMerged[i] = true;
-            for (int j = i + 1; j < nodes.size(); j++) {
-                if (hasMerged[j])
-                    continue;
+            Signature sig = signatures[i];
+            int j = i;
+            while (true) {
+                ArrayList<Integer> bucket = buckets.get(sig);
+                if (bucket == null)
+                    break;
+                j = findCompatible(merged, bucket, j, nodes, hasMerged);
+                if (j < 0)
+                    break;
                 Node nj = nodes.get(j);
-                if (!DecisionDiagram.isCompatible(merged, nj))
-                    continue;
-                merged = merged.merge(nj);
+                merged = merged.merge(nj, ctx);
+                merges++;
                 subjects.add(nj);
                 hasMerged[j] = true;
+                sig = signature(merged);
             }
             if (subjects.size() > 1)
                 for (Node before: subjects)
@@ -169,7 +289,7 @@ public class RelativeMerger {
             TreeMap<Node, Node> replace = mergeNodes(nodes);
 
             /* do replace */
-            ReplaceVisitor rv = new ReplaceVisitor(i, replace);
+            ReplaceVisitor rv = new ReplaceVisitor(i, replace, cache);
             root.accept(rv);
         }
     }
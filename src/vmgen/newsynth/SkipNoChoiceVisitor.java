@@ -10,8 +10,8 @@
  */
 package vmgen.newsynth;
 
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
 
 import vmgen.newsynth.DecisionDiagram.Leaf;
@@ -19,6 +19,8 @@ import vmgen.newsynth.DecisionDiagram.Node;
 import vmgen.newsynth.DecisionDiagram.TagNode;
 
 public class SkipNoChoiceVisitor extends NodeVisitor<Node> {
+    // a shared node is skipped each time it is reached
+    int skipped;
 
     @Override
     Node visitLeaf(Leaf node) {
@@ -27,9 +29,11 @@ public class SkipNoChoiceVisitor extends NodeVisitor<Node> {
 
     @Override
     <T> Node visitTagNode(TagNode<T> node) {
-        ArrayList<Node> children = node.getChildren();
-        if (children.size() == 1)
+        List<Node> children = node.getChildren();
+        if (children.size() == 1) {
+            skipped++;
             return children.get(0).accept(this);
+        }
         TreeMap<Node, Node> replace = new TreeMap<Node, Node>();
         for (Node before: children) {
             Node after = (Node) before.accept(this);
@@ -0,0 +1,295 @@
+/*
+   SubDiagramMemo.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+ */
+package vmgen.newsynth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import vmgen.InsnGen.Option;
+import vmgen.RuleSet;
+import vmgen.SynthesisContext;
+import vmgen.newsynth.DecisionDiagram.HTNode;
+import vmgen.newsynth.DecisionDiagram.Leaf;
+import vmgen.newsynth.DecisionDiagram.Node;
+import vmgen.newsynth.DecisionDiagram.TagNode;
+import vmgen.newsynth.LLRuleSet.LLRule;
+import vmgen.type.VMRepType;
+
+/**
+ * Memo of optimised sub-diagrams of an instruction.  Each child of the
+ * root is optimised on its own and remembered under a key made of the
+ * LLRules below it and their HL actions.  When the instruction is
+ * synthesised again after an edit, only the children the edit reaches
+ * are optimised; the others are copied from the memo.  A child is
+ * optimised in a fresh context of its own, so a copy from the memo is
+ * exactly what optimising the child again would give.  Only the
+ * sub-diagrams of the last synthesis are kept.  Since nodes under
+ * different children of the root are never merged with each other, the
+ * result may be larger than the one obtained by optimising the whole
+ * diagram.
+ */
+public class SubDiagramMemo {
+    HashMap<String, Node> memo = new HashMap<String, Node>();
+    // the most rounds of passes run on a sub-diagram by the last call of
+    // optimise; 0 if all of them were copied from the memo
+    int rounds;
+
+    static String rtsKey(VMRepType[] rts) {
+        StringBuilder sb = new StringBuilder();
+        for (VMRepType rt: rts)
+            sb.append(rt.getName()).append(',');
+        return sb.toString();
+    }
+
+    static class LeafGatherVisitor extends NodeVisitor<Void> {
+        TreeMap<String, LLRule> rules = new TreeMap<String, LLRule>();
+
+        @Override
+        Void visitLeaf(Leaf node) {
+            rules.put(rtsKey(node.getRule().getVMRepTypes()), node.getRule());
+            return null;
+        }
+
+        @Override
+        <T> Void visitTagNode(TagNode<T> node) {
+            for (Node child: node.getChildren())
+                child.accept(this);
+            return null;
+        }
+    }
+
+    /**
+     * Copies a diagram preserving sharing.  Leaves are rebound to the
+     * LLRules of the current synthesis that have the same rep types.
+     */
+    static class CopyVisitor extends NodeVisitor<Node> {
+        final SynthesisContext ctx;
+        final Map<String, LLRule> rules;
+        IdentityHashMap<Node, Node> copied = new IdentityHashMap<Node, Node>();
+
+        CopyVisitor(SynthesisContext ctx, Map<String, LLRule> rules) {
+            this.ctx = ctx;
+            this.rules = rules;
+        }
+
+        @Override
+        Node visitLeaf(Leaf node) {
+            Node copy = copied.get(node);
+            if (copy == null) {
+                LLRule rule = node.getRule();
+                if (rules != null) {
+                    rule = rules.get(rtsKey(rule.getVMRepTypes()));
+                    if (rule == null)
+                        throw new Error("no rule to rebind a memoised leaf");
+                }
+                copy = new Leaf(ctx, rule);
+                copied.put(node, copy);
+            }
+            return copy;
+        }
+
+        <T> void copyBranches(TagNode<T> from, TagNode<T> to) {
+            for (T tag: from.getEdges())
+                to.branches.put(tag, from.getChild(tag).accept(this));
+        }
+
+        @Override
+        Node visitTagPairNode(DecisionDiagram.TagPairNode node) {
+            Node copy = copied.get(node);
+            if (copy == null) {
+                DecisionDiagram.TagPairNode n = new DecisionDiagram.TagPairNode(ctx);
+                copyBranches(node, n);
+                copy = n;
+                copied.put(node, copy);
+            }
+            return copy;
+        }
+
+        @Override
+        Node visitPTNode(DecisionDiagram.PTNode node) {
+            Node copy = copied.get(node);
+            if (copy == null) {
+                DecisionDiagram.PTNode n = new DecisionDiagram.PTNode(ctx, node.getOpIndex());
+                copyBranches(node, n);
+                copy = n;
+                copied.put(node, copy);
+            }
+            return copy;
+        }
+
+        @Override
+        Node visitHTNode(HTNode node) {
+            Node copy = copied.get(node);
+            if (copy == null) {
+                HTNode n = new HTNode(ctx, node.getOpIndex());
+                if (node.isNoHT()) {
+                    n.noHT = true;
+                    n.child = node.getChild().accept(this);
+                } else
+                    copyBranches(node, n);
+                copy = n;
+                copied.put(node, copy);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Returns the key of the sub-diagram below node.  HL rules are
+     * numbered in the order of the first rep type tuple they cover so
+     * that the key does not depend on their identity.
+     */
+    static String makeKey(String planKey, TreeMap<String, LLRule> rules) {
+        StringBuilder sb = new StringBuilder(planKey);
+        HashMap<RuleSet.Rule, Integer> hlrNumber = new HashMap<RuleSet.Rule, Integer>();
+        List<String> actions = new ArrayList<String>();
+        for (Map.Entry<String, LLRule> e: rules.entrySet()) {
+            RuleSet.Rule hlr = e.getValue().getHLRule();
+            Integer n = hlrNumber.get(hlr);
+            if (n == null) {
+                n = hlrNumber.size();
+                hlrNumber.put(hlr, n);
+                actions.add(hlr.action);
+            }
+            sb.append(e.getKey()).append(n).append(';');
+        }
+        for (String a: actions)
+            sb.append('\n').append(a.length()).append(':').append(a);
+        return sb.toString();
+    }
+
+    static String makePlanKey(DecisionDiagram dd, String[] passes) {
+        Option option = dd.ctx.getOption();
+        List<String> opts = new ArrayList<String>();
+        for (Option.AvailableOptions opt: Option.AvailableOptions.values())
+            if (opt.name().startsWith("CMP_"))
+                opts.add(opt.name()+"="+option.getOption(opt, null));
+        Collections.sort(opts);
+        StringBuilder sb = new StringBuilder();
+        sb.append(dd.ctx.getTypeDefinition().getGeneration()).append(' ');
+        for (DecisionDiagram.DispatchCriterion c: dd.dispatchPlan)
+            sb.append(c).append(' ');
+        for (String p: passes)
+            sb.append(p).append(':');
+        sb.append(opts).append('\n');
+        return sb.toString();
+    }
+
+    /* runs rounds of the passes until one of them changes nothing or
+     * maxRounds rounds have run, as PassManager does */
+    Node optimiseNode(Node node, String[] passes, int maxRounds, SynthesisContext ctx) {
+        for (int round = 1; round <= maxRounds; round++) {
+            rounds = Math.max(rounds, round);
+            int changes = 0;
+            for (String pass: passes) {
+                switch(pass) {
+                case "MC": changes += DecisionDiagram.mergeChildren(node, ctx); break;
+                case "MR": changes += DecisionDiagram.mergeRelative(node, ctx); break;
+                case "S":
+                    SkipNoChoiceVisitor v = new SkipNoChoiceVisitor();
+                    node = (Node) node.accept(v);
+                    changes += v.skipped;
+                    break;
+                }
+            }
+            if (changes == 0)
+                break;
+        }
+        return node;
+    }
+
+    /**
+     * Optimises the diagram reusing sub-diagrams optimised before.  Each
+     * sub-diagram gets up to maxRounds rounds of the passes; the root
+     * layer gets one.
+     */
+    public void optimise(DecisionDiagram dd, String[] passes, int maxRounds) {
+        SynthesisContext ctx = dd.ctx;
+        rounds = 0;
+        if (dd.root == null)
+            return;
+        if (!(dd.root instanceof TagNode<?>) ||
+            (dd.root instanceof HTNode && ((HTNode) dd.root).isNoHT())) {
+            dd.root = optimiseNode(dd.root, passes, maxRounds, ctx);
+            return;
+        }
+        optimiseRootChildren((TagNode<?>) dd.root, makePlanKey(dd, passes), passes, maxRounds, ctx);
+
+        /* the root layer */
+        boolean merge = false;
+        for (String pass: passes)
+            if (pass.equals("MR") || pass.equals("MC"))
+                merge = true;
+        if (merge)
+            mergeRootChildren((TagNode<?>) dd.root, ctx);
+        for (String pass: passes)
+            if (pass.equals("S") && dd.root.getChildren().size() == 1)
+                dd.root = dd.root.getChildren().get(0);
+    }
+
+    <T> void optimiseRootChildren(TagNode<T> root, String planKey, String[] passes, int maxRounds, SynthesisContext ctx) {
+        HashMap<String, Node> used = new HashMap<String, Node>();
+        for (T tag: new ArrayList<T>(root.getEdges())) {
+            Node child = root.getChild(tag);
+            LeafGatherVisitor gv = new LeafGatherVisitor();
+            child.accept(gv);
+            String key = makeKey(planKey, gv.rules);
+            Node optimised = memo.get(key);
+            if (optimised == null) {
+                /* node ids and orders drawn from ctx would depend on the
+                 * rest of the diagram and steer the merges */
+                SynthesisContext own = new SynthesisContext(ctx.getTypeDefinition(), ctx.getLabelPrefix(), ctx.getOption());
+                optimised = optimiseNode(child.accept(new CopyVisitor(own, null)), passes, maxRounds, own);
+            }
+            used.put(key, optimised);
+            root.replaceChild(tag, optimised.accept(new CopyVisitor(ctx, gv.rules)));
+        }
+        memo = used;
+    }
+
+    <T> void mergeRootChildren(TagNode<T> root, SynthesisContext ctx) {
+        TreeMap<Node, TreeSet<T>> childToTags = root.getChildToTagsMap();
+        ArrayList<Node> children = new ArrayList<Node>(childToTags.keySet());
+        boolean[] hasMerged = new boolean[children.size()];
+        CompatibilityCache cache = new CompatibilityCache(ctx.getOption());
+        Branches<T> newBranches = new Branches<T>();
+        for (int i = 0; i < children.size(); i++) {
+            if (hasMerged[i])
+                continue;
+            Node merged = children.get(i);
+            TreeSet<T> edge = new TreeSet<T>(childToTags.get(merged));
+            hasMerged[i] = true;
+            for (int j = i + 1; j < children.size(); j++) {
+                if (hasMerged[j])
+                    continue;
+                Node cj = children.get(j);
+                if (!cache.isCompatible(merged, cj))
+                    continue;
+                merged = merged.merge(cj, ctx);
+                edge.addAll(childToTags.get(cj));
+                hasMerged[j] = true;
+            }
+            for (T tag: edge)
+                newBranches.put(tag, merged);
+        }
+        root.branches = newBranches;
+    }
+
+    public int size() {
+        return memo.size();
+    }
+}
@@ -10,6 +10,8 @@
 */
 package vmgen.synth;
 
+import java.io.IOException;
+
 public abstract class Branch {
 	public DDNode action;
 
@@ -17,8 +19,8 @@ public abstract class Branch {
 		this.action = action;
 	}
 	abstract public int size();
-	public String code() {
-		return code(false);
+	public void code(Appendable out) throws IOException {
+		code(out, false);
 	}
-	abstract public String code(boolean isDefaultCase);
+	abstract public void code(Appendable out, boolean isDefaultCase) throws IOException;
 }
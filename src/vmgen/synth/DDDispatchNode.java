@@ -10,15 +10,19 @@
 */
 package vmgen.synth;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
+import vmgen.SynthesisContext;
+
 public class DDDispatchNode extends DDNode {
 	public Set<Branch> branches;
 	String dispatchExpression;
 
-	public DDDispatchNode(String dispatchExpression) {
-		branches = new HashSet<Branch>();
+	public DDDispatchNode(SynthesisContext ctx, String dispatchExpression) {
+		super(ctx);
+		branches = new LinkedHashSet<Branch>();
 		this.dispatchExpression = dispatchExpression;
 	}
 
@@ -31,19 +35,20 @@ public class DDDispatchNode extends DDNode {
 	}
 
 	@Override
-	public String code() {
+	public void code(Appendable out) throws IOException {
 		Branch max = null;
 		for (Branch b: branches) {
 			if (max == null || b.size() > max.size())
 				max = b;
 		}
 		Branch largetBranch = max;
-		StringBuffer sb = new StringBuffer();
-		sb.append(label + ": ");
-		sb.append("switch("+dispatchExpression+") {\n");
-		branches.forEach(b -> sb.append(b.code(USE_DEFAULT_CASE && (b == largetBranch))).append("break;\n"));
-		sb.append("}\n");
-		return sb.toString();
+		out.append(label).append(": ");
+		out.append("switch(").append(dispatchExpression).append(") {\n");
+		for (Branch b: branches) {
+			b.code(out, USE_DEFAULT_CASE && (b == largetBranch));
+			out.append("break;\n");
+		}
+		out.append("}\n");
 	}
 
 	@Override
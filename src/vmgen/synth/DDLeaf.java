@@ -10,13 +10,17 @@
 */
 package vmgen.synth;
 
+import java.io.IOException;
+
 import vmgen.RuleSet;
+import vmgen.SynthesisContext;
 import vmgen.RuleSet.Rule;
 
 public class DDLeaf extends DDNode {
 	RuleSet.Rule rule;
 
-	public DDLeaf(RuleSet.Rule rule) {
+	public DDLeaf(SynthesisContext ctx, RuleSet.Rule rule) {
+		super(ctx);
 		this.rule = rule;
 	}
 
@@ -26,8 +30,8 @@ public class DDLeaf extends DDNode {
 	}
 
 	@Override
-	public String code() {
-		return label + ": {"+ rule.action + "\n}\n";
+	public void code(Appendable out) throws IOException {
+		out.append(label).append(": {").append(rule.action).append("\n}\n");
 	}
 
 	public boolean mergable(DDNode that) {
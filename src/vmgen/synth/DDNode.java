@@ -10,32 +10,23 @@
 */
 package vmgen.synth;
 
+import java.io.IOException;
+
 import vmgen.GlobalConstantOptions;
+import vmgen.SynthesisContext;
 
 public abstract class DDNode implements GlobalConstantOptions {
-	static int nextLabel;
-	static String prefix;
-	
-	public static void setLabelPrefix(String prefix) {
-		DDNode.prefix = prefix;
-		nextLabel = 0;
-	}
-
-	static {
-		setLabelPrefix("");
-	}
-
 	String label;
 	public boolean arranged;
 
-	DDNode() {
+	DDNode(SynthesisContext ctx) {
 		arranged = false;
-		label = String.format("L%s%d", prefix, nextLabel++);
+		label = ctx.newLabel();
 	}
 
 	public boolean mergable(DDNode that) {
 		return false;
 	}
 	
-	abstract public String code();
+	abstract public void code(Appendable out) throws IOException;
 }
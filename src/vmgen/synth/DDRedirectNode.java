@@ -10,10 +10,15 @@
 */
 package vmgen.synth;
 
+import java.io.IOException;
+
+import vmgen.SynthesisContext;
+
 public class DDRedirectNode extends DDNode {
 	public DDNode destination;
 
-	public DDRedirectNode(DDNode destination) {
+	public DDRedirectNode(SynthesisContext ctx, DDNode destination) {
+		super(ctx);
 		this.destination = destination;
 	}
 
@@ -23,8 +28,8 @@ public class DDRedirectNode extends DDNode {
 	}
 
 	@Override
-	public String code() {
-		return "goto "+destination.label+";\n";
+	public void code(Appendable out) throws IOException {
+		out.append("goto ").append(destination.label).append(";\n");
 	}
 
 	public boolean mergable(DDNode that_) {
@@ -10,10 +10,15 @@
 */
 package vmgen.synth;
 
+import java.io.IOException;
+
+import vmgen.SynthesisContext;
+
 public class DDUnexpandedNode extends DDNode {
 	public LLPlan ruleList;
 
-	public DDUnexpandedNode(LLPlan drs) {
+	public DDUnexpandedNode(SynthesisContext ctx, LLPlan drs) {
+		super(ctx);
 		this.ruleList = drs;
 	}
 
@@ -22,7 +27,7 @@ public class DDUnexpandedNode extends DDNode {
 	}
 
 	@Override
-	public String code() {
+	public void code(Appendable out) throws IOException {
 		throw new Error("UnexpandedActionNode");
 	}
 
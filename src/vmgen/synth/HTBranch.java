@@ -10,7 +10,8 @@
 */
 package vmgen.synth;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import vmgen.type.VMRepType;
@@ -20,7 +21,7 @@ public class HTBranch extends Branch {
 
 	public HTBranch(DDNode action) {
 		super(action);
-		condition = new HashSet<VMRepType.HT>();
+		condition = new LinkedHashSet<VMRepType.HT>();
 	}
 
 	public void addCondition(VMRepType.HT ht) {
@@ -34,15 +35,14 @@ public class HTBranch extends Branch {
 	}
 
 	@Override
-	public String code(boolean isDefaultCase) {
+	public void code(Appendable out, boolean isDefaultCase) throws IOException {
 		if (isDefaultCase) {
-			return "default: \n" + action.code();
+			out.append("default: \n");
+			action.code(out);
 		} else {
-			StringBuilder sb = new StringBuilder();
 			for (VMRepType.HT ht : condition)
-				sb.append("case ").append(ht.getName()).append(":\n");
-			sb.append(action.code());
-			return sb.toString();
+				out.append("case ").append(ht.getName()).append(":\n");
+			action.code(out);
 		}
 	}
 
@@ -10,83 +10,148 @@
 */
 package vmgen.synth;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import vmgen.RuleSet;
 import vmgen.RuleSet.Rule;
+import vmgen.SynthesisContext;
 import vmgen.synth.LLRule.Condition;
 import vmgen.type.VMRepType;
 
 public class LLPlan {
+	private final SynthesisContext ctx;
 	private String[] dispatchVars;
 	public Set<LLRule> rules;
 
-	public LLPlan(RuleSet plan) {
+	/* Indexes of the conditions of the rules for lookups.  They are built
+	 * on the first lookup, extended by addRule and dropped when the rules
+	 * are rebuilt.  Lookups do not depend on whether conditions are done,
+	 * so marking them does not affect the indexes. */
+	private HashMap<List<VMRepType>, LLRule> ruleByTRs;
+	private HashMap<List<VMRepType>, LLRule.Condition> conditionByTRs;
+	private HashMap<List<VMRepType.PT>, Set<LLRule>> rulesByPTs;
+	private ArrayList<Set<VMRepType.PT>> ptsByOperand;
+	private ArrayList<Set<VMRepType>> trsByOperand;
+
+	public LLPlan(RuleSet plan, SynthesisContext ctx) {
+		this.ctx = ctx;
 		dispatchVars = plan.getDispatchVars();
-		rules = new HashSet<LLRule>();
+		rules = new LinkedHashSet<LLRule>();
 		for (RuleSet.Rule hr: plan.getRules())
-			rules.add(new LLRule(hr));
+			rules.add(new LLRule(ctx, hr));
 	}
 
-	LLPlan(String[] dispatchVars) {
+	LLPlan(String[] dispatchVars, SynthesisContext ctx) {
+		this.ctx = ctx;
 		this.dispatchVars = dispatchVars;
-		rules = new HashSet<LLRule>();
+		rules = new LinkedHashSet<LLRule>();
+	}
+
+	public void addRule(LLRule r) {
+		rules.add(r);
+		if (ruleByTRs != null)
+			index(r);
+	}
+
+	private void buildIndexes() {
+		ruleByTRs = new HashMap<List<VMRepType>, LLRule>();
+		conditionByTRs = new HashMap<List<VMRepType>, LLRule.Condition>();
+		rulesByPTs = new HashMap<List<VMRepType.PT>, Set<LLRule>>();
+		ptsByOperand = new ArrayList<Set<VMRepType.PT>>();
+		trsByOperand = new ArrayList<Set<VMRepType>>();
+		for (LLRule r: rules)
+			index(r);
+	}
+
+	/* earlier rules take precedence, as in a linear search */
+	private void index(LLRule r) {
+		for (LLRule.Condition c: r.condition) {
+			List<VMRepType> trs = Arrays.asList(c.trs);
+			ruleByTRs.putIfAbsent(trs, r);
+			conditionByTRs.putIfAbsent(trs, c);
+			VMRepType.PT[] pts = new VMRepType.PT[c.arity];
+			for (int i = 0; i < c.arity; i++)
+				pts[i] = c.trs[i].getPT();
+			rulesByPTs.computeIfAbsent(Arrays.asList(pts), k -> new LinkedHashSet<LLRule>()).add(r);
+			for (int i = 0; i < c.arity; i++) {
+				if (i == ptsByOperand.size()) {
+					ptsByOperand.add(new LinkedHashSet<VMRepType.PT>());
+					trsByOperand.add(new LinkedHashSet<VMRepType>());
+				}
+				ptsByOperand.get(i).add(pts[i]);
+				trsByOperand.get(i).add(c.trs[i]);
+			}
+		}
+	}
+
+	private void invalidateIndexes() {
+		ruleByTRs = null;
+		conditionByTRs = null;
+		rulesByPTs = null;
+		ptsByOperand = null;
+		trsByOperand = null;
 	}
 
 	/**
 	 * Enumerates all PTs appearing in the n-th operands of all rules.
 	 * @param n
-	 * @return Set of PTs
+	 * @return Set of PTs, which must not be modified
 	 */
 	public Set<VMRepType.PT> allPTNthOperand(int n) {
-		Set<VMRepType.PT> pts = new HashSet<VMRepType.PT>();
-		for (LLRule r: rules) {
-			for (LLRule.Condition c: r.condition)
-				pts.add(c.trs[n].getPT());
-		}
-		return pts;
+		if (ruleByTRs == null)
+			buildIndexes();
+		if (n >= ptsByOperand.size())
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(ptsByOperand.get(n));
 	}
 
 	public Set<VMRepType> allTRNthOperand(int n) {
-		Set<VMRepType> trs = new HashSet<VMRepType>();
-		for (LLRule r: rules) {
-			for (LLRule.Condition c: r.condition)
-				trs.add(c.trs[n]);
-		}
-		return trs;
+		if (ruleByTRs == null)
+			buildIndexes();
+		if (n >= trsByOperand.size())
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(trsByOperand.get(n));
 	}
 
 	/**
 	 * Find the low level rule that matches the given condition.
 	 */
 	public LLRule find(VMRepType... key) {
-		for (LLRule r: rules) {
-			if (r.find(key) != null)
-				return r;
-		}
-		return null;
+		if (ruleByTRs == null)
+			buildIndexes();
+		return ruleByTRs.get(Arrays.asList(key));
 	}
 
 	/**
-	 * Find the low level rule that matches the given condition.
+	 * Find the condition of the rule find returns that matches the given
+	 * condition.
+	 */
+	public LLRule.Condition findCondition(VMRepType... key) {
+		if (ruleByTRs == null)
+			buildIndexes();
+		return conditionByTRs.get(Arrays.asList(key));
+	}
+
+	/**
+	 * Find the low level rules that have a condition matching the given
+	 * PTs.
+	 * @return Set of rules, which must not be modified
 	 */
 	public Set<LLRule> findByPT(VMRepType.PT... key) {
-		Set<LLRule> result = new HashSet<LLRule>();
-		NEXT_RULE: for (LLRule r: rules) {
-			NEXT_CONDITION: for (LLRule.Condition c: r.condition) {
-				if (c.arity != key.length)
-					continue;
-				for (int i = 0; i < c.arity; i++) {
-					if (c.trs[i].getPT() != key[i])
-						continue NEXT_CONDITION;
-				}
-				result.add(r);
-				continue NEXT_RULE;
-			}
-		}
-		return result;
+		if (ruleByTRs == null)
+			buildIndexes();
+		Set<LLRule> result = rulesByPTs.get(Arrays.asList(key));
+		if (result == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(result);
 	}
 
 	/**
@@ -96,7 +161,7 @@ public class LLPlan {
 	 */
 	public LLPlan convertToNestedPlan(boolean redirect, VMRepType[] dispatchVals) {
 		int level = dispatchVals.length;
-		LLPlan outer = new LLPlan(new String[] {dispatchVars[level]});
+		LLPlan outer = new LLPlan(new String[] {dispatchVars[level]}, ctx);
 		for (VMRepType tr: allTRNthOperand(level)) {
 			VMRepType[] nextVals = new VMRepType[level + 1];
 			System.arraycopy(dispatchVals, 0, nextVals, 0, level);
@@ -104,59 +169,91 @@ public class LLPlan {
 			if (nextVals.length == dispatchVars.length) {
 				LLRule r = find(nextVals);
 				LLRule.Condition c = new LLRule.Condition(tr);
-				c.done = r.find(nextVals).done;
+				c.done = findCondition(nextVals).done;
 				LLRule newRule = new LLRule(c, r.action);
-				outer.rules.add(newRule);
+				outer.addRule(newRule);
 			} else {
 				LLPlan inner = convertToNestedPlan(redirect, nextVals);
 				LLRule.Condition outerCond = new LLRule.Condition(tr);
 				outerCond.done = inner.rules.stream()
 						.flatMap(r -> r.condition.stream())
 						.allMatch(c -> c.done);
-				DDUnexpandedNode outerAction = new DDUnexpandedNode(inner);
+				DDUnexpandedNode outerAction = new DDUnexpandedNode(ctx, inner);
 				LLRule outerRule = new LLRule(outerCond, outerAction);
-				outer.rules.add(outerRule);
+				outer.addRule(outerRule);
 			}
 		}
 		return outer;
 	}
 
+	/**
+	 * Convert this tuple-dispatch plan to a nested single-dispatch plan.
+	 * Inner plans are built bottom-up and looked up by their rules before
+	 * they are built, so inner plans with the same rules are a single
+	 * node.  If two conditions have the same tuple, the first one wins.
+	 * @param redirect if true, create redirect actions
+	 * @return nested plan
+	 */
 	public LLPlan convertToNestedPlan(boolean redirect) {
-		//return convertToNestedPlan(redirect, new VMRepType[]{});
-		
-		LLPlan nestedPlan = new LLPlan(new String[] {dispatchVars[0]});
-		for (LLRule r: rules) {
+		List<LLRule.Condition> conditions = new ArrayList<LLRule.Condition>();
+		List<DDNode> actions = new ArrayList<DDNode>();
+		for (LLRule r: rules)
 			for (Condition c: r.condition) {
-				LLPlan p = nestedPlan;
-				ArrayList<LLRule.Condition> path = new ArrayList<LLRule.Condition>();
-				for (int i = 0; i < c.arity; i++) {
-					LLRule edge = p.find(c.trs[i]);
-					if (edge == null) {
-						LLRule.Condition singleCondition = new LLRule.Condition(c.trs[i]);
-						singleCondition.done = true;
-						if (i == c.arity - 1) {
-							if (!c.done) {
-								singleCondition.done = false;
-								for (LLRule.Condition cc: path)
-									cc.done = false;
-							}
-							edge = new LLRule(singleCondition, r.action);
-							p.rules.add(edge);
-							continue;
-						} else {
-							System.out.println("c.arity = "+c.arity+", i = "+i);
-							LLPlan lower = new LLPlan(new String[] {dispatchVars[i+1]});
-							DDUnexpandedNode lowerNode = new DDUnexpandedNode(lower);
-							edge = new LLRule(singleCondition, lowerNode);
-							p.rules.add(edge);
-						}
-					}
-					path.add(edge.condition.iterator().next());
-					p = ((DDUnexpandedNode) edge.action).ruleList;
-				}
+				conditions.add(c);
+				actions.add(r.action);
 			}
+		List<Object> edges = nestedEdges(conditions, actions, 0, new HashMap<List<Object>, DDUnexpandedNode>());
+		return makeNestedPlan(edges);
+	}
+
+	/* Edges of the plan dispatching the level-th operand of the
+	 * conditions, each of which has the action at the same index.  Each
+	 * edge is three elements: the rep type, whether the condition is done
+	 * and the action.  The list is preceded by the level and is the key of
+	 * the plan in inner. */
+	private List<Object> nestedEdges(List<LLRule.Condition> conditions, List<DDNode> actions, int level, Map<List<Object>, DDUnexpandedNode> inner) {
+		LinkedHashMap<VMRepType, List<Integer>> groups = new LinkedHashMap<VMRepType, List<Integer>>();
+		for (int i = 0; i < conditions.size(); i++)
+			groups.computeIfAbsent(conditions.get(i).trs[level], tr -> new ArrayList<Integer>()).add(i);
+		List<Object> edges = new ArrayList<Object>();
+		edges.add(level);
+		for (Map.Entry<VMRepType, List<Integer>> e: groups.entrySet()) {
+			List<Integer> indexes = e.getValue();
+			edges.add(e.getKey());
+			if (level == dispatchVars.length - 1) {
+				edges.add(conditions.get(indexes.get(0)).done);
+				edges.add(actions.get(indexes.get(0)));
+				continue;
+			}
+			List<LLRule.Condition> innerConditions = new ArrayList<LLRule.Condition>(indexes.size());
+			List<DDNode> innerActions = new ArrayList<DDNode>(indexes.size());
+			boolean done = true;
+			for (int i: indexes) {
+				innerConditions.add(conditions.get(i));
+				innerActions.add(actions.get(i));
+				done &= conditions.get(i).done;
+			}
+			List<Object> innerEdges = nestedEdges(innerConditions, innerActions, level + 1, inner);
+			DDUnexpandedNode node = inner.get(innerEdges);
+			if (node == null) {
+				node = new DDUnexpandedNode(ctx, makeNestedPlan(innerEdges));
+				inner.put(innerEdges, node);
+			}
+			edges.add(done);
+			edges.add(node);
 		}
-		return nestedPlan;
+		return edges;
+	}
+
+	private LLPlan makeNestedPlan(List<Object> edges) {
+		int level = (Integer) edges.get(0);
+		LLPlan plan = new LLPlan(new String[] {dispatchVars[level]}, ctx);
+		for (int i = 1; i < edges.size(); i += 3) {
+			LLRule.Condition c = new LLRule.Condition((VMRepType) edges.get(i));
+			c.done = (Boolean) edges.get(i + 1);
+			plan.addRule(new LLRule(c, (DDNode) edges.get(i + 2)));
+		}
+		return plan;
 	}
 
 	/*
@@ -200,10 +297,17 @@ public class LLPlan {
 	 * 4. All inner plans are in canonical form.
 	 */
 	public void canonicalise() {
-		Set<LLRule> result = new HashSet<LLRule>();
+		canonicalise(Collections.newSetFromMap(new IdentityHashMap<LLPlan, Boolean>()));
+	}
+
+	/* inner plans may be shared; each is canonicalised once */
+	private void canonicalise(Set<LLPlan> canonicalised) {
+		if (!canonicalised.add(this))
+			return;
+		Set<LLRule> result = new LinkedHashSet<LLRule>();
 
 		NEXT_RULE: for (LLRule r: rules) {
-			Set<LLRule.Condition> filteredConditions = new HashSet<LLRule.Condition>();
+			Set<LLRule.Condition> filteredConditions = new LinkedHashSet<LLRule.Condition>();
 			for (LLRule.Condition c: r.condition)
 				if (!c.done)
 					filteredConditions.add(c);
@@ -221,11 +325,12 @@ public class LLPlan {
 			}
 
 			if (r.action instanceof DDUnexpandedNode)
-				((DDUnexpandedNode) r.action).canonicaliseRuleList(); // 4.
+				((DDUnexpandedNode) r.action).ruleList.canonicalise(canonicalised); // 4.
 	
 			result.add(r);
 		}
 		rules = result;
+		invalidateIndexes();
 	}
 
 	@Override
@@ -240,6 +345,10 @@ public class LLPlan {
 		return sb.toString();
 	}
 
+	public SynthesisContext getContext() {
+		return ctx;
+	}
+
 	public String[] getDispatchVars() {
 		return dispatchVars;
 	}
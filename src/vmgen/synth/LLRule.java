@@ -10,13 +10,13 @@
 */
 package vmgen.synth;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
 import vmgen.RuleSet;
-import vmgen.RuleSet.Condition;
 import vmgen.RuleSet.Rule;
+import vmgen.SynthesisContext;
 import vmgen.type.VMDataType;
 import vmgen.type.VMRepType;
 
@@ -63,25 +63,34 @@ public class LLRule {
 	}
 
 	LLRule(Condition condition, DDNode action) {
-		this.condition = new HashSet<Condition>();
+		this.condition = new LinkedHashSet<Condition>();
 		this.condition.add(condition);
 		this.action = action;
 	}
 
 	/**
 	 * Creates LLRule from (high level) Rule
+	 * @param ctx synthesis context
 	 * @param r (high level) Rule
 	 */
-	LLRule(RuleSet.Rule r) {
-		condition = new HashSet<Condition>();
-		for (RuleSet.Condition dtc: r.condition) {
-			int nRtc = 1;
-			for (VMDataType dt: dtc.dts)
-				nRtc *= dt.getVMRepTypes().size();
-			for (int i = 0; i < nRtc; i++)
-				condition.add(new Condition(dtc.dts, i));
+	LLRule(SynthesisContext ctx, RuleSet.Rule r) {
+		condition = new LinkedHashSet<Condition>();
+		for (VMDataType[][] cube: r.getConditionSet().toCubes())
+			addConditions(cube, new VMRepType[cube.length], 0);
+		action = new DDLeaf(ctx, r);
+	}
+
+	/* adds the tuples of rep types of the data types in the cube */
+	private void addConditions(VMDataType[][] cube, VMRepType[] rts, int i) {
+		if (i == cube.length) {
+			condition.add(new Condition(rts.clone()));
+			return;
 		}
-		action = new DDLeaf(r);
+		for (VMDataType dt: cube[i])
+			for (VMRepType rt: dt.getVMRepTypes()) {
+				rts[i] = rt;
+				addConditions(cube, rts, i + 1);
+			}
 	}
 
 
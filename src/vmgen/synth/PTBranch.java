@@ -10,7 +10,8 @@
 */
 package vmgen.synth;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import vmgen.type.VMRepType;
@@ -20,7 +21,7 @@ public class PTBranch extends Branch {
 
 	public PTBranch(DDNode action) {
 		super(action);
-		condition = new HashSet<VMRepType.PT>();
+		condition = new LinkedHashSet<VMRepType.PT>();
 	}
 
 	public void addCondition(VMRepType.PT pt) {
@@ -33,15 +34,14 @@ public class PTBranch extends Branch {
 	}
 
 	@Override
-	public String code(boolean isDefaultCase) {
+	public void code(Appendable out, boolean isDefaultCase) throws IOException {
 		if (isDefaultCase) {
-			return "default: \n" + action.code();
+			out.append("default: \n");
+			action.code(out);
 		} else {
-			StringBuilder sb = new StringBuilder();
 			for (VMRepType.PT pt : condition)
-				sb.append("case ").append(pt.getName()).append(":\n");
-			sb.append(action.code());
-			return sb.toString();
+				out.append("case ").append(pt.getName()).append(":\n");
+			action.code(out);
 		}
 	}
 
@@ -11,40 +11,41 @@
 
 package vmgen.synth;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import vmgen.InsnGen;
 import vmgen.RuleSet;
+import vmgen.SynthesisContext;
 import vmgen.Synthesiser;
 
 public class SimpleSynthesiser extends Synthesiser {
 	@Override
-	public String synthesise(RuleSet plan, String prefix, InsnGen.Option option) {
-		DDNode.setLabelPrefix(prefix);
-
+	public void synthesise(RuleSet plan, SynthesisContext ctx, Appendable code) throws IOException {
 	    // this.plan = plan;
 		Set<RuleSet.Rule> rules = plan.getRules();
-		StringBuilder code = new StringBuilder();
 
 		for (RuleSet.Rule r: rules) {
 			code.append("if (");
-			code.append(r.condition.stream()
-							.map(c -> {
+			code.append(r.getConditionSet().toCubes().stream()
+							.map(cube -> {
 								String s = "(";
 								for (int i = 0; i < plan.getDispatchVars().length; i++) {
 									if (i > 0) s += " && ";
-									s += "is_"+c.dts[i].getName()+"("+plan.getDispatchVars()[i]+")";
+									String v = plan.getDispatchVars()[i];
+									String is = Arrays.stream(cube[i])
+										.map(dt -> "is_"+dt.getName()+"("+v+")")
+										.collect(Collectors.joining(" || "));
+									s += cube[i].length == 1 ? is : "("+is+")";
 								}
 								return s + ")";
 							}).collect(Collectors.joining(" || ")));
 			code.append(") {\n");
-			code.append(r.action + "\n");
+			code.append(r.action).append("\n");
 			code.append("} else \n");
 		}
 		code.append("{}");
-
-		return code.toString();
 	}
 
 	/*
@@ -11,23 +11,28 @@
 
 package vmgen.synth;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
-import vmgen.InsnGen;
 import vmgen.RuleSet;
+import vmgen.SynthesisContext;
 import vmgen.Synthesiser;
 import vmgen.type.VMRepType;
 
 
 public class SwitchSynthesiser extends Synthesiser {
 	@Override
-	public String synthesise(RuleSet plan, String prefix, InsnGen.Option option) {
-		DDNode.setLabelPrefix(prefix);
-		LLPlan dispatchRuleList = new LLPlan(plan);
+	public void synthesise(RuleSet plan, SynthesisContext ctx, Appendable out) throws IOException {
+		LLPlan dispatchRuleList = new LLPlan(plan, ctx);
 		if (PRINT_PASS) {
 			System.out.println("-------- LLPlan --------");
 			System.out.println(dispatchRuleList);
@@ -51,7 +56,7 @@ public class SwitchSynthesiser extends Synthesiser {
 		root = simplify(root);
 //		System.out.println(root);
 //		System.out.println("----------------");
-		arrangeTerminalNode(root);
+		arrangeTerminalNode(root, ctx);
 //		System.out.println(root);
 
 //		System.out.println(root.code());
@@ -61,7 +66,7 @@ public class SwitchSynthesiser extends Synthesiser {
 			System.out.println("-------- optimised decision tree --------");
 			System.out.println(root);
 		}
-		return root.code();
+		root.code(out);
 	}
 
 	DDNode simplify(DDNode n_) {
@@ -91,7 +96,7 @@ public class SwitchSynthesiser extends Synthesiser {
 		throw new Error("Undexpcted action node: "+ n_);
 	}
 
-	void arrangeTerminalNode(DDNode root) {
+	void arrangeTerminalNode(DDNode root, SynthesisContext ctx) {
 		Queue<DDNode> queue = new LinkedList<DDNode>();
 		queue.add(root);
 		while (!queue.isEmpty()) {
@@ -104,7 +109,7 @@ public class SwitchSynthesiser extends Synthesiser {
 					while (b.action instanceof DDRedirectNode)
 						b.action = ((DDRedirectNode) b.action).destination;
 					if (b.action.arranged)
-						b.action = new DDRedirectNode(b.action);
+						b.action = new DDRedirectNode(ctx, b.action);
 					else
 						queue.add(b.action);
 					b.action.arranged = true;
@@ -114,17 +119,33 @@ public class SwitchSynthesiser extends Synthesiser {
 	}
 
 	DDDispatchNode nestedDispatch(LLPlan llplan) {
-		DDDispatchNode disp = new DDDispatchNode(getPTCode(llplan.getDispatchVars()));
-		Map<LLRule, PTBranch> revDisp = new HashMap<LLRule, PTBranch>();
-		Map<DDUnexpandedNode, DDNode> cache = new HashMap<DDUnexpandedNode, DDNode>();
+		return nestedDispatch(llplan, new PlanKeys(), new HashMap<Integer, DDNode>());
+	}
+
+	/**
+	 * Sub-plans that have the same structure are dispatched by the same
+	 * node, which arrangeTerminalNode later reaches by goto.  The map
+	 * takes the number of the key of a sub-plan (see PlanKeys) to its
+	 * node.
+	 */
+	DDDispatchNode nestedDispatch(LLPlan llplan, PlanKeys keys, Map<Integer, DDNode> expanded) {
+		SynthesisContext ctx = llplan.getContext();
+		DDDispatchNode disp = new DDDispatchNode(ctx, getPTCode(llplan.getDispatchVars()));
+		Map<LLRule, PTBranch> revDisp = new LinkedHashMap<LLRule, PTBranch>();
+		Map<DDUnexpandedNode, DDNode> cache = new LinkedHashMap<DDUnexpandedNode, DDNode>();
 
 		for (LLRule r: llplan.rules) {
 			DDNode a = r.action;
 			if (a instanceof DDUnexpandedNode) {
 				DDUnexpandedNode unexpanded = (DDUnexpandedNode) a;
-				DDNode expanded = nestedDispatch(unexpanded.ruleList);
-				cache.put(unexpanded, expanded);
-				a = expanded;
+				int key = keys.get(unexpanded.ruleList);
+				DDNode shared = expanded.get(key);
+				if (shared == null) {
+					shared = nestedDispatch(unexpanded.ruleList, keys, expanded);
+					expanded.put(key, shared);
+				}
+				cache.put(unexpanded, shared);
+				a = shared;
 			}
 			PTBranch b = new PTBranch(a);
 			disp.add(b);
@@ -148,7 +169,7 @@ public class SwitchSynthesiser extends Synthesiser {
 		/* header type */
 		llplan.canonicalise();
 		if (llplan.rules.size() > 0) {
-			DDDispatchNode htDisp = new DDDispatchNode(getHTCode(llplan.getDispatchVars()));
+			DDDispatchNode htDisp = new DDDispatchNode(ctx, getHTCode(llplan.getDispatchVars()));
 			PTBranch others = new PTBranch(htDisp);
 			disp.add(others);
 
@@ -160,7 +181,7 @@ public class SwitchSynthesiser extends Synthesiser {
 				DDNode a = r.action;
 				if (a instanceof DDUnexpandedNode)
 					a = cache.get(a);
-				a = new DDRedirectNode(a);
+				a = new DDRedirectNode(ctx, a);
 				HTBranch b = new HTBranch(a);
 				htDisp.add(b);
 				r.condition.stream().map(c -> c.trs[0].getHT()).forEach(ht -> {
@@ -172,6 +193,39 @@ public class SwitchSynthesiser extends Synthesiser {
 		return disp;
 	}
 
+	/*
+	 * Numbers the structures of canonicalised plans.  The structure of a
+	 * plan is taken once, before the plan is dispatched, because
+	 * dispatching marks conditions done.  It refers to its sub-plans by
+	 * their numbers, so each plan is walked once however deep it is
+	 * nested.  Actions other than sub-plans are compared by identity.
+	 */
+	static class PlanKeys {
+		final Map<LLPlan, Integer> numbers = new IdentityHashMap<LLPlan, Integer>();
+		final Map<List<Object>, Integer> byKey = new HashMap<List<Object>, Integer>();
+
+		int get(LLPlan llplan) {
+			Integer number = numbers.get(llplan);
+			if (number != null)
+				return number;
+			List<Object> key = new ArrayList<Object>();
+			key.add(Arrays.asList(llplan.getDispatchVars()));
+			for (LLRule r: llplan.rules) {
+				List<Object> conditions = new ArrayList<Object>();
+				for (LLRule.Condition c: r.condition)
+					conditions.add(Arrays.asList(Arrays.asList(c.trs), c.done));
+				key.add(conditions);
+				if (r.action instanceof DDUnexpandedNode)
+					key.add(get(((DDUnexpandedNode) r.action).ruleList));
+				else
+					key.add(r.action);
+			}
+			number = byKey.computeIfAbsent(key, k -> byKey.size());
+			numbers.put(llplan, number);
+			return number;
+		}
+	}
+
 	/*
 	public static void main(String[] args) throws FileNotFoundException {
 		TypeDefinition td = new TypeDefinition();
@@ -10,7 +10,8 @@
 */
 package vmgen.synth;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import vmgen.Pair;
@@ -21,7 +22,7 @@ public class TagPairBranch extends Branch {
 
 	public TagPairBranch(DDNode action) {
 		super(action);
-		condition = new HashSet<Pair<VMRepType.PT, VMRepType.PT>>();
+		condition = new LinkedHashSet<Pair<VMRepType.PT, VMRepType.PT>>();
 	}
 	public void addCondition(VMRepType.PT pt0, VMRepType.PT pt1) {
 		condition.add(new Pair<VMRepType.PT, VMRepType.PT>(pt0, pt1));
@@ -33,17 +34,16 @@ public class TagPairBranch extends Branch {
 	}
 
 	@Override
-	public String code(boolean isDefaultCase) {
+	public void code(Appendable out, boolean isDefaultCase) throws IOException {
 		if (isDefaultCase) {
-			return "default: \n" + action.code();
+			out.append("default: \n");
+			action.code(out);
 		} else {
-			StringBuilder sb = new StringBuilder();
 			for (Pair<VMRepType.PT, VMRepType.PT> tp : condition)
-				sb.append("case TAG_PAIR(")
+				out.append("case TAG_PAIR(")
 				  .append(tp.first().getName()).append(", ")
 				  .append(tp.second().getName()).append("):\n");
-			sb.append(action.code());
-			return sb.toString();
+			action.code(out);
 		}
 	}
 
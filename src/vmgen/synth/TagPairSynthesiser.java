@@ -10,22 +10,21 @@
 */
 package vmgen.synth;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Stream;
 
-import vmgen.InsnGen;
 import vmgen.RuleSet;
+import vmgen.SynthesisContext;
 import vmgen.type.VMRepType;
 
 public class TagPairSynthesiser extends SwitchSynthesiser {
 	@Override
 	public
-	String synthesise(RuleSet plan, String prefix, InsnGen.Option option) {
-		DDNode.setLabelPrefix(prefix);
-
-		LLPlan dispatchRuleList = new LLPlan(plan);
+	void synthesise(RuleSet plan, SynthesisContext ctx, Appendable out) throws IOException {
+		LLPlan dispatchRuleList = new LLPlan(plan, ctx);
 		if (PRINT_PASS) {
 			System.out.println("-------- LLPlan --------");
 			System.out.println(dispatchRuleList);
@@ -59,7 +58,7 @@ public class TagPairSynthesiser extends SwitchSynthesiser {
 		root = simplify(root);
 //		System.out.println(root);
 //		System.out.println("----------------");
-		arrangeTerminalNode(root);
+		arrangeTerminalNode(root, ctx);
 //		System.out.println(root);
 
 //		System.out.println(root.code());
@@ -69,12 +68,12 @@ public class TagPairSynthesiser extends SwitchSynthesiser {
 			System.out.println("-------- optimised decision tree --------");
 			System.out.println(root);
 		}
-		return root.code();
+		root.code(out);
 	}
 
 	DDDispatchNode tagPairDispatch(LLPlan llplan) {
-		DDDispatchNode disp = new DDDispatchNode(getTagPairCode(llplan.getDispatchVars()));
-		Map<LLRule, TagPairBranch> revDisp = new HashMap<LLRule, TagPairBranch>();
+		DDDispatchNode disp = new DDDispatchNode(llplan.getContext(), getTagPairCode(llplan.getDispatchVars()));
+		Map<LLRule, TagPairBranch> revDisp = new LinkedHashMap<LLRule, TagPairBranch>();
 
 		for (LLRule r: llplan.rules) {
 			TagPairBranch b = new TagPairBranch(r.action);
@@ -11,36 +11,154 @@
 package vmgen.type;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.MatchResult;
 
+import vmgen.GlobalConstantOptions;
 import vmgen.RuleSet;
+import vmgen.SynthesisContext;
 import vmgen.synth.TagPairSynthesiser;
 
 
-public class TypeDefinition {
-	static String quoted;
+/**
+ * A type universe: the VM data types together with the representation
+ * types, pointer tags and header types given by a type definition file.
+ * Several universes may coexist; every VMDataType and VMRepType belongs to
+ * exactly one of them.
+ */
+public class TypeDefinition implements GlobalConstantOptions {
+	static AtomicInteger nextGeneration = new AtomicInteger();
 
-	static void parseLine(String line) {
+	Map<String, VMDataType> definedVMDataTypes = new HashMap<String, VMDataType>();
+	Map<String, VMRepType> definedVMRepTypes = new HashMap<String, VMRepType>();
+	Map<String, VMRepType.PT> definedPTs = new HashMap<String, VMRepType.PT>();
+	Map<String, VMRepType.HT> definedHTs = new HashMap<String, VMRepType.HT>();
+	String quoted;
+	final int generation;
+
+	public TypeDefinition() {
+		generation = nextGeneration.getAndIncrement();
+		if (DEBUG_WITH_SMALL) {
+			defineVMDataType("string", false);
+			defineVMDataType("fixnum", false);
+			defineVMDataType("array", true);
+		} else {
+			defineVMDataType("string", false);
+			defineVMDataType("fixnum", false);
+			defineVMDataType("flonum", false);
+			defineVMDataType("special", false); 
+			defineVMDataType("simple_object", true);
+			defineVMDataType("array", true);
+			defineVMDataType("function", true);
+			defineVMDataType("builtin", true);
+			defineVMDataType("iterator", true);
+			defineVMDataType("regexp", true);
+			defineVMDataType("string_object", true);
+			defineVMDataType("number_object", true);
+			defineVMDataType("boolean_object", true);
+		}
+	}
+
+	void defineVMDataType(String name, boolean isObject) {
+		definedVMDataTypes.put(name, new VMDataType(name, isObject, definedVMDataTypes.size()));
+	}
+
+	public VMDataType getVMDataType(String name) {
+		return getVMDataType(name, false);
+	}
+
+	public VMDataType getVMDataType(String name, boolean permitNull) {
+		VMDataType dt = definedVMDataTypes.get(name);
+		if (dt == null && !permitNull)
+				throw new Error("unknown data type; "+ name);
+		return dt;
+	}
+
+	VMRepType getVMRepType(String name, boolean permitNull) {
+		VMRepType rt = definedVMRepTypes.get(name);
+		if (rt == null && !permitNull)
+			throw new Error("undefined VMRepType: "+name);
+		return rt;
+	}
+
+	VMRepType defineVMRepType(String name) {
+		if (definedVMRepTypes.get(name) != null)
+			throw new Error("VMRepType "+name+" redefined");
+		VMRepType rt = new VMRepType(this, name, definedVMRepTypes.size());
+		definedVMRepTypes.put(name, rt);
+		return rt;
+	}
+
+	public List<VMDataType> allDataTypes() {
+		List<VMDataType> lst = new ArrayList<VMDataType>(definedVMDataTypes.values());
+		Collections.sort(lst);
+		return lst;
+	}
+
+	public ArrayList<VMRepType> allRepTypes() {
+		ArrayList<VMRepType> lst = new ArrayList<VMRepType>(definedVMRepTypes.values());
+		Collections.sort(lst);
+		return lst;
+	}
+
+	public ArrayList<VMRepType.PT> allPT() {
+		ArrayList<VMRepType.PT> lst = new ArrayList<VMRepType.PT>(definedPTs.values());
+		Collections.sort(lst);
+		return lst;
+	}
+
+	public ArrayList<VMRepType.HT> allHT() {
+		ArrayList<VMRepType.HT> lst = new ArrayList<VMRepType.HT>(definedHTs.values());
+		Collections.sort(lst);
+		return lst;
+	}
+
+	static final String NAME = "[a-zA-Z_][a-zA-Z0-9_]*";
+	/* PT(bits) or PT(bits)/HT(value), where value is decimal or 0x.. */
+	static final String TAGS = "("+NAME+")\\(([01]*)\\)(/("+NAME+")\\((0[xX][0-9a-fA-F]+|\\d+)\\))?";
+
+	static int parseHTValue(String s) {
+		if (s.startsWith("0x") || s.startsWith("0X"))
+			return Integer.parseInt(s.substring(2), 16);
+		return Integer.parseInt(s);
+	}
+
+	/**
+	 * Returns the number of bits of the widest pointer tag.
+	 */
+	public int getPTBits() {
+		int bits = 0;
+		for (VMRepType.PT pt: definedPTs.values())
+			bits = Math.max(bits, pt.getBits());
+		return bits;
+	}
+
+	void parseLine(String line) {
 		Scanner sc = new Scanner(line);
 		try {
-			sc.findInLine("([a-zA-Z_]+)\\s*:\\s*");
+			sc.findInLine("("+NAME+")\\s*:\\s*");
 			String name = sc.match().group(1);
-			VMDataType dt = VMDataType.get(name, true);
+			VMDataType dt = getVMDataType(name, true);
 
 			if (dt != null) {
 				while (sc.hasNext("\\+[a-zA-Z_].*")) {
-					sc.findInLine("\\+([a-zA-Z_]+)");
+					sc.findInLine("\\+("+NAME+")");
 					MatchResult m = sc.match();
 					String rtName = m.group(1);
-					VMRepType rt = VMRepType.get(rtName, true);
+					VMRepType rt = getVMRepType(rtName, true);
 					if (rt == null)
-						rt = new VMRepType(rtName);
+						rt = defineVMRepType(rtName);
 					dt.addVMRepType(rt);
 				}
 			} else {
-				if (sc.hasNext("([a-zA-Z_]+)\\(([01]*)\\)(/([a-zA-Z_]+)\\((\\d+)\\))?")){
-					sc.findInLine("([a-zA-Z_]+)\\(([01]*)\\)(/([a-zA-Z_]+)\\((\\d+)\\))?");
+				if (sc.hasNext(TAGS)){
+					sc.findInLine(TAGS);
 					MatchResult m = sc.match();
 					String pTagName = m.group(1);
 					int pTagValue = 0;
@@ -52,11 +170,11 @@ public class TypeDefinition {
 							pTagValue += 1;
 					}
 					String hTypeName = m.group(4);
-					int hTypeValue = m.group(5) == null ? 0 : Integer.parseInt(m.group(5));
+					int hTypeValue = m.group(5) == null ? 0 : parseHTValue(m.group(5));
 
-					VMRepType rt = VMRepType.get(name, true);
+					VMRepType rt = getVMRepType(name, true);
 					if (rt == null)
-						rt = new VMRepType(name);
+						rt = defineVMRepType(name);
 					
 					String struct = null;
 					if (sc.hasNext())
@@ -73,7 +191,7 @@ public class TypeDefinition {
 		}
 	}
 
-	public static void load(String filename) throws FileNotFoundException {
+	public void load(String filename) throws FileNotFoundException {
 		Scanner sc = new Scanner(new FileInputStream(filename));
 		while(sc.hasNextLine()) {
 			String line = sc.nextLine();
@@ -93,14 +211,22 @@ public class TypeDefinition {
 		quoted = sb.toString();
 	}
 
-	public static String getQuoted() {
+	/**
+	 * Returns a number that identifies this universe among all universes
+	 * created in this process.
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	public String getQuoted() {
 		return quoted;
 	}
 
 	@Override
 	public String toString() {
 		String s = "";
-		for (VMDataType dt: VMDataType.all()) {
+		for (VMDataType dt: allDataTypes()) {
 			s += dt + "\n";
 		}
 		s += quoted;
@@ -108,8 +234,9 @@ public class TypeDefinition {
 	}
 
 	public static void main(String[] args) throws FileNotFoundException {
-		TypeDefinition.load("datatype/new.dtdef");
-		RuleSet p = new RuleSet();
-		new TagPairSynthesiser().synthesise(p, "none", new vmgen.InsnGen.Option());
+		TypeDefinition td = new TypeDefinition();
+		td.load("datatype/new.dtdef");
+		RuleSet p = new RuleSet(td);
+		new TagPairSynthesiser().synthesise(p, new SynthesisContext(td, "none", new vmgen.InsnGen.Option()));
 	}
 }
@@ -10,66 +10,15 @@
 */
 package vmgen.type;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
-import vmgen.GlobalConstantOptions;
-
-public class VMDataType implements GlobalConstantOptions, Comparable<VMDataType> {
-	static Map<String, VMDataType> definedVMDataTypes = new HashMap<String, VMDataType>();
-
-	static void defineVMDataType(String name, boolean isObject) {
-		definedVMDataTypes.put(name, new VMDataType(name, isObject));
-	}
-
-	public static VMDataType get(String name) {
-		return get(name, false);
-	}
-
-	static VMDataType get(String name, boolean permitNull) {
-		VMDataType dt = definedVMDataTypes.get(name);
-		if (dt == null && !permitNull)
-				throw new Error("unknown data type; "+ name);
-		return dt;
-	}
-
-	private VMDataType(String name, boolean isObject) {
+public class VMDataType implements Comparable<VMDataType> {
+	VMDataType(String name, boolean isObject, int defineOrder) {
 		this.name = name;
 		this.mIsObject = isObject;
-		this.defineOrder = definedVMDataTypes.size();
+		this.defineOrder = defineOrder;
 		reptypes = new ArrayList<VMRepType>();
 	}
 
-	static {
-		if (DEBUG_WITH_SMALL) {
-			defineVMDataType("string", false);
-			defineVMDataType("fixnum", false);
-			defineVMDataType("array", true);
-		} else {
-			defineVMDataType("string", false);
-			defineVMDataType("fixnum", false);
-			defineVMDataType("flonum", false);
-			defineVMDataType("special", false); 
-			defineVMDataType("simple_object", true);
-			defineVMDataType("array", true);
-			defineVMDataType("function", true);
-			defineVMDataType("builtin", true);
-			defineVMDataType("iterator", true);
-			defineVMDataType("regexp", true);
-			defineVMDataType("string_object", true);
-			defineVMDataType("number_object", true);
-			defineVMDataType("boolean_object", true);
-		}
-	}
-	
-	public static List<VMDataType> all() {
-		List<VMDataType> lst = new ArrayList<VMDataType>(definedVMDataTypes.values());
-		Collections.sort(lst);
-		return lst;
-	}
-
 	/*
 	 * data type instance
 	 */
@@ -84,6 +33,14 @@ public class VMDataType implements GlobalConstantOptions, Comparable<VMDataType>
 		return name;
 	}
 
+	/**
+	 * Returns the ID of the data type.  Data types of a type universe are
+	 * numbered densely from 0 in the order they are defined.
+	 */
+	public int getID() {
+		return defineOrder;
+	}
+
 	public ArrayList<VMRepType> getVMRepTypes() {
 		return reptypes;
 	}
@@ -0,0 +1,364 @@
+/*
+   VMDataTypeVecSet.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen.type;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of tuples of VM data types of a fixed arity, all drawn from one
+ * type universe.  The set is kept as a list of disjoint cubes.  A cube is
+ * the product of a set of data types for each element of the tuples,
+ * each a bitset over the IDs of the data types.  A set given by
+ * conditions on a few operands is thus a few cubes whatever the arity,
+ * and set operations work on cubes rather than on tuples.
+ */
+public class VMDataTypeVecSet {
+	final List<VMDataType> dataTypes;
+	final int arity;
+	/* disjoint, with no empty component; cubes are never modified once
+	 * they are in the list, so lists may share them */
+	List<BitSet[]> cubes = new ArrayList<BitSet[]>();
+
+	public VMDataTypeVecSet(TypeDefinition td, int arity) {
+		this(td.allDataTypes(), arity);
+	}
+
+	VMDataTypeVecSet(List<VMDataType> dataTypes, int arity) {
+		this.dataTypes = dataTypes;
+		this.arity = arity;
+	}
+
+	VMDataTypeVecSet(VMDataTypeVecSet that) {
+		this.dataTypes = that.dataTypes;
+		this.arity = that.arity;
+		this.cubes.addAll(that.cubes);
+	}
+
+	/**
+	 * Returns the set of tuples whose i-th element is in components[i].
+	 * A null component stands for all data types.
+	 */
+	public static VMDataTypeVecSet product(TypeDefinition td, BitSet[] components) {
+		VMDataTypeVecSet s = new VMDataTypeVecSet(td, components.length);
+		BitSet[] cube = new BitSet[components.length];
+		for (int i = 0; i < cube.length; i++) {
+			if (components[i] == null)
+				cube[i] = s.allIDs();
+			else if (components[i].isEmpty())
+				return s;
+			else
+				cube[i] = (BitSet) components[i].clone();
+		}
+		s.cubes.add(cube);
+		return s;
+	}
+
+	BitSet allIDs() {
+		BitSet ids = new BitSet(dataTypes.size());
+		ids.set(0, dataTypes.size());
+		return ids;
+	}
+
+	/* Adds a cube disjoint from those in cubes.  It is merged with a cube
+	 * that differs from it only in one element, if any. */
+	static void insert(List<BitSet[]> cubes, BitSet[] cube) {
+		for (int k = 0; k < cubes.size(); k++) {
+			BitSet[] e = cubes.get(k);
+			int diff = -1;
+			for (int i = 0; i < cube.length; i++)
+				if (!e[i].equals(cube[i])) {
+					if (diff != -1) {
+						diff = -1;
+						break;
+					}
+					diff = i;
+				}
+			if (diff == -1)
+				continue;
+			BitSet[] merged = e.clone();
+			merged[diff] = (BitSet) e[diff].clone();
+			merged[diff].or(cube[diff]);
+			cubes.remove(k);
+			insert(cubes, merged);
+			return;
+		}
+		cubes.add(cube);
+	}
+
+	static boolean disjoint(BitSet[] a, BitSet[] b) {
+		for (int i = 0; i < a.length; i++)
+			if (!a[i].intersects(b[i]))
+				return true;
+		return false;
+	}
+
+	/* Adds a - b to out as disjoint cubes: the i-th of them agrees with b
+	 * on the elements before i and not on the i-th. */
+	static void subtract(BitSet[] a, BitSet[] b, List<BitSet[]> out) {
+		if (disjoint(a, b)) {
+			out.add(a);
+			return;
+		}
+		BitSet[] inside = a.clone();
+		for (int i = 0; i < a.length; i++) {
+			BitSet outside = (BitSet) a[i].clone();
+			outside.andNot(b[i]);
+			if (!outside.isEmpty()) {
+				BitSet[] piece = inside.clone();
+				piece[i] = outside;
+				out.add(piece);
+			}
+			inside[i] = (BitSet) a[i].clone();
+			inside[i].and(b[i]);
+		}
+	}
+
+	static List<BitSet[]> subtract(List<BitSet[]> as, BitSet[] b) {
+		List<BitSet[]> out = new ArrayList<BitSet[]>();
+		for (BitSet[] a: as)
+			subtract(a, b, out);
+		return out;
+	}
+
+	public int getArity() {
+		return arity;
+	}
+
+	public void add(VMDataType... dts) {
+		if (contains(dts))
+			return;
+		BitSet[] cube = new BitSet[arity];
+		for (int i = 0; i < arity; i++) {
+			cube[i] = new BitSet();
+			cube[i].set(dts[i].getID());
+		}
+		insert(cubes, cube);
+	}
+
+	public boolean contains(VMDataType... dts) {
+		if (dts.length != arity)
+			throw new Error("arity mismatch: "+dts.length+" for "+arity);
+		NEXT_CUBE: for (BitSet[] cube: cubes) {
+			for (int i = 0; i < arity; i++)
+				if (!cube[i].get(dts[i].getID()))
+					continue NEXT_CUBE;
+			return true;
+		}
+		return false;
+	}
+
+	public void addAll(VMDataTypeVecSet that) {
+		for (BitSet[] cube: new ArrayList<BitSet[]>(that.cubes)) {
+			List<BitSet[]> pieces = new ArrayList<BitSet[]>();
+			pieces.add(cube);
+			for (BitSet[] e: cubes)
+				pieces = subtract(pieces, e);
+			for (BitSet[] piece: pieces)
+				insert(cubes, piece);
+		}
+	}
+
+	public void removeAll(VMDataTypeVecSet that) {
+		List<BitSet[]> rest = cubes;
+		for (BitSet[] cube: that.cubes)
+			rest = subtract(rest, cube);
+		cubes = new ArrayList<BitSet[]>();
+		for (BitSet[] piece: rest)
+			insert(cubes, piece);
+	}
+
+	public void retainAll(VMDataTypeVecSet that) {
+		List<BitSet[]> common = new ArrayList<BitSet[]>();
+		for (BitSet[] a: cubes)
+			NEXT_CUBE: for (BitSet[] b: that.cubes) {
+				BitSet[] cube = new BitSet[arity];
+				for (int i = 0; i < arity; i++) {
+					cube[i] = (BitSet) a[i].clone();
+					cube[i].and(b[i]);
+					if (cube[i].isEmpty())
+						continue NEXT_CUBE;
+				}
+				insert(common, cube);
+			}
+		cubes = common;
+	}
+
+	public VMDataTypeVecSet union(VMDataTypeVecSet that) {
+		VMDataTypeVecSet s = new VMDataTypeVecSet(this);
+		s.addAll(that);
+		return s;
+	}
+
+	public VMDataTypeVecSet minus(VMDataTypeVecSet that) {
+		VMDataTypeVecSet s = new VMDataTypeVecSet(this);
+		s.removeAll(that);
+		return s;
+	}
+
+	public VMDataTypeVecSet intersection(VMDataTypeVecSet that) {
+		VMDataTypeVecSet s = new VMDataTypeVecSet(this);
+		s.retainAll(that);
+		return s;
+	}
+
+	public VMDataTypeVecSet complement() {
+		VMDataTypeVecSet s = new VMDataTypeVecSet(dataTypes, arity);
+		BitSet[] all = new BitSet[arity];
+		for (int i = 0; i < arity; i++)
+			all[i] = allIDs();
+		s.cubes.add(all);
+		s.removeAll(this);
+		return s;
+	}
+
+	/**
+	 * Returns true if the set has a tuple whose i-th element is in
+	 * components[i].
+	 */
+	public boolean meetsProduct(BitSet[] components) {
+		NEXT_CUBE: for (BitSet[] cube: cubes) {
+			for (int i = 0; i < arity; i++)
+				if (!cube[i].intersects(components[i]))
+					continue NEXT_CUBE;
+			return true;
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return cubes.isEmpty();
+	}
+
+	long count() {
+		long n = 0;
+		for (BitSet[] cube: cubes) {
+			long c = 1;
+			for (BitSet ids: cube)
+				c *= ids.cardinality();
+			n += c;
+		}
+		return n;
+	}
+
+	public int size() {
+		long n = count();
+		if (n > Integer.MAX_VALUE)
+			throw new Error("too many tuples of data types: "+n);
+		return (int) n;
+	}
+
+	/**
+	 * Returns the tuples in the lexicographic order of the IDs of their
+	 * elements.
+	 */
+	public List<VMDataType[]> toList() {
+		List<VMDataType[]> lst = new ArrayList<VMDataType[]>(size());
+		enumerate(cubes, 0, new VMDataType[arity], lst);
+		return lst;
+	}
+
+	/* cs are the cubes that contain the elements of dts before i */
+	private void enumerate(List<BitSet[]> cs, int i, VMDataType[] dts, List<VMDataType[]> lst) {
+		if (i == arity) {
+			lst.add(dts.clone());
+			return;
+		}
+		BitSet ids = new BitSet();
+		for (BitSet[] cube: cs)
+			ids.or(cube[i]);
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+			List<BitSet[]> sub = new ArrayList<BitSet[]>();
+			for (BitSet[] cube: cs)
+				if (cube[i].get(id))
+					sub.add(cube);
+			dts[i] = dataTypes.get(id);
+			enumerate(sub, i + 1, dts, lst);
+		}
+	}
+
+	/**
+	 * Returns the set as disjoint cubes, each giving the data types every
+	 * element of its tuples ranges over.  Unlike the cubes the set is kept
+	 * as, they depend only on the tuples in the set.
+	 */
+	public List<VMDataType[][]> toCubes() {
+		List<Map<List<BitSet[]>, List<List<BitSet>>>> memo = new ArrayList<Map<List<BitSet[]>, List<List<BitSet>>>>();
+		for (int i = 0; i < arity; i++)
+			memo.add(new HashMap<List<BitSet[]>, List<List<BitSet>>>());
+		List<VMDataType[][]> lst = new ArrayList<VMDataType[][]>();
+		for (List<BitSet> components: canonicalCubes(cubes, 0, memo)) {
+			VMDataType[][] cube = new VMDataType[arity][];
+			for (int i = 0; i < arity; i++) {
+				BitSet ids = components.get(i);
+				cube[i] = new VMDataType[ids.cardinality()];
+				int k = 0;
+				for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+					cube[i][k++] = dataTypes.get(id);
+			}
+			lst.add(cube);
+		}
+		return lst;
+	}
+
+	/* Returns the elements from i of the tuples in cs, which are the
+	 * cubes that contain the elements before i, as cubes.  The data types
+	 * of the i-th element followed by the same tuples share cubes, in the
+	 * order of their smallest IDs.  memo holds the results for each i. */
+	private List<List<BitSet>> canonicalCubes(List<BitSet[]> cs, int i, List<Map<List<BitSet[]>, List<List<BitSet>>>> memo) {
+		List<List<BitSet>> result = new ArrayList<List<BitSet>>();
+		if (i == arity) {
+			result.add(new ArrayList<BitSet>());
+			return result;
+		}
+		List<List<BitSet>> known = memo.get(i).get(cs);
+		if (known != null)
+			return known;
+		BitSet ids = new BitSet();
+		for (BitSet[] cube: cs)
+			ids.or(cube[i]);
+		Map<List<List<BitSet>>, BitSet> groups = new LinkedHashMap<List<List<BitSet>>, BitSet>();
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+			List<BitSet[]> sub = new ArrayList<BitSet[]>();
+			for (BitSet[] cube: cs)
+				if (cube[i].get(id))
+					sub.add(cube);
+			groups.computeIfAbsent(canonicalCubes(sub, i + 1, memo), k -> new BitSet()).set(id);
+		}
+		for (Map.Entry<List<List<BitSet>>, BitSet> e: groups.entrySet())
+			for (List<BitSet> rest: e.getKey()) {
+				List<BitSet> cube = new ArrayList<BitSet>();
+				cube.add(e.getValue());
+				cube.addAll(rest);
+				result.add(cube);
+			}
+		memo.get(i).put(cs, result);
+		return result;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(count()) * 31 + arity;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof VMDataTypeVecSet) {
+			VMDataTypeVecSet that = (VMDataTypeVecSet) obj;
+			return arity == that.arity && dataTypes.equals(that.dataTypes) &&
+				minus(that).isEmpty() && that.minus(this).isEmpty();
+		}
+		return false;
+	}
+}
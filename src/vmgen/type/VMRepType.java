@@ -9,33 +9,31 @@
      Hideya Iwasaki, 2016-18
 */
 package vmgen.type;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 
 
 public class VMRepType implements Comparable<VMRepType> {
 	public static class HT implements Comparable<HT> {
-		static Map<String, HT> internTable = new HashMap<String, HT>();
-		
-		static HT create(String name, int value) {
-			HT ht = internTable.get(name);
+		static HT create(TypeDefinition td, String name, int value) {
+			HT ht = td.definedHTs.get(name);
 			if (ht != null) {
 				if (ht.value != value)
 					throw new Error("HT "+name+" is defined twice inconsistently");
 				return ht;
 			}
-			ht = new HT(name, value);
-			internTable.put(name, ht);
+			/* cases of a switch on the header tag must be distinct */
+			for (HT other: td.definedHTs.values())
+				if (other.value == value)
+					throw new Error("HT "+name+" has the same value as "+other.name);
+			ht = new HT(name, value, td.definedHTs.size());
+			td.definedHTs.put(name, ht);
 			return ht;
 		}
 	
-		private HT(String name, int value) {
+		private HT(String name, int value, int defineOrder) {
 			this.name = name;
 			this.value = value;
-			this.defineOrder = internTable.size();
+			this.defineOrder = defineOrder;
 		}
 	
 		private String name;
@@ -66,29 +64,35 @@ public class VMRepType implements Comparable<VMRepType> {
 	}
 
 	public static class PT implements Comparable<PT> {
-		static Map<String, PT> internTable = new HashMap<String, PT>();
-		
-		static PT get(String name, int value, int bits) {
-			/* TODO: duplicate check */
-			
-			PT pt = internTable.get(name);
+		/* a pair of tags is encoded in an int */
+		static final int MAX_PT_BITS = 15;
+
+		static PT get(TypeDefinition td, String name, int value, int bits) {
+			PT pt = td.definedPTs.get(name);
 			if (pt != null) {
 				if (pt.value != value || pt.bits != bits)
 					throw new Error("PT "+name+" is defined twice inconsistently");
 				return pt;
 			}
-			pt = new PT(name, value, bits);
-			internTable.put(name, pt);
+			for (PT other: td.definedPTs.values())
+				if (other.value == value && other.bits == bits)
+					throw new Error("PT "+name+" has the same tag as "+other.name);
+			if (bits > MAX_PT_BITS)
+				throw new Error("PT "+name+" is wider than "+MAX_PT_BITS+" bits");
+			pt = new PT(td, name, value, bits, td.definedPTs.size());
+			td.definedPTs.put(name, pt);
 			return pt;
 		}
 		
-		private PT(String name, int value, int bits) {
+		private PT(TypeDefinition td, String name, int value, int bits, int defineOrder) {
+			this.td = td;
 			this.name = name;
 			this.value = value;
 			this.bits = bits;
-			this.defineOrder = internTable.size();
+			this.defineOrder = defineOrder;
 		}
 	
+		private final TypeDefinition td;
 		private String name;
 		private int value;
 		private int bits;
@@ -120,50 +124,26 @@ public class VMRepType implements Comparable<VMRepType> {
 			return bits;
 		}
 
+		public TypeDefinition getTypeDefinition() {
+			return td;
+		}
+
 		public void setBits(int bits) {
 			this.bits = bits;
 		}
 	}
 
-	static Map<String, VMRepType> definedVMRepType = new HashMap<String, VMRepType>();
-	
+	final TypeDefinition td;
 	PT pt;
 	HT ht;
 	private String name;
 	String struct;
 	private int defineOrder;
 	
-	public static ArrayList<VMRepType> all() {
-		ArrayList<VMRepType> lst = new ArrayList<VMRepType>(definedVMRepType.values());
-		Collections.sort(lst);
-		return lst;
-	}
-	
-	public static ArrayList<PT> allPT() {
-		ArrayList<PT> lst = new ArrayList<PT>(PT.internTable.values());
-		Collections.sort(lst);
-		return lst;
-	}
-	
-	public static ArrayList<HT> allHT() {
-		ArrayList<HT> lst = new ArrayList<HT>(HT.internTable.values());
-		Collections.sort(lst);
-		return lst;
-	}
-
-	static VMRepType get(String name, boolean permitNull) {
-		VMRepType rt = definedVMRepType.get(name);
-		if (rt == null && !permitNull)
-			throw new Error("undefined VMRepType: "+name);
-		return rt;
-	}
-
-	VMRepType(String name) {
-		if (definedVMRepType.get(name) != null)
-			throw new Error("VMRepType "+name+" redefined");
-		this.defineOrder = definedVMRepType.size();
+	VMRepType(TypeDefinition td, String name, int defineOrder) {
+		this.td = td;
+		this.defineOrder = defineOrder;
 		this.name = name;
-		definedVMRepType.put(name, this);
 	}
 	
 	boolean initialised() {
@@ -174,9 +154,9 @@ public class VMRepType implements Comparable<VMRepType> {
 		if (initialised())
 			throw new Error("VMRepType "+name+" has already been initialised");
 
-		pt = PT.get(ptName, ptValue, ptBits);
+		pt = PT.get(td, ptName, ptValue, ptBits);
 		if (htName != null)
-			ht = HT.create(htName, htValue);
+			ht = HT.create(td, htName, htValue);
 		this.struct = struct;
 	}
 	
@@ -200,6 +180,15 @@ public class VMRepType implements Comparable<VMRepType> {
 		return name;
 	}
 
+	/**
+	 * Returns the ID of the representation type.  Representation types of
+	 * a type universe are numbered densely from 0 in the order they are
+	 * defined.
+	 */
+	public int getID() {
+		return defineOrder;
+	}
+
 	public boolean hasUniquePT(Collection<VMRepType> among) {
 		for (VMRepType other: among) {
 			if (this == other)
@@ -0,0 +1,236 @@
+/*
+   DispatchInterpreter.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import vmgen.type.TypeDefinition;
+import vmgen.type.VMDataType;
+import vmgen.type.VMRepType;
+
+/**
+ * Runs generated dispatch code on the tags of operands and returns the
+ * action it reaches.  The code is the switches of the default and the
+ * old synthesisers, or the chain of ifs of the simple synthesiser.
+ * Actions are returned with their white space collapsed.
+ */
+public class DispatchInterpreter {
+	static final Pattern SWITCH = Pattern.compile("(?:L\\w+:\\s*)*switch\\s*\\((.*)\\)\\s*\\{");
+	static final Pattern BLOCK = Pattern.compile("(?:L\\w+:\\s*)*\\{.*");
+	static final Pattern LABEL = Pattern.compile("(L\\w+):\\s*");
+	static final Pattern CASE = Pattern.compile("case (.*):");
+	static final Pattern GOTO = Pattern.compile("(?:L\\w+:\\s*)*goto (L\\w+);");
+	static final Pattern TAG_PAIR = Pattern.compile("TAG_PAIR\\((.*), (.*)\\)");
+	static final Pattern GET_TAG = Pattern.compile("get_tag\\((\\w+)\\)");
+	static final Pattern GET_HT = Pattern.compile("gc_obj_header_type\\(\\(void\\*\\) clear_tag\\((\\w+)\\)\\)");
+	static final Pattern IF = Pattern.compile("if \\((.*)\\) \\{\n");
+	static final Pattern IS = Pattern.compile("is_(\\w+)\\((\\w+)\\)");
+
+	final TypeDefinition typeDef;
+	final String[] vars;
+	final String[] lines;
+	final Map<Integer, Integer> close = new HashMap<Integer, Integer>();
+	final Map<String, Integer> labels = new HashMap<String, Integer>();
+	final Map<String, Integer> tagValues = new HashMap<String, Integer>();
+	final String code;
+	int start = -1;
+
+	public DispatchInterpreter(TypeDefinition typeDef, String[] vars, String code) {
+		this.typeDef = typeDef;
+		this.vars = vars;
+		this.code = code;
+		lines = code.split("\n", -1);
+		for (VMRepType.PT pt: typeDef.allPT())
+			tagValues.put(pt.getName(), pt.getValue());
+		for (VMRepType.HT ht: typeDef.allHT())
+			tagValues.put(ht.getName(), ht.getValue());
+
+		Deque<Integer> open = new ArrayDeque<Integer>();
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = lines[i].replaceFirst("\\s*//.*$", "").trim();
+			if (start < 0 && (SWITCH.matcher(lines[i]).matches() || BLOCK.matcher(lines[i]).matches()))
+				start = i;
+			/* a node may have several labels */
+			Matcher m = LABEL.matcher(lines[i]);
+			for (int pos = 0; m.find(pos) && m.start() == pos; pos = m.end())
+				labels.put(m.group(1), i);
+			for (char c: lines[i].toCharArray())
+				if (c == '{')
+					open.push(i);
+				else if (c == '}')
+					close.putIfAbsent(open.pop(), i);
+		}
+	}
+
+	static String normalise(String action) {
+		return action.trim().replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * Returns the action the switches reach for operands of the rep
+	 * types, or null if no case matches.
+	 */
+	public String run(VMRepType... rts) {
+		int i = start;
+		for (int steps = 0; steps < lines.length * 4; steps++) {
+			String line = lines[i];
+			Matcher m;
+			if ((m = SWITCH.matcher(line)).matches()) {
+				int value = evaluate(m.group(1), rts);
+				int target = -1;
+				int dflt = -1;
+				for (int j = i + 1; j < close.get(i); j++) {
+					if ((m = CASE.matcher(lines[j])).matches() && target < 0 && caseValue(m.group(1)) == value)
+						target = j;
+					else if (lines[j].equals("default:"))
+						dflt = j;
+					if (close.containsKey(j))
+						j = close.get(j);
+				}
+				if (target < 0)
+					target = dflt;
+				if (target < 0)
+					return null;
+				i = target;
+			} else if (BLOCK.matcher(line).matches()) {
+				/* an action may start on the line of the opening brace and
+				 * end on that of the closing one */
+				StringBuilder sb = new StringBuilder();
+				for (int j = i; j <= close.get(i); j++)
+					sb.append(lines[j]).append('\n');
+				return normalise(sb.substring(sb.indexOf("{") + 1, sb.lastIndexOf("}")));
+			} else if ((m = GOTO.matcher(line)).matches())
+				i = labels.get(m.group(1));
+			else if (CASE.matcher(line).matches() || line.equals("default:"))
+				i++;
+			else
+				throw new Error("unexpected line "+(i + 1)+": "+line);
+		}
+		throw new Error("the dispatch loops");
+	}
+
+	int evaluate(String expr, VMRepType[] rts) {
+		expr = expr.replace("(unsigned int) ", "").trim();
+		Matcher m;
+		if ((m = TAG_PAIR.matcher(expr)).matches())
+			return evaluate(m.group(2), rts) << typeDef.getPTBits() | evaluate(m.group(1), rts);
+		if ((m = GET_TAG.matcher(expr)).matches())
+			return rts[operand(m.group(1))].getPT().getValue();
+		if ((m = GET_HT.matcher(expr)).matches()) {
+			VMRepType.HT ht = rts[operand(m.group(1))].getHT();
+			return ht == null ? -1 : ht.getValue();
+		}
+		throw new Error("unknown expression: "+expr);
+	}
+
+	int caseValue(String literal) {
+		Matcher m = TAG_PAIR.matcher(literal);
+		if (m.matches())
+			return caseValue(m.group(2)) << typeDef.getPTBits() | caseValue(m.group(1));
+		Integer v = tagValues.get(literal);
+		if (v != null)
+			return v;
+		return Integer.parseInt(literal);
+	}
+
+	int operand(String var) {
+		for (int i = 0; i < vars.length; i++)
+			if (vars[i].equals(var))
+				return i;
+		throw new Error("unknown operand: "+var);
+	}
+
+	/**
+	 * Returns the action of the first if of the simple synthesiser whose
+	 * condition holds for operands of the data types, or null if none
+	 * does.
+	 */
+	public String runSimple(VMDataType... dts) {
+		if (ifConditions == null)
+			parseIfs();
+		List<String> names = new ArrayList<String>();
+		for (VMDataType dt: dts)
+			names.add(dt.getName());
+		for (int i = 0; i < ifConditions.size(); i++)
+			NEXT_CUBE: for (List<Set<String>> cube: ifConditions.get(i)) {
+				for (int k = 0; k < names.size(); k++)
+					if (!cube.get(k).contains(names.get(k)))
+						continue NEXT_CUBE;
+				return ifActions.get(i);
+			}
+		return null;
+	}
+
+	/* the condition of each if, as cubes of the names of the data types
+	 * each operand may have, and its action; a condition has a
+	 * conjunction for each cube */
+	List<List<List<Set<String>>>> ifConditions;
+	List<String> ifActions;
+
+	/* splits s at the separators outside parentheses */
+	static List<String> splitTopLevel(String s, String separator) {
+		List<String> parts = new ArrayList<String>();
+		int depth = 0;
+		int from = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '(')
+				depth++;
+			else if (c == ')')
+				depth--;
+			else if (depth == 0 && s.startsWith(separator, i)) {
+				parts.add(s.substring(from, i));
+				from = i + separator.length();
+			}
+		}
+		parts.add(s.substring(from));
+		return parts;
+	}
+
+	void parseIfs() {
+		ifConditions = new ArrayList<List<List<Set<String>>>>();
+		ifActions = new ArrayList<String>();
+		Matcher m = IF.matcher(code);
+		for (int pos = 0; m.find(pos) && m.start() == pos; ) {
+			int end = code.indexOf("\n} else \n", m.end());
+			List<List<Set<String>>> cubes = new ArrayList<List<Set<String>>>();
+			for (String conj: splitTopLevel(m.group(1), " || ")) {
+				conj = conj.substring(1, conj.length() - 1);
+				List<Set<String>> cube = new ArrayList<Set<String>>(Collections.nCopies(vars.length, (Set<String>) null));
+				for (String factor: splitTopLevel(conj, " && ")) {
+					Matcher is = IS.matcher(factor);
+					while (is.find()) {
+						int k = operand(is.group(2));
+						if (cube.get(k) == null)
+							cube.set(k, new HashSet<String>());
+						cube.get(k).add(is.group(1));
+					}
+				}
+				if (cube.contains(null))
+					throw new Error("not a condition on every operand: "+conj);
+				cubes.add(cube);
+			}
+			ifConditions.add(cubes);
+			ifActions.add(normalise(code.substring(m.end(), end)));
+			pos = end + "\n} else \n".length();
+		}
+	}
+}
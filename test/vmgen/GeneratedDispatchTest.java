@@ -0,0 +1,123 @@
+/*
+   GeneratedDispatchTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import vmgen.type.TypeDefinition;
+import vmgen.type.VMDataType;
+import vmgen.type.VMRepType;
+
+/**
+ * The dispatch each synthesiser generates for the instructions in idefs/
+ * reaches, for every tuple of operand rep types, the action of the rule
+ * of their data types.
+ */
+@RunWith(Parameterized.class)
+public class GeneratedDispatchTest {
+	static final String DTDEF = "datatype/full.dtdef";
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> idefs() {
+		List<Object[]> params = new ArrayList<Object[]>();
+		for (String f: InsnGen.listFiles(new File("idefs"), "*.idef"))
+			params.add(new Object[] {f});
+		return params;
+	}
+
+	final String idef;
+
+	public GeneratedDispatchTest(String idef) {
+		this.idef = idef;
+	}
+
+	/**
+	 * Checks code of the compiler for the i-th instruction against its
+	 * rule set.
+	 */
+	public static void assertDispatch(Instructions insns, int i, int compiler, String code) {
+		TypeDefinition td = insns.typeDef;
+		RuleSet rs = insns.ruleSets.get(i);
+		DispatchInterpreter interp = new DispatchInterpreter(td, rs.getDispatchVars(), code);
+		for (VMDataType[] dts: allTuples(td.allDataTypes(), rs.getArity(), new VMDataType[0])) {
+			String expected = null;
+			for (RuleSet.Rule r: rs.getRules())
+				if (r.getConditionSet().contains(dts))
+					expected = DispatchInterpreter.normalise(r.action);
+			if (expected == null)
+				continue;
+			if (compiler == InsnGen.COMPILER_SIMPLE) {
+				assertEquals(insns.getName(i)+Arrays.toString(dts), expected, interp.runSimple(dts));
+				continue;
+			}
+			List<List<VMRepType>> rtss = new ArrayList<List<VMRepType>>();
+			for (VMDataType dt: dts)
+				rtss.add(dt.getVMRepTypes());
+			for (VMRepType[] rts: allTuples(rtss, new VMRepType[0]))
+				assertEquals(insns.getName(i)+Arrays.toString(rts), expected, interp.run(rts));
+		}
+	}
+
+	static <T> List<T[]> allTuples(List<T> elements, int arity, T[] empty) {
+		List<List<T>> components = new ArrayList<List<T>>();
+		for (int i = 0; i < arity; i++)
+			components.add(elements);
+		return allTuples(components, empty);
+	}
+
+	static <T> List<T[]> allTuples(List<? extends List<T>> components, T[] empty) {
+		List<T[]> tuples = new ArrayList<T[]>();
+		tuples.add(empty);
+		for (List<T> c: components) {
+			List<T[]> longer = new ArrayList<T[]>();
+			for (T[] t: tuples)
+				for (T e: c) {
+					T[] u = Arrays.copyOf(t, t.length + 1);
+					u[t.length] = e;
+					longer.add(u);
+				}
+			tuples = longer;
+		}
+		return tuples;
+	}
+
+	void check(int compiler, InsnGen.Option option) throws Exception {
+		Instructions insns = new Instructions(DTDEF, idef);
+		for (int i = 0; i < insns.insnDefs.size(); i++)
+			assertDispatch(insns, i, compiler, insns.synthesise(i, compiler, option));
+	}
+
+	@Test
+	public void defaultSynthesiser() throws Exception {
+		check(InsnGen.COMPILER_DEFAULT, Instructions.option());
+	}
+
+	@Test
+	public void simpleSynthesiser() throws Exception {
+		check(InsnGen.COMPILER_SIMPLE, Instructions.option());
+	}
+
+	@Test
+	public void oldSynthesiser() throws Exception {
+		check(InsnGen.COMPILER_OLD, Instructions.option());
+	}
+}
@@ -0,0 +1,84 @@
+/*
+   Instructions.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import java.io.FileNotFoundException;
+import java.util.List;
+
+import vmgen.type.TypeDefinition;
+
+/**
+ * The instructions of an instruction definition file and their rule
+ * sets, with operand specifications that accept every tuple of operand
+ * types.
+ */
+public class Instructions {
+	public final TypeDefinition typeDef;
+	public final List<ProcDefinition.InstDefinition> insnDefs;
+	public final List<RuleSet> ruleSets;
+	/* operand specifications accepting every tuple */
+	public final String operandSpec;
+
+	public Instructions(String dtdefFile, String idefFile) throws FileNotFoundException {
+		AcceptAllInput input = new AcceptAllInput(dtdefFile, idefFile);
+		typeDef = input.typeDef;
+		insnDefs = input.insnDefs;
+		ruleSets = input.ruleSets;
+		operandSpec = input.operandSpecSource;
+	}
+
+	public String getName(int i) {
+		return insnDefs.get(i).name;
+	}
+
+	/**
+	 * Returns options given as on the command line, e.g.,
+	 * option("-Xcmp:unique_table", "true").
+	 */
+	public static InsnGen.Option option(String... args) {
+		InsnGen.Option option = new InsnGen.Option();
+		for (int i = 0; i < args.length; ) {
+			i = option.addOption(args, i);
+			if (i < 0)
+				throw new Error("unknown option");
+		}
+		return option;
+	}
+
+	/**
+	 * Runs InsnGen as from the command line.  Options of earlier runs are
+	 * cleared.
+	 */
+	public static void runInsnGen(String... args) throws FileNotFoundException {
+		InsnGen.option = new InsnGen.Option();
+		InsnGen.main(args);
+	}
+
+	/**
+	 * Returns the dispatch code of the i-th instruction synthesised by
+	 * the compiler (InsnGen.COMPILER_*).
+	 */
+	public String synthesise(int i, int compiler, InsnGen.Option option) throws Exception {
+		return synthesise(i, compiler, new SynthesisContext(typeDef, getName(i), option));
+	}
+
+	public String synthesise(int i, int compiler, SynthesisContext ctx) throws Exception {
+		int saved = InsnGen.compiler;
+		InsnGen.compiler = compiler;
+		try {
+			StringBuilder out = new StringBuilder();
+			InsnGen.createSynthesiser(insnDefs.get(i)).synthesise(ruleSets.get(i), ctx, out);
+			return out.toString();
+		} finally {
+			InsnGen.compiler = saved;
+		}
+	}
+}
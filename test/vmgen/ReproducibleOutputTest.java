@@ -0,0 +1,81 @@
+/*
+   ReproducibleOutputTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Every synthesiser gives the same code for the same inputs, whatever
+ * the run and the number of jobs.
+ */
+public class ReproducibleOutputTest {
+	static final String DTDEF = "datatype/full.dtdef";
+	static final int[] COMPILERS = {InsnGen.COMPILER_DEFAULT, InsnGen.COMPILER_SIMPLE, InsnGen.COMPILER_OLD};
+	static final String[] FLAGS = {"", "-simple", "-old"};
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void synthesisIsRepeatable() throws Exception {
+		for (String idef: InsnGen.listFiles(new File("idefs"), "*.idef")) {
+			Instructions insns1 = new Instructions(DTDEF, idef);
+			Instructions insns2 = new Instructions(DTDEF, idef);
+			for (int compiler: COMPILERS)
+				for (int i = 0; i < insns1.insnDefs.size(); i++)
+					assertEquals(idef, insns1.synthesise(i, compiler, Instructions.option()),
+								 insns2.synthesise(i, compiler, Instructions.option()));
+		}
+	}
+
+	/* contents of the files of the output directory */
+	Map<String, String> runInsnGen(String flag, int jobs) throws Exception {
+		File ospec = tmp.newFile();
+		StringBuilder sb = new StringBuilder();
+		for (String idef: InsnGen.listFiles(new File("idefs"), "*.idef"))
+			sb.append(new Instructions(DTDEF, idef).operandSpec);
+		Files.write(ospec.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		File out = tmp.newFolder();
+		if (flag.isEmpty())
+			Instructions.runInsnGen("-j", Integer.toString(jobs), DTDEF, "idefs", ospec.getPath(), out.getPath());
+		else
+			Instructions.runInsnGen(flag, "-j", Integer.toString(jobs), DTDEF, "idefs", ospec.getPath(), out.getPath());
+		Map<String, String> files = new TreeMap<String, String>();
+		for (File f: out.listFiles())
+			files.put(f.getName(), new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8)
+					  .replace(ospec.getPath(), "OSPEC").replace(out.getPath(), "OUT"));
+		return files;
+	}
+
+	@Test
+	public void jobsDoNotChangeOutput() throws Exception {
+		for (String flag: FLAGS) {
+			Map<String, String> sequential = runInsnGen(flag, 1);
+			Map<String, String> parallel = runInsnGen(flag, 4);
+			assertFalse(flag, sequential.isEmpty());
+			assertArrayEquals(flag, sequential.keySet().toArray(), parallel.keySet().toArray());
+			for (String name: sequential.keySet())
+				assertEquals(flag + " " + name, sequential.get(name), parallel.get(name));
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+   SubDiagramReuseTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import vmgen.newsynth.SubDiagramMemo;
+
+/**
+ * Synthesis reusing the sub-diagrams of the previous synthesis of an
+ * instruction gives the code a synthesis from scratch gives.
+ */
+public class SubDiagramReuseTest {
+	static final String[] IDEFS = {"idefs/add.idef", "idefs/getprop.idef", "idefs/call.idef"};
+
+	static final InsnGen.Option OPTION = Instructions.option("-Xcmp:reuse_subdiagram", "true");
+
+	static String synthesise(Instructions insns, int i, SubDiagramMemo memo) throws Exception {
+		SynthesisContext ctx = new SynthesisContext(insns.typeDef, insns.getName(i), OPTION);
+		ctx.setSubDiagramMemo(memo);
+		return insns.synthesise(i, InsnGen.COMPILER_DEFAULT, ctx);
+	}
+
+	/* the rule set with the action of the first rule changed */
+	static RuleSet edit(RuleSet rs) {
+		Set<RuleSet.Rule> rules = new LinkedHashSet<RuleSet.Rule>();
+		for (RuleSet.Rule r: rs.getRules())
+			rules.add(rules.isEmpty() ? new RuleSet.Rule("/* edited */\n" + r.action, r.getConditionSet()) : r);
+		return new RuleSet(rs.getDispatchVars(), rules);
+	}
+
+	@Test
+	public void reuseGivesCodeOfFreshSynthesis() throws Exception {
+		for (String idef: IDEFS) {
+			Instructions insns = new Instructions(GeneratedDispatchTest.DTDEF, idef);
+			for (int i = 0; i < insns.insnDefs.size(); i++) {
+				SubDiagramMemo memo = new SubDiagramMemo();
+				String fresh = synthesise(insns, i, memo);
+				GeneratedDispatchTest.assertDispatch(insns, i, InsnGen.COMPILER_DEFAULT, fresh);
+				int size = memo.size();
+				assertTrue(size > 0);
+				assertEquals(fresh, synthesise(insns, i, memo));
+				assertEquals(size, memo.size());
+			}
+		}
+	}
+
+	@Test
+	public void reuseAfterEditGivesCodeOfFreshSynthesis() throws Exception {
+		for (String idef: IDEFS) {
+			Instructions insns = new Instructions(GeneratedDispatchTest.DTDEF, idef);
+			for (int i = 0; i < insns.insnDefs.size(); i++) {
+				SubDiagramMemo memo = new SubDiagramMemo();
+				synthesise(insns, i, memo);
+				insns.ruleSets.set(i, edit(insns.ruleSets.get(i)));
+				String reused = synthesise(insns, i, memo);
+				assertEquals(synthesise(insns, i, new SubDiagramMemo()), reused);
+				assertTrue(reused.contains("/* edited */"));
+				GeneratedDispatchTest.assertDispatch(insns, i, InsnGen.COMPILER_DEFAULT, reused);
+			}
+		}
+	}
+}
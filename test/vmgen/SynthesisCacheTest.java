@@ -0,0 +1,134 @@
+/*
+   SynthesisCacheTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Keys of the synthesis cache and the code InsnGen gives on hits.
+ */
+public class SynthesisCacheTest {
+	static final String DTDEF = "datatype/full.dtdef";
+	static final String IDEF = "idefs/add.idef";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	Instructions insns;
+	SynthesisCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		insns = new Instructions(DTDEF, IDEF);
+		cache = new SynthesisCache(tmp.newFolder("cache").getPath());
+	}
+
+	String key(RuleSet rs, int compiler, InsnGen.Option option) {
+		return cache.key(insns.typeDef, insns.getName(0), rs, compiler, option);
+	}
+
+	@Test
+	public void keyIsDeterminedByInputs() throws Exception {
+		RuleSet rs = insns.ruleSets.get(0);
+		InsnGen.Option o1 = Instructions.option("-Xcmp:verify_diagram", "false", "-Xgen:use_goto", "true");
+		InsnGen.Option o2 = Instructions.option("-Xgen:use_goto", "true", "-Xcmp:verify_diagram", "false");
+		String k = key(rs, InsnGen.COMPILER_DEFAULT, o1);
+		assertEquals(k, key(new Instructions(DTDEF, IDEF).ruleSets.get(0), InsnGen.COMPILER_DEFAULT, o1));
+		assertEquals(k, key(rs, InsnGen.COMPILER_DEFAULT, o2));
+		assertNotEquals(k, key(rs, InsnGen.COMPILER_OLD, o1));
+		assertNotEquals(k, key(rs, InsnGen.COMPILER_DEFAULT, Instructions.option("-Xcmp:verify_diagram", "false")));
+	}
+
+	@Test
+	public void keyDependsOnRuleOrder() {
+		RuleSet rs = insns.ruleSets.get(0);
+		List<RuleSet.Rule> rules = new ArrayList<RuleSet.Rule>(rs.getRules());
+		Collections.reverse(rules);
+		RuleSet reversed = new RuleSet(rs.getDispatchVars(), new LinkedHashSet<RuleSet.Rule>(rules));
+		InsnGen.Option option = Instructions.option();
+		assertNotEquals(key(rs, InsnGen.COMPILER_DEFAULT, option), key(reversed, InsnGen.COMPILER_DEFAULT, option));
+	}
+
+	@Test
+	public void committedEntryIsCopied() throws Exception {
+		String key = key(insns.ruleSets.get(0), InsnGen.COMPILER_DEFAULT, Instructions.option());
+		StringBuilder out = new StringBuilder();
+		assertFalse(cache.copyTo(key, out));
+		SynthesisCache.Recorder recorder = cache.record(key, out);
+		recorder.append("switch (x) {}\n");
+		recorder.commit();
+		assertEquals("switch (x) {}\n", out.toString());
+		StringBuilder copy = new StringBuilder();
+		assertTrue(cache.copyTo(key, copy));
+		assertEquals(out.toString(), copy.toString());
+	}
+
+	@Test
+	public void abortedEntryIsNotCopied() throws Exception {
+		String key = key(insns.ruleSets.get(0), InsnGen.COMPILER_DEFAULT, Instructions.option());
+		SynthesisCache.Recorder recorder = cache.record(key, new StringBuilder());
+		recorder.append("switch (x) {");
+		recorder.abort();
+		assertFalse(cache.copyTo(key, new StringBuilder()));
+		assertEquals(0, cache.dir.list().length);
+	}
+
+	String runInsnGen(String outName, String... options) throws Exception {
+		File ospec = new File(tmp.getRoot(), "all.ospec");
+		Files.write(ospec.toPath(), insns.operandSpec.getBytes(StandardCharsets.UTF_8));
+		File out = tmp.newFolder(outName);
+		List<String> args = new ArrayList<String>();
+		Collections.addAll(args, options);
+		Collections.addAll(args, DTDEF, IDEF, ospec.getPath(), out.getPath());
+		Instructions.runInsnGen(args.toArray(new String[0]));
+		return new String(Files.readAllBytes(new File(out, insns.getName(0) + ".inc").toPath()), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void hitGivesCodeOfMiss() throws Exception {
+		String dir = cache.dir.getPath();
+		for (String compiler: new String[] {"", "-old"}) {
+			String[] flags = compiler.isEmpty() ? new String[] {"-cache", dir} : new String[] {compiler, "-cache", dir};
+			String[] plain = compiler.isEmpty() ? new String[0] : new String[] {compiler};
+			String expected = runInsnGen("plain" + compiler, plain);
+			assertEquals(expected, runInsnGen("miss" + compiler, flags));
+			assertEquals(expected, runInsnGen("hit" + compiler, flags));
+		}
+		assertEquals(2, cache.dir.list().length);
+	}
+
+	@Test
+	public void hitIsServedFromEntry() throws Exception {
+		String code = runInsnGen("miss", "-cache", cache.dir.getPath());
+		File[] entries = cache.dir.listFiles();
+		assertEquals(1, entries.length);
+		Files.write(entries[0].toPath(), "/* from the cache */\n".getBytes(StandardCharsets.UTF_8));
+		String hit = runInsnGen("hit", "-cache", cache.dir.getPath());
+		assertTrue(hit.contains("/* from the cache */"));
+		assertNotEquals(code, hit);
+	}
+}
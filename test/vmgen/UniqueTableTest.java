@@ -0,0 +1,68 @@
+/*
+   UniqueTableTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import vmgen.type.VMDataTypeVecSet;
+
+/**
+ * Decision diagrams built with the unique table dispatch as the rule
+ * set says, and overlapping rules are reported as they are without it.
+ */
+public class UniqueTableTest {
+	static final String[][] OPTIONS = {
+		{"-Xcmp:unique_table", "true"},
+		{"-Xcmp:unique_table", "true", "-Xcmp:use_tagpair", "false"},
+		{"-Xcmp:unique_table", "true", "-Xcmp:opt_pass", ""},
+	};
+
+	@Test
+	public void dispatchFollowsRules() throws Exception {
+		for (String idef: InsnGen.listFiles(new File("idefs"), "*.idef")) {
+			Instructions insns = new Instructions(GeneratedDispatchTest.DTDEF, idef);
+			for (String[] args: OPTIONS)
+				for (int i = 0; i < insns.insnDefs.size(); i++)
+					GeneratedDispatchTest.assertDispatch(insns, i, InsnGen.COMPILER_DEFAULT,
+							insns.synthesise(i, InsnGen.COMPILER_DEFAULT, Instructions.option(args)));
+		}
+	}
+
+	void assertDuplicate(String... args) throws Exception {
+		Instructions insns = new Instructions(GeneratedDispatchTest.DTDEF, "idefs/add.idef");
+		RuleSet rs = insns.ruleSets.get(0);
+		VMDataTypeVecSet overlap = new VMDataTypeVecSet(insns.typeDef, 2);
+		overlap.add(insns.typeDef.getVMDataType("string"), insns.typeDef.getVMDataType("fixnum"));
+		Set<RuleSet.Rule> rules = new LinkedHashSet<RuleSet.Rule>(rs.getRules());
+		rules.add(new RuleSet.Rule("overlap();", overlap));
+		insns.ruleSets.set(0, new RuleSet(rs.getDispatchVars(), rules));
+		try {
+			insns.synthesise(0, InsnGen.COMPILER_DEFAULT, Instructions.option(args));
+			fail("no error for overlapping rules");
+		} catch (Error e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("LL-Rule duplicate: ("));
+			assertTrue(e.getMessage(), e.getMessage().contains("fixnum"));
+		}
+	}
+
+	@Test
+	public void overlappingRulesAreReported() throws Exception {
+		assertDuplicate("-Xcmp:unique_table", "true");
+		assertDuplicate("-Xcmp:unique_table", "false");
+	}
+}
@@ -0,0 +1,138 @@
+/*
+   WatcherTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import vmgen.type.VMDataType;
+
+/**
+ * Updates of InsnGen --watch after changes of its inputs.
+ */
+public class WatcherTest {
+	static final String IDEF_A =
+		"\\inst a (v1, v2)\n" +
+		"\\when v1:fixnum && v2:fixnum \\{A1\\}\n" +
+		"\\otherwise \\{A2\\}\n";
+	static final String IDEF_B =
+		"\\inst b (v1, v2)\n" +
+		"\\when v1:fixnum && v2:string \\{B1\\}\n" +
+		"\\otherwise \\{B2\\}\n";
+	static final String OSPEC =
+		"a (_, _) accept\n" +
+		"b (_, _) accept\n";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	File dtdef, idefA, idefB, out;
+
+	static void write(File f, String contents) throws Exception {
+		Files.write(f.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+	}
+
+	String read(String file) throws Exception {
+		return new String(Files.readAllBytes(new File(out, file).toPath()), StandardCharsets.UTF_8);
+	}
+
+	/* runs InsnGen as with --watch, but returns the watcher instead of
+	 * waiting for changes */
+	Watcher start() throws Exception {
+		File dir = tmp.newFolder("in");
+		dtdef = new File(dir, "t.dtdef");
+		Files.copy(new File("small-test/small.dtdef").toPath(), dtdef.toPath());
+		idefA = new File(dir, "a.idef");
+		write(idefA, IDEF_A);
+		idefB = new File(dir, "b.idef");
+		write(idefB, IDEF_B);
+		File ospec = new File(dir, "t.ospec");
+		write(ospec, OSPEC);
+		out = tmp.newFolder("out");
+
+		InsnGen.option = new InsnGen.Option();
+		InsnGen.parseOption(new String[] {"--watch", dtdef.getPath(), dir.getPath(), ospec.getPath(), out.getPath()});
+		List<InsnGen.Flavour> flavours = InsnGen.makeFlavours();
+		flavours.get(0).load();
+		InsnGen.generateAll(flavours);
+		return new Watcher(flavours.get(0));
+	}
+
+	static void updateFails(Watcher w, File changed) throws Exception {
+		try {
+			w.update(Collections.singleton(Watcher.canonical(changed.getPath())));
+			fail("no error for "+changed);
+		} catch (Error e) {
+		}
+	}
+
+	static void update(Watcher w, File changed) throws Exception {
+		w.update(Collections.<Path>singleton(Watcher.canonical(changed.getPath())));
+	}
+
+	/* checks that the rules of every instruction refer to the data types
+	 * of the type definition of the flavour */
+	static void assertOneUniverse(Watcher w) {
+		for (ProcDefinition.InstDefinition insnDef: w.flavour.insnDefs)
+			for (RuleSet.Rule r: insnDef.tdDef.rules)
+				for (VMDataType[] dts: r.getConditionSet().toList())
+					for (VMDataType dt: dts)
+						assertSame(insnDef.name+" "+dt.getName(), w.flavour.typeDef.getVMDataType(dt.getName()), dt);
+	}
+
+	@Test
+	public void failedReloadIsRetried() throws Exception {
+		Watcher w = start();
+		assertTrue(read("b.inc").contains("Tnf"));
+
+		write(idefA, "\\inst a (v1, v2)\n\\when v1:nosuchtype \\{A1\\}\n");
+		updateFails(w, idefA);
+		write(dtdef, new String(Files.readAllBytes(dtdef.toPath()), StandardCharsets.UTF_8).replace("Tnf", "Tfx"));
+		updateFails(w, dtdef);
+		assertOneUniverse(w);
+
+		write(idefA, IDEF_A);
+		update(w, idefA);
+		assertOneUniverse(w);
+		assertTrue(read("a.inc").contains("Tfx"));
+		assertTrue(read("b.inc").contains("Tfx"));
+	}
+
+	@Test
+	public void failedOperandSpecificationIsRetried() throws Exception {
+		Watcher w = start();
+		File ospec = new File(InsnGen.operandSpecFile);
+		write(ospec, "a (_, _) accept\nb (");
+		updateFails(w, ospec);
+		write(dtdef, new String(Files.readAllBytes(dtdef.toPath()), StandardCharsets.UTF_8).replace("Tnf", "Tfx"));
+		updateFails(w, dtdef);
+		assertOneUniverse(w);
+		assertSame(w.flavour.typeDef, w.flavour.operandSpec.typeDef);
+
+		write(ospec, OSPEC);
+		update(w, ospec);
+		assertOneUniverse(w);
+		assertSame(w.flavour.typeDef, w.flavour.operandSpec.typeDef);
+		assertTrue(read("b.inc").contains("Tfx"));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+   WhenClauseTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import vmgen.type.VMDataType;
+
+/**
+ * The rules ProcDefinition builds from the \when clauses of an
+ * instruction.
+ */
+public class WhenClauseTest {
+	static final String DTDEF = "datatype/full.dtdef";
+	static final List<String> OBJECTS = Arrays.asList("simple_object", "array", "function", "builtin", "iterator",
+			"regexp", "string_object", "number_object", "boolean_object");
+	static final List<String> PRIMITIVES = Arrays.asList("fixnum", "flonum", "special", "string");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	Instructions load(String idef) throws Exception {
+		File f = tmp.newFile("test.idef");
+		Files.write(f.toPath(), idef.getBytes(StandardCharsets.UTF_8));
+		return new Instructions(DTDEF, f.getPath());
+	}
+
+	/* the action of the rule whose conditions hold for the data types */
+	static String decide(Instructions insns, String... names) {
+		VMDataType[] dts = new VMDataType[names.length];
+		for (int i = 0; i < names.length; i++)
+			dts[i] = insns.typeDef.getVMDataType(names[i]);
+		String action = null;
+		for (RuleSet.Rule r: insns.ruleSets.get(0).getRules())
+			if (r.getConditionSet().contains(dts)) {
+				assertEquals(Arrays.toString(names), null, action);
+				action = r.action.trim();
+			}
+		return action;
+	}
+
+	static String disjunction(String var, List<String> types) {
+		StringBuilder sb = new StringBuilder("(");
+		for (String t: types)
+			sb.append(sb.length() == 1 ? "" : " || ").append(var).append(':').append(t);
+		return sb.append(")").toString();
+	}
+
+	@Test
+	public void productOfDisjunctions() throws Exception {
+		Instructions insns = load("\\inst t (v1, v2, v3)\n" +
+								  "\\when " + disjunction("v1", OBJECTS) + " && " + disjunction("v2", OBJECTS) +
+								  " && " + disjunction("v3", PRIMITIVES) + " \\{A\\}\n" +
+								  "\\otherwise \\{B\\}\n");
+		RuleSet.Rule a = insns.ruleSets.get(0).getRules().iterator().next();
+		assertEquals("A", a.action.trim());
+		assertEquals(OBJECTS.size() * OBJECTS.size() * PRIMITIVES.size(), a.getConditionSet().size());
+		assertEquals("A", decide(insns, "array", "regexp", "string"));
+		assertEquals("B", decide(insns, "array", "regexp", "array"));
+		assertEquals("B", decide(insns, "fixnum", "regexp", "string"));
+	}
+
+	@Test
+	public void precedenceOfSubsets() throws Exception {
+		Instructions insns = load("\\inst t (v1, v2)\n" +
+								  "\\when v1:fixnum \\{L\\}\n" +
+								  "\\when v2:string \\{R\\}\n" +
+								  "\\when v1:fixnum && v2:fixnum \\{B\\}\n" +
+								  "\\otherwise \\{O\\}\n");
+		assertEquals("B", decide(insns, "fixnum", "fixnum"));
+		assertEquals("L", decide(insns, "fixnum", "array"));
+		assertEquals("R", decide(insns, "array", "string"));
+		assertEquals("O", decide(insns, "fixnum", "string"));
+		assertEquals("O", decide(insns, "array", "array"));
+	}
+
+	String loadOutput(String idef) throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		PrintStream saved = System.out;
+		System.setOut(new PrintStream(buf, true, "UTF-8"));
+		try {
+			load(idef);
+		} finally {
+			System.setOut(saved);
+		}
+		return buf.toString("UTF-8");
+	}
+
+	@Test
+	public void sameConditionInTwoClausesIsReported() throws Exception {
+		String out = loadOutput("\\inst t (v1, v2)\n" +
+								"\\when v1:fixnum && (v2:fixnum || v2:string) \\{A\\}\n" +
+								"\\when (v1:fixnum || v1:flonum) && v2:string \\{B\\}\n");
+		assertTrue(out, out.contains("error: same condition (fixnum : string)"));
+		assertFalse(out, out.contains("(flonum"));
+	}
+
+	@Test
+	public void sameConditionInOneClauseIsNotReported() throws Exception {
+		String out = loadOutput("\\inst t (v1, v2)\n" +
+								"\\when (v1:fixnum && v2:string) || (v1:fixnum && v2:string) \\{A\\}\n");
+		assertEquals("", out);
+	}
+}
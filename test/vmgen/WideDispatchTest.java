@@ -0,0 +1,71 @@
+/*
+   WideDispatchTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Dispatch on more than two operands, up to ProcDefinition.MAX_DISPATCH_ARITY.
+ */
+public class WideDispatchTest {
+	static final String DTDEF = "small-test/small.dtdef";
+	static final String IDEF = "test/vmgen/arity5.idef";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	void check(int compiler) throws Exception {
+		Instructions insns = new Instructions(DTDEF, IDEF);
+		assertEquals(5, insns.ruleSets.get(0).getArity());
+		GeneratedDispatchTest.assertDispatch(insns, 0, compiler, insns.synthesise(0, compiler, Instructions.option()));
+	}
+
+	@Test
+	public void defaultSynthesiser() throws Exception {
+		check(InsnGen.COMPILER_DEFAULT);
+	}
+
+	@Test
+	public void simpleSynthesiser() throws Exception {
+		check(InsnGen.COMPILER_SIMPLE);
+	}
+
+	@Test
+	public void oldSynthesiser() throws Exception {
+		check(InsnGen.COMPILER_OLD);
+	}
+
+	@Test
+	public void arityBeyondCapIsRejected() throws Exception {
+		int arity = ProcDefinition.MAX_DISPATCH_ARITY + 1;
+		StringBuilder sb = new StringBuilder("\\inst wide (");
+		for (int i = 0; i < arity; i++)
+			sb.append(i == 0 ? "" : ", ").append("v").append(i);
+		sb.append(")\n\\when v0:fixnum \\{A\\}\n");
+		File idef = tmp.newFile("wide.idef");
+		Files.write(idef.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		try {
+			new Instructions(DTDEF, idef.getPath());
+			fail("no error for "+arity+" operands");
+		} catch (Error e) {
+			assertEquals("at most " + ProcDefinition.MAX_DISPATCH_ARITY + " operands can be dispatched: " + arity, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+   DiagramVerifierTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+ */
+package vmgen.newsynth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import vmgen.GeneratedDispatchTest;
+import vmgen.Instructions;
+import vmgen.RuleSet;
+import vmgen.SynthesisContext;
+import vmgen.newsynth.DecisionDiagram.HTNode;
+import vmgen.newsynth.DecisionDiagram.Leaf;
+import vmgen.newsynth.DecisionDiagram.Node;
+import vmgen.newsynth.DecisionDiagram.PTNode;
+import vmgen.newsynth.DecisionDiagram.TagNode;
+import vmgen.newsynth.DecisionDiagram.TagPairNode;
+import vmgen.type.VMDataType;
+import vmgen.type.VMRepType;
+
+/**
+ * The verifier reports exactly the tuples of data types for which some
+ * tuple of their rep types, run through the diagram one by one, misses
+ * a branch or reaches the leaf of another rule.
+ */
+public class DiagramVerifierTest {
+    static final String DTDEF = "datatype/full.dtdef";
+
+    static DecisionDiagram build(Instructions insns, int i, boolean tagPair, boolean optimise) {
+        RuleSet hlrs = insns.ruleSets.get(i);
+        List<DecisionDiagram.DispatchCriterion> plan = new ArrayList<DecisionDiagram.DispatchCriterion>();
+        int firstPT = 0;
+        if (tagPair && hlrs.getArity() >= 2) {
+            plan.add(new DecisionDiagram.TagPairDispatch());
+            firstPT = 2;
+        }
+        for (int k = firstPT; k < hlrs.getArity(); k++)
+            plan.add(new DecisionDiagram.PTDispatch(k));
+        for (int k = 0; k < hlrs.getArity(); k++)
+            plan.add(new DecisionDiagram.HTDispatch(k));
+        SynthesisContext ctx = new SynthesisContext(insns.typeDef, insns.getName(i), Instructions.option());
+        DecisionDiagram dd = new DecisionDiagram(plan, new LLRuleSet(hlrs, insns.typeDef), ctx);
+        if (optimise) {
+            dd.mergeRelative();
+            dd.skipNoChoice();
+        }
+        return dd;
+    }
+
+    /* the rule of the leaf the rep types reach, or null if a branch is
+     * missing */
+    static RuleSet.Rule walk(Node node, VMRepType[] rts) {
+        while (node != null && !(node instanceof Leaf)) {
+            if (node instanceof TagPairNode)
+                node = ((TagPairNode) node).getChild(new TagPairNode.TagPair(rts[0].getPT(), rts[1].getPT()));
+            else if (node instanceof PTNode)
+                node = ((PTNode) node).getChild(rts[((PTNode) node).getOpIndex()].getPT());
+            else if (((HTNode) node).isNoHT())
+                node = ((HTNode) node).getChild();
+            else {
+                VMRepType.HT ht = rts[((HTNode) node).getOpIndex()].getHT();
+                node = ht == null ? null : ((HTNode) node).getChild(ht);
+            }
+        }
+        return node == null ? null : ((Leaf) node).getRule().getHLRule();
+    }
+
+    static String name(VMDataType[] dts) {
+        StringBuilder sb = new StringBuilder();
+        for (VMDataType dt: dts)
+            sb.append(sb.length() == 0 ? "(" : ",").append(dt.getName());
+        return sb.append(")").toString();
+    }
+
+    /* tuples of data types decided wrongly, found by running every tuple
+     * of rep types */
+    static TreeSet<String> wrongByRunning(Instructions insns, int i, Node root) {
+        TreeSet<String> wrong = new TreeSet<String>();
+        for (RuleSet.Rule r: insns.ruleSets.get(i).getRules())
+            for (VMDataType[] dts: r.getConditionSet().toList())
+                for (VMRepType[] rts: repTypeTuples(dts, 0, new VMRepType[dts.length], new ArrayList<VMRepType[]>()))
+                    if (walk(root, rts) != r)
+                        wrong.add(name(dts));
+        return wrong;
+    }
+
+    static List<VMRepType[]> repTypeTuples(VMDataType[] dts, int k, VMRepType[] rts, List<VMRepType[]> out) {
+        if (k == dts.length)
+            out.add(rts.clone());
+        else
+            for (VMRepType rt: dts[k].getVMRepTypes()) {
+                rts[k] = rt;
+                repTypeTuples(dts, k + 1, rts, out);
+            }
+        return out;
+    }
+
+    static TreeSet<String> wrongByVerifier(Instructions insns, int i, Node root) {
+        TreeSet<String> wrong = new TreeSet<String>();
+        for (String error: new DiagramVerifier(insns.ruleSets.get(i), insns.typeDef).verify(root))
+            wrong.add(error.substring(0, error.indexOf(": ")));
+        return wrong;
+    }
+
+    @Test
+    public void correctDiagramsHaveNoErrors() throws Exception {
+        for (Object[] param: GeneratedDispatchTest.idefs()) {
+            String idef = (String) param[0];
+            Instructions insns = new Instructions(DTDEF, idef);
+            for (int i = 0; i < insns.insnDefs.size(); i++)
+                for (boolean tagPair: new boolean[] {true, false})
+                    for (boolean optimise: new boolean[] {true, false}) {
+                        Node root = build(insns, i, tagPair, optimise).root;
+                        assertEquals(idef, new TreeSet<String>(), wrongByRunning(insns, i, root));
+                        assertEquals(idef, new TreeSet<String>(), wrongByVerifier(insns, i, root));
+                    }
+        }
+    }
+
+    /* Redirects each edge of the root to the child of another edge in
+     * turn.  Returns how many of them made the diagram wrong. */
+    static <T> int swapEdges(Instructions insns, int i, TagNode<T> root) {
+        int corrupted = 0;
+        List<T> tags = root.getEdges();
+        for (T t1: tags)
+            for (T t2: tags) {
+                Node saved = root.getChild(t1);
+                root.replaceChild(t1, root.getChild(t2));
+                TreeSet<String> wrong = wrongByRunning(insns, i, root);
+                assertEquals(t1 + " -> " + t2, wrong, wrongByVerifier(insns, i, root));
+                if (!wrong.isEmpty())
+                    corrupted++;
+                root.replaceChild(t1, saved);
+            }
+        return corrupted;
+    }
+
+    @Test
+    public void redirectedEdgesAreReported() throws Exception {
+        Instructions insns = new Instructions(DTDEF, "idefs/add.idef");
+        for (boolean tagPair: new boolean[] {true, false}) {
+            Node root = build(insns, 0, tagPair, true).root;
+            assertTrue(swapEdges(insns, 0, (TagNode<?>) root) > 0);
+        }
+    }
+
+    /* Drops each edge of the root in turn. */
+    static <T> void dropEdges(Instructions insns, int i, TagNode<T> root) {
+        Branches<T> saved = root.branches;
+        for (T dropped: saved.tags()) {
+            root.branches = new Branches<T>();
+            for (T t: saved.tags())
+                if (t != dropped)
+                    root.branches.put(t, saved.get(t));
+            TreeSet<String> wrong = wrongByRunning(insns, i, root);
+            assertFalse(dropped.toString(), wrong.isEmpty());
+            assertEquals(dropped.toString(), wrong, wrongByVerifier(insns, i, root));
+            for (String error: new DiagramVerifier(insns.ruleSets.get(i), insns.typeDef).verify(root))
+                assertTrue(error, error.endsWith(": no branch"));
+        }
+        root.branches = saved;
+    }
+
+    @Test
+    public void missingEdgesAreReported() throws Exception {
+        Instructions insns = new Instructions(DTDEF, "idefs/add.idef");
+        for (boolean tagPair: new boolean[] {true, false})
+            dropEdges(insns, 0, (TagNode<?>) build(insns, 0, tagPair, true).root);
+    }
+}
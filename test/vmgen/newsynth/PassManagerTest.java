@@ -0,0 +1,187 @@
+/*
+   PassManagerTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+ */
+package vmgen.newsynth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import vmgen.GeneratedDispatchTest;
+import vmgen.InsnGen;
+import vmgen.Instructions;
+import vmgen.SynthesisContext;
+
+/**
+ * Rounds of optimisation passes and the statistics recorded for them.
+ */
+public class PassManagerTest {
+    static final String DTDEF = "datatype/full.dtdef";
+    static final String IDEF = "idefs/add.idef";
+    static final Pattern RECORD = Pattern.compile(
+        "\\{\"round\": (\\d+), \"pass\": \"([\\w:]+)\", \"nanos\": \\d+, \"callerThreadAllocatedBytes\": -?\\d+, " +
+        "\"(?:merges|skipped)\": (\\d+), \"nodes\": (\\d+), \"leaves\": \\d+, \"depth\": \\d+\\}");
+    static final Pattern ROUNDS = Pattern.compile("\"rounds\": (\\d+)");
+    static final Pattern INITIAL = Pattern.compile("\"initial\": \\{\"nodes\": (\\d+),");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static class Record {
+        int round;
+        String pass;
+        int changes;
+        int nodes;
+    }
+
+    static List<Record> records(String json) {
+        List<Record> records = new ArrayList<Record>();
+        Matcher m = RECORD.matcher(json);
+        while (m.find()) {
+            Record r = new Record();
+            r.round = Integer.parseInt(m.group(1));
+            r.pass = m.group(2);
+            r.changes = Integer.parseInt(m.group(3));
+            r.nodes = Integer.parseInt(m.group(4));
+            records.add(r);
+        }
+        return records;
+    }
+
+    static int intOf(Pattern p, String json) {
+        Matcher m = p.matcher(json);
+        assertTrue(json, m.find());
+        return Integer.parseInt(m.group(1));
+    }
+
+    /* synthesises the instruction and returns its reports */
+    static Map<String, String> synthesise(Instructions insns, String... args) throws Exception {
+        return synthesise(insns, null, args);
+    }
+
+    static Map<String, String> synthesise(Instructions insns, SubDiagramMemo memo, String... args) throws Exception {
+        SynthesisContext ctx = new SynthesisContext(insns.typeDef, insns.getName(0), Instructions.option(args));
+        ctx.setSubDiagramMemo(memo);
+        String code = insns.synthesise(0, InsnGen.COMPILER_DEFAULT, ctx);
+        GeneratedDispatchTest.assertDispatch(insns, 0, InsnGen.COMPILER_DEFAULT, code);
+        return ctx.getReports();
+    }
+
+    @Test
+    public void roundsRunToFixpoint() throws Exception {
+        Instructions insns = new Instructions(DTDEF, IDEF);
+        String json = synthesise(insns, "-Xcmp:pass_stats", "true", "-Xcmp:opt_pass", "MC:MR:S",
+                                 "-Xcmp:opt_rounds", "10").get("add.passes.json");
+        assertTrue(json.contains("\"insn\": \"add\""));
+        assertTrue(json.contains("\"passes\": \"MC:MR:S\""));
+        int rounds = intOf(ROUNDS, json);
+        List<Record> records = records(json);
+        assertEquals(3 * rounds, records.size());
+        int lastChanges = 0;
+        for (int i = 0; i < records.size(); i++) {
+            Record r = records.get(i);
+            assertEquals(i / 3 + 1, r.round);
+            assertEquals(new String[] {"MC", "MR", "S"}[i % 3], r.pass);
+            if (r.round == rounds)
+                lastChanges += r.changes;
+            else if (i > 0)
+                assertTrue(records.get(i - 1).nodes >= r.nodes);
+        }
+        assertTrue(rounds < 10);
+        assertEquals(0, lastChanges);
+        assertTrue(records.get(0).nodes <= intOf(INITIAL, json));
+    }
+
+    @Test
+    public void roundsAreBounded() throws Exception {
+        Instructions insns = new Instructions(DTDEF, IDEF);
+        String json = synthesise(insns, "-Xcmp:pass_stats", "true", "-Xcmp:opt_pass", "MR:S").get("add.passes.json");
+        assertEquals(1, intOf(ROUNDS, json));
+        assertEquals(2, records(json).size());
+    }
+
+    @Test
+    public void roundsOfReusedSubDiagrams() throws Exception {
+        Instructions insns = new Instructions(DTDEF, IDEF);
+        String[] args = {"-Xcmp:pass_stats", "true", "-Xcmp:opt_pass", "MC:MR:S", "-Xcmp:reuse_subdiagram", "true"};
+        SubDiagramMemo memo = new SubDiagramMemo();
+        String json = synthesise(insns, memo, args).get("add.passes.json");
+        assertEquals(1, intOf(ROUNDS, json));
+        assertEquals(1, records(json).size());
+
+        String[] tenRounds = Arrays.copyOf(args, args.length + 2);
+        tenRounds[args.length] = "-Xcmp:opt_rounds";
+        tenRounds[args.length + 1] = "10";
+        json = synthesise(insns, memo, tenRounds).get("add.passes.json");
+        int rounds = intOf(ROUNDS, json);
+        assertTrue(json, rounds > 1 && rounds < 10);
+        /* all sub-diagrams come from the memo */
+        json = synthesise(insns, memo, tenRounds).get("add.passes.json");
+        assertEquals(0, intOf(ROUNDS, json));
+    }
+
+    @Test
+    public void noReportWithoutPassStats() throws Exception {
+        Instructions insns = new Instructions(DTDEF, IDEF);
+        assertTrue(synthesise(insns).isEmpty());
+        assertTrue(synthesise(insns, "-Xcmp:opt_rounds", "3").isEmpty());
+    }
+
+    @Test(expected = Error.class)
+    public void unknownPass() {
+        new PassManager(new String[] {"MR", "X"}, Instructions.option());
+    }
+
+    @Test
+    public void reportIsListedInDepfile() throws Exception {
+        Instructions insns = new Instructions(DTDEF, IDEF);
+        File ospec = tmp.newFile("all.ospec");
+        Files.write(ospec.toPath(), insns.operandSpec.getBytes(StandardCharsets.UTF_8));
+        File out = tmp.newFolder("out");
+        Instructions.runInsnGen("-Xcmp:pass_stats", "true", DTDEF, IDEF, ospec.getPath(), out.getPath());
+        File json = new File(out, "add.passes.json");
+        assertTrue(json.isFile());
+        assertEquals(2, records(new String(Files.readAllBytes(json.toPath()), StandardCharsets.UTF_8)).size());
+        String dep = new String(Files.readAllBytes(new File(out, "add.d").toPath()), StandardCharsets.UTF_8);
+        String targets = dep.substring(0, dep.indexOf(':'));
+        assertTrue(dep, targets.contains(new File(out, "add.inc").getPath()));
+        assertTrue(dep, targets.contains(json.getPath()));
+    }
+
+    @Test
+    public void reportsAreWrittenWithCache() throws Exception {
+        Instructions insns = new Instructions(DTDEF, IDEF);
+        File ospec = tmp.newFile("all.ospec");
+        Files.write(ospec.toPath(), insns.operandSpec.getBytes(StandardCharsets.UTF_8));
+        String cache = tmp.newFolder("cache").getPath();
+        List<String> deps = new ArrayList<String>();
+        for (String name: new String[] {"out1", "out2"}) {
+            File out = tmp.newFolder(name);
+            Instructions.runInsnGen("-cache", cache, "-Xcmp:pass_stats", "true", DTDEF, IDEF, ospec.getPath(), out.getPath());
+            assertTrue(new File(out, "add.passes.json").isFile());
+            String dep = new String(Files.readAllBytes(new File(out, "add.d").toPath()), StandardCharsets.UTF_8);
+            deps.add(dep.replace(out.getPath(), "OUT"));
+        }
+        assertEquals(deps.get(0), deps.get(1));
+    }
+}
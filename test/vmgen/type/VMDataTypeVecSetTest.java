@@ -0,0 +1,258 @@
+/*
+   VMDataTypeVecSetTest.java
+
+   eJS Project
+     Kochi University of Technology
+     the University of Electro-communications
+
+     Tomoharu Ugawa, 2016-18
+     Hideya Iwasaki, 2016-18
+*/
+package vmgen.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sets of type tuples kept as cubes agree with sets of the tuples
+ * themselves.
+ */
+public class VMDataTypeVecSetTest {
+	static final int ARITY = 3;
+	static final int SETS = 200;
+
+	/* tuples of IDs in lexicographic order */
+	static final Comparator<List<Integer>> LEX = (a, b) -> {
+		for (int i = 0; i < a.size(); i++)
+			if (!a.get(i).equals(b.get(i)))
+				return a.get(i) - b.get(i);
+		return 0;
+	};
+
+	TypeDefinition td;
+	List<VMDataType> dts;
+	Random random = new Random(1);
+
+	@Before
+	public void setUp() throws Exception {
+		td = new TypeDefinition();
+		td.load("datatype/full.dtdef");
+		dts = td.allDataTypes();
+	}
+
+	BitSet randomComponent() {
+		BitSet ids = new BitSet();
+		for (int id = 0; id < dts.size(); id++)
+			if (random.nextInt(3) == 0)
+				ids.set(id);
+		return ids;
+	}
+
+	/* a union of random products and random tuples, and its tuples */
+	VMDataTypeVecSet randomSet(TreeSet<List<Integer>> tuples) {
+		VMDataTypeVecSet s = new VMDataTypeVecSet(td, ARITY);
+		for (int n = random.nextInt(4); n > 0; n--) {
+			BitSet[] components = new BitSet[ARITY];
+			for (int i = 0; i < ARITY; i++)
+				components[i] = random.nextInt(4) == 0 ? null : randomComponent();
+			s.addAll(VMDataTypeVecSet.product(td, components));
+			for (List<Integer> t: allTuples())
+				if (inProduct(t, components))
+					tuples.add(t);
+		}
+		for (int n = random.nextInt(6); n > 0; n--) {
+			VMDataType[] tuple = new VMDataType[ARITY];
+			List<Integer> t = new ArrayList<Integer>();
+			for (int i = 0; i < ARITY; i++) {
+				tuple[i] = dts.get(random.nextInt(dts.size()));
+				t.add(tuple[i].getID());
+			}
+			s.add(tuple);
+			tuples.add(t);
+		}
+		return s;
+	}
+
+	static boolean inProduct(List<Integer> t, BitSet[] components) {
+		for (int i = 0; i < t.size(); i++)
+			if (components[i] != null && !components[i].get(t.get(i)))
+				return false;
+		return true;
+	}
+
+	List<List<Integer>> allTuples() {
+		List<List<Integer>> tuples = new ArrayList<List<Integer>>();
+		tuples.add(new ArrayList<Integer>());
+		for (int i = 0; i < ARITY; i++) {
+			List<List<Integer>> longer = new ArrayList<List<Integer>>();
+			for (List<Integer> t: tuples)
+				for (VMDataType dt: dts) {
+					List<Integer> u = new ArrayList<Integer>(t);
+					u.add(dt.getID());
+					longer.add(u);
+				}
+			tuples = longer;
+		}
+		return tuples;
+	}
+
+	VMDataType[] toTuple(List<Integer> t) {
+		VMDataType[] tuple = new VMDataType[t.size()];
+		for (int i = 0; i < tuple.length; i++)
+			tuple[i] = dts.get(t.get(i));
+		return tuple;
+	}
+
+	/* checks every observation of s against its tuples */
+	void assertSet(TreeSet<List<Integer>> tuples, VMDataTypeVecSet s) {
+		assertEquals(tuples.size(), s.size());
+		assertEquals(tuples.isEmpty(), s.isEmpty());
+		for (List<Integer> t: allTuples())
+			assertEquals(t.toString(), tuples.contains(t), s.contains(toTuple(t)));
+		List<List<Integer>> listed = new ArrayList<List<Integer>>();
+		for (VMDataType[] tuple: s.toList()) {
+			List<Integer> t = new ArrayList<Integer>();
+			for (VMDataType dt: tuple)
+				t.add(dt.getID());
+			listed.add(t);
+		}
+		assertEquals(new ArrayList<List<Integer>>(tuples), listed);
+		for (int i = 0; i < s.cubes.size(); i++)
+			for (int j = i + 1; j < s.cubes.size(); j++)
+				assertTrue("overlapping cubes", VMDataTypeVecSet.disjoint(s.cubes.get(i), s.cubes.get(j)));
+	}
+
+	@Test
+	public void setOperations() {
+		for (int n = 0; n < SETS; n++) {
+			TreeSet<List<Integer>> ta = new TreeSet<List<Integer>>(LEX);
+			TreeSet<List<Integer>> tb = new TreeSet<List<Integer>>(LEX);
+			VMDataTypeVecSet a = randomSet(ta);
+			VMDataTypeVecSet b = randomSet(tb);
+			assertSet(ta, a);
+
+			TreeSet<List<Integer>> t = new TreeSet<List<Integer>>(ta);
+			t.addAll(tb);
+			assertSet(t, a.union(b));
+			t = new TreeSet<List<Integer>>(ta);
+			t.removeAll(tb);
+			assertSet(t, a.minus(b));
+			t = new TreeSet<List<Integer>>(ta);
+			t.retainAll(tb);
+			assertSet(t, a.intersection(b));
+			t = new TreeSet<List<Integer>>(LEX);
+			t.addAll(allTuples());
+			t.removeAll(ta);
+			assertSet(t, a.complement());
+
+			/* the operands are left as they are */
+			assertSet(ta, a);
+			assertSet(tb, b);
+
+			assertEquals(ta.equals(tb), a.equals(b));
+			assertEquals(a, a.union(b).minus(b.minus(a)));
+			assertEquals(a.hashCode(), a.union(b).minus(b.minus(a)).hashCode());
+		}
+	}
+
+	/* the tuples of cubes, which must be disjoint */
+	static TreeSet<List<Integer>> tuplesOfCubes(List<VMDataType[][]> cubes) {
+		TreeSet<List<Integer>> tuples = new TreeSet<List<Integer>>(LEX);
+		for (VMDataType[][] cube: cubes) {
+			List<List<Integer>> ts = new ArrayList<List<Integer>>();
+			ts.add(new ArrayList<Integer>());
+			for (VMDataType[] component: cube) {
+				List<List<Integer>> longer = new ArrayList<List<Integer>>();
+				for (List<Integer> t: ts)
+					for (VMDataType dt: component) {
+						List<Integer> u = new ArrayList<Integer>(t);
+						u.add(dt.getID());
+						longer.add(u);
+					}
+				ts = longer;
+			}
+			for (List<Integer> t: ts)
+				assertTrue("overlapping cubes", tuples.add(t));
+		}
+		return tuples;
+	}
+
+	static String toString(List<VMDataType[][]> cubes) {
+		StringBuilder sb = new StringBuilder();
+		for (VMDataType[][] cube: cubes)
+			sb.append(Arrays.deepToString(cube));
+		return sb.toString();
+	}
+
+	@Test
+	public void cubesDependOnlyOnTuples() {
+		for (int n = 0; n < SETS; n++) {
+			TreeSet<List<Integer>> ta = new TreeSet<List<Integer>>(LEX);
+			VMDataTypeVecSet a = randomSet(ta);
+			VMDataTypeVecSet b = randomSet(new TreeSet<List<Integer>>(LEX));
+			assertEquals(ta, tuplesOfCubes(a.toCubes()));
+			VMDataTypeVecSet c = a.union(b).minus(b.minus(a));
+			assertEquals(toString(a.toCubes()), toString(c.toCubes()));
+			VMDataTypeVecSet d = new VMDataTypeVecSet(td, ARITY);
+			for (List<Integer> t: ta)
+				d.add(toTuple(t));
+			assertEquals(toString(a.toCubes()), toString(d.toCubes()));
+		}
+	}
+
+	@Test
+	public void meetsProduct() {
+		for (int n = 0; n < SETS; n++) {
+			TreeSet<List<Integer>> ta = new TreeSet<List<Integer>>(LEX);
+			VMDataTypeVecSet a = randomSet(ta);
+			BitSet[] components = new BitSet[ARITY];
+			for (int i = 0; i < ARITY; i++)
+				components[i] = randomComponent();
+			boolean meets = false;
+			for (List<Integer> t: ta)
+				meets |= inProduct(t, components);
+			assertEquals(meets, a.meetsProduct(components));
+		}
+	}
+
+	@Test
+	public void productOfTuplesIsOneCube() {
+		BitSet[] components = new BitSet[ARITY];
+		for (int i = 0; i < ARITY; i++) {
+			components[i] = new BitSet();
+			components[i].set(i, i + 3);
+		}
+		VMDataTypeVecSet s = new VMDataTypeVecSet(td, ARITY);
+		for (List<Integer> t: allTuples())
+			if (inProduct(t, components))
+				s.add(toTuple(t));
+		assertEquals(27, s.size());
+		assertEquals(1, s.cubes.size());
+		assertEquals(VMDataTypeVecSet.product(td, components), s);
+	}
+
+	@Test
+	public void emptyProduct() {
+		BitSet[] components = new BitSet[ARITY];
+		components[1] = new BitSet();
+		VMDataTypeVecSet s = VMDataTypeVecSet.product(td, components);
+		assertTrue(s.isEmpty());
+		assertEquals(new VMDataTypeVecSet(td, ARITY), s);
+		assertNotEquals(new VMDataTypeVecSet(td, ARITY - 1), s);
+		assertFalse(s.complement().isEmpty());
+		assertEquals((int) Math.pow(dts.size(), ARITY), s.complement().size());
+	}
+}